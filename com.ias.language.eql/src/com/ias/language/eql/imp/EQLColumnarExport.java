@@ -0,0 +1,473 @@
+package com.ias.language.eql.imp;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ias.language.objects.EQLDataFrame;
+import com.ias.language.objects.EQLRowSource;
+
+/**
+ * Streams a row source to a binary columnar file of record batches (format columnar).
+ *   The column kinds come from the source JDBC types. Every value buffer is little endian and starts on an 8 byte
+ *   boundary so uncompressed batches can be memory mapped and viewed as arrays (numpy.frombuffer) without parsing.
+ *   String columns with repeating values are dictionary encoded per batch. With compression each batch body is
+ *   deflated on its own.
+ *
+ * Layout, all integers little endian:
+ *   file    = "EQLB" i32 version, i32 columns, column*, pad8, batch*, footer, i64 footer offset, "EQLB"
+ *   column  = i32 name length, name utf8, i32 label length, label utf8, i32 java.sql.Types, i8 kind
+ *   batch   = i32 rows, i32 compressed (0/1), i64 body length, i64 raw length, body, pad8
+ *   body    = per column: validity bitmap (bit set = value present, padded to 8) then the values by kind
+ *     LONG i64[rows], DOUBLE f64[rows], BOOL i8[rows] (padded), DATE i32 days since epoch[rows] (padded),
+ *     TIMESTAMP i64 micros since epoch[rows],
+ *     BINARY/DECIMAL i32 offsets[rows + 1] (padded) + bytes (padded), decimals as plain text,
+ *     STRING i32 layout, i32 entries, then for layout STRING (5) offsets + bytes as above
+ *       or for layout DICT (8) i32 offsets[entries + 1] + bytes (padded), i32 codes[rows] (padded, -1 for null)
+ *   footer  = i32 batches, i64 batch offset*, i64 total rows
+ * Null values are zero (or an empty string) in the value buffers.
+ */
+public class EQLColumnarExport {
+	private final static Logger log = LoggerFactory.getLogger(EQLColumnarExport.class.getCanonicalName());
+	private final static byte[] MAGIC = "EQLB".getBytes(StandardCharsets.US_ASCII);
+	private final static int VERSION = 1;
+
+	public final static byte K_LONG = 0;
+	public final static byte K_DOUBLE = 1;
+	public final static byte K_BOOL = 2;
+	public final static byte K_DATE = 3;
+	public final static byte K_TIMESTAMP = 4;
+	public final static byte K_STRING = 5;
+	public final static byte K_BINARY = 6;
+	public final static byte K_DECIMAL = 7;
+	public final static byte K_DICT = 8;		// only in batches, a STRING column stored with a dictionary
+
+	protected EQLRowSource source;
+	protected Path file;
+	protected boolean compress;
+	protected int batchRows;
+	protected byte[] kinds;
+	protected FileChannel channel;
+	protected ByteBuffer body;
+	protected byte[] deflated;
+	protected Deflater deflater;
+	protected List<Long> batchOffsets;
+	protected long rows;
+	protected long bytesWritten;
+
+	public EQLColumnarExport(EQLRowSource source, Path file, boolean compress, int batchRows) {
+		this.source = source;
+		this.file = file;
+		this.compress = compress;
+		this.batchRows = Math.max(1, batchRows);
+		this.batchOffsets = new ArrayList<Long>();
+		this.rows = 0;
+		this.bytesWritten = 0;
+	}
+
+	public long getRows() {
+		return this.rows;
+	}
+
+	public long getBytesWritten() {
+		return this.bytesWritten;
+	}
+
+	public int getBatches() {
+		return this.batchOffsets.size();
+	}
+
+	/**
+	 * Column kind stored for a JDBC type
+	 * @param sqlType
+	 * @return
+	 */
+	public static byte kindOf(int sqlType) {
+		if (EQLDataFrame.isIntegral(sqlType))
+			return K_LONG;
+		if (EQLDataFrame.isFloating(sqlType))
+			return K_DOUBLE;
+		switch (sqlType) {
+			case Types.BOOLEAN:
+			case Types.BIT:
+				return K_BOOL;
+			case Types.DATE:
+				return K_DATE;
+			case Types.TIMESTAMP:
+			case Types.TIMESTAMP_WITH_TIMEZONE:
+				return K_TIMESTAMP;
+			case Types.DECIMAL:
+			case Types.NUMERIC:
+				return K_DECIMAL;
+			case Types.BINARY:
+			case Types.VARBINARY:
+			case Types.LONGVARBINARY:
+			case Types.BLOB:
+				return K_BINARY;
+			default:
+				return K_STRING;
+		}
+	}
+
+	/**
+	 * Writes every remaining row of the source, an existing file is replaced
+	 * @return rows written
+	 * @throws EQLException
+	 */
+	public long run() throws EQLException {
+		int[] types = this.source.getColumnTypes();
+		int cols = types.length;
+		this.kinds = new byte[cols];
+		for(int col=0; col < cols; col++) {
+			this.kinds[col] = kindOf(types[col]);
+		}
+		this.body = ByteBuffer.allocate(1024 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+		if (this.compress)
+			this.deflater = new Deflater(Deflater.BEST_SPEED);
+
+		Object[][] batch = new Object[cols][this.batchRows];
+		try {
+			this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			this.writeHeader(types);
+
+			int count = 0;
+			Object[] row = this.source.next();
+			while (row != null) {
+				for(int col=0; col < cols; col++) {
+					batch[col][count] = row[col];
+				}
+				count++;
+				if (count == this.batchRows) {
+					this.writeBatch(batch, count);
+					count = 0;
+				}
+				row = this.source.next();
+			}
+			if (count > 0 || this.batchOffsets.size() == 0)
+				this.writeBatch(batch, count);
+			this.writeFooter();
+			this.bytesWritten = this.channel.size();
+			this.channel.close();
+			log.debug("Exported {} rows in {} batches to {} ({} bytes)", this.rows, this.batchOffsets.size(), this.file, this.bytesWritten);
+			return this.rows;
+		} catch (IOException e) {
+			throw new EQLException("Export to " + this.file + " failed: " + e.getMessage());
+		} finally {
+			if (this.deflater != null)
+				this.deflater.end();
+			try {
+				if (this.channel != null && this.channel.isOpen())
+					this.channel.close();
+			} catch (IOException e) {
+				log.warn("Error closing export file {} - continuing", this.file);
+			}
+		}
+	}
+
+	protected void writeHeader(int[] types) throws IOException {
+		this.body.clear();
+		this.body.put(MAGIC).putInt(VERSION).putInt(types.length);
+		for(int col=0; col < types.length; col++) {
+			this.putString(this.source.getColumnNames().get(col));
+			this.putString(this.source.getColumnLabels().get(col));
+			this.ensure(5);
+			this.body.putInt(types[col]).put(this.kinds[col]);
+		}
+		this.pad();
+		this.writeBody();
+	}
+
+	protected void writeFooter() throws IOException {
+		long footer = this.channel.position();
+		this.body.clear();
+		this.ensure(32 + 8 * this.batchOffsets.size());
+		this.body.putInt(this.batchOffsets.size());
+		for(long offset : this.batchOffsets) {
+			this.body.putLong(offset);
+		}
+		this.body.putLong(this.rows).putLong(footer).put(MAGIC);
+		this.writeBody();
+	}
+
+	protected void writeBatch(Object[][] batch, int count) throws IOException, EQLException {
+		this.body.clear();
+		for(int col=0; col < batch.length; col++) {
+			Object[] vals = batch[col];
+			this.writeValidity(vals, count);
+			switch (this.kinds[col]) {
+				case K_LONG:
+					this.ensure(8L * count);
+					for(int idx=0; idx < count; idx++) {
+						this.body.putLong((vals[idx] == null) ? 0 : toLong(vals[idx]));
+					}
+					break;
+				case K_DOUBLE:
+					this.ensure(8L * count);
+					for(int idx=0; idx < count; idx++) {
+						this.body.putDouble((vals[idx] == null) ? 0 : toDouble(vals[idx]));
+					}
+					break;
+				case K_BOOL:
+					this.ensure(count + 8);
+					for(int idx=0; idx < count; idx++) {
+						this.body.put((byte) ((vals[idx] != null && toBoolean(vals[idx])) ? 1 : 0));
+					}
+					this.pad();
+					break;
+				case K_DATE:
+					this.ensure(4L * count + 8);
+					for(int idx=0; idx < count; idx++) {
+						this.body.putInt((vals[idx] == null) ? 0 : (int) toEpochDay(vals[idx]));
+					}
+					this.pad();
+					break;
+				case K_TIMESTAMP:
+					this.ensure(8L * count);
+					for(int idx=0; idx < count; idx++) {
+						this.body.putLong((vals[idx] == null) ? 0 : toEpochMicros(vals[idx]));
+					}
+					break;
+				case K_BINARY:
+					this.writeVariable(vals, count);
+					break;
+				case K_DECIMAL:
+					this.writeVariable(vals, count);
+					break;
+				default:
+					if (!this.writeDictionary(vals, count)) {
+						this.ensure(8);
+						this.body.putInt(K_STRING).putInt(0);
+						this.writeVariable(vals, count);
+					}
+			}
+		}
+
+		this.batchOffsets.add(this.channel.position());
+		int raw = this.body.position();
+		ByteBuffer head = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+		if (this.compress) {
+			this.deflater.reset();
+			this.deflater.setInput(this.body.array(), 0, raw);
+			this.deflater.finish();
+			if (this.deflated == null || this.deflated.length < raw + 1024)
+				this.deflated = new byte[raw + raw / 10 + 1024];
+			int len = 0;
+			while (!this.deflater.finished()) {
+				if (len == this.deflated.length)
+					this.deflated = Arrays.copyOf(this.deflated, this.deflated.length * 2);
+				len += this.deflater.deflate(this.deflated, len, this.deflated.length - len);
+			}
+			head.putInt(count).putInt(1).putLong(len).putLong(raw).flip();
+			this.writeFully(head);
+			this.writeFully(ByteBuffer.wrap(this.deflated, 0, len));
+			int padding = (int) ((8 - (this.channel.position() & 7)) & 7);
+			this.writeFully(ByteBuffer.allocate(padding));
+		} else {
+			head.putInt(count).putInt(0).putLong(raw).putLong(raw).flip();
+			this.writeFully(head);
+			this.writeBody();
+		}
+		this.rows += count;
+		for(Object[] vals : batch) {	// drop references for the next batch
+			Arrays.fill(vals, 0, count, null);
+		}
+	}
+
+	protected void writeValidity(Object[] vals, int count) {
+		int len = (((count + 7) / 8) + 7) & ~7;
+		this.ensure(len);
+		int start = this.body.position();
+		for(int idx=0; idx < len; idx++) {
+			this.body.put((byte) 0);
+		}
+		for(int idx=0; idx < count; idx++) {
+			if (vals[idx] != null)
+				this.body.put(start + (idx >> 3), (byte) (this.body.get(start + (idx >> 3)) | (1 << (idx & 7))));
+		}
+	}
+
+	/**
+	 * Offsets plus bytes layout for strings, decimals (plain text) and binary values
+	 */
+	protected void writeVariable(Object[] vals, int count) {
+		byte[][] encoded = new byte[count][];
+		long total = 0;
+		for(int idx=0; idx < count; idx++) {
+			encoded[idx] = toBytes(vals[idx]);
+			total += encoded[idx].length;
+		}
+		this.putOffsets(encoded, count, total);
+	}
+
+	/**
+	 * Dictionary layout when at most half the values of the batch are distinct
+	 * @return false when the column is not worth a dictionary
+	 */
+	protected boolean writeDictionary(Object[] vals, int count) {
+		Map<String,Integer> dict = new HashMap<String,Integer>();
+		List<String> entries = new ArrayList<String>();
+		int[] codes = new int[count];
+		int limit = Math.max(1, count / 2);
+		for(int idx=0; idx < count; idx++) {
+			if (vals[idx] == null) {
+				codes[idx] = -1;
+				continue;
+			}
+			String s = vals[idx].toString();
+			Integer code = dict.get(s);
+			if (code == null) {
+				if (entries.size() >= limit)
+					return false;
+				code = entries.size();
+				dict.put(s, code);
+				entries.add(s);
+			}
+			codes[idx] = code;
+		}
+		this.ensure(8);
+		this.body.putInt(K_DICT).putInt(entries.size());
+		byte[][] encoded = new byte[entries.size()][];
+		long total = 0;
+		for(int idx=0; idx < encoded.length; idx++) {
+			encoded[idx] = entries.get(idx).getBytes(StandardCharsets.UTF_8);
+			total += encoded[idx].length;
+		}
+		this.putOffsets(encoded, encoded.length, total);
+		this.ensure(4L * count + 8);
+		for(int code : codes) {
+			this.body.putInt(code);
+		}
+		this.pad();
+		return true;
+	}
+
+	private void putOffsets(byte[][] encoded, int count, long total) {
+		this.ensure(4L * (count + 1) + total + 16);
+		int offset = 0;
+		this.body.putInt(0);
+		for(int idx=0; idx < count; idx++) {
+			offset += encoded[idx].length;
+			this.body.putInt(offset);
+		}
+		this.pad();
+		for(int idx=0; idx < count; idx++) {
+			this.body.put(encoded[idx]);
+		}
+		this.pad();
+	}
+
+	private void putString(String s) {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		this.ensure(4 + b.length);
+		this.body.putInt(b.length).put(b);
+	}
+
+	private void pad() {
+		this.ensure(8);
+		while ((this.body.position() & 7) != 0) {
+			this.body.put((byte) 0);
+		}
+	}
+
+	/**
+	 * Grows the body buffer to hold more bytes
+	 * @param more
+	 */
+	private void ensure(long more) {
+		if (this.body.remaining() >= more)
+			return;
+		long need = this.body.position() + more;
+		if (need > Integer.MAX_VALUE - 8)
+			throw new IllegalStateException("Export batch over 2GB, use a smaller eql_export_batch");
+		int cap = this.body.capacity();
+		while (cap < need) {
+			cap = (int) Math.min(Integer.MAX_VALUE - 8, cap * 2L);
+		}
+		ByteBuffer bigger = ByteBuffer.allocate(cap).order(ByteOrder.LITTLE_ENDIAN);
+		this.body.flip();
+		bigger.put(this.body);
+		this.body = bigger;
+	}
+
+	private void writeBody() throws IOException {
+		this.body.flip();
+		this.writeFully(this.body);
+		this.body.clear();
+	}
+
+	private void writeFully(ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			this.channel.write(buf);
+		}
+	}
+
+	private static long toLong(Object val) {
+		if (val instanceof Number)
+			return ((Number) val).longValue();
+		return Long.parseLong(val.toString().trim());
+	}
+
+	private static double toDouble(Object val) {
+		if (val instanceof Number)
+			return ((Number) val).doubleValue();
+		return Double.parseDouble(val.toString().trim());
+	}
+
+	private static boolean toBoolean(Object val) {
+		if (val instanceof Boolean)
+			return (Boolean) val;
+		if (val instanceof Number)
+			return ((Number) val).intValue() != 0;
+		return Boolean.parseBoolean(val.toString().trim());
+	}
+
+	private static long toEpochDay(Object val) throws EQLException {
+		if (val instanceof java.sql.Date)
+			return ((java.sql.Date) val).toLocalDate().toEpochDay();
+		if (val instanceof LocalDate)
+			return ((LocalDate) val).toEpochDay();
+		if (val instanceof java.util.Date)
+			return Math.floorDiv(((java.util.Date) val).getTime(), 86400000L);
+		throw new EQLException("Unsupported date value type " + val.getClass().getSimpleName());
+	}
+
+	private static long toEpochMicros(Object val) throws EQLException {
+		if (val instanceof LocalDateTime)
+			val = Timestamp.valueOf((LocalDateTime) val);
+		if (val instanceof Timestamp) {
+			Timestamp ts = (Timestamp) val;
+			return Math.floorDiv(ts.getTime(), 1000L) * 1000000L + ts.getNanos() / 1000;
+		}
+		if (val instanceof java.util.Date)
+			return ((java.util.Date) val).getTime() * 1000L;
+		throw new EQLException("Unsupported timestamp value type " + val.getClass().getSimpleName());
+	}
+
+	private static byte[] toBytes(Object val) {
+		if (val == null)
+			return new byte[0];
+		if (val instanceof byte[])
+			return (byte[]) val;
+		if (val instanceof BigDecimal)
+			return ((BigDecimal) val).toPlainString().getBytes(StandardCharsets.UTF_8);
+		return val.toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
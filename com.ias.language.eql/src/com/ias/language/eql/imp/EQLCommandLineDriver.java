@@ -1,19 +1,39 @@
 package com.ias.language.eql.imp;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.sql.BatchUpdateException;
+import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -21,20 +41,69 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Stopwatch;
 import com.google.gson.internal.LinkedTreeMap;
+import com.ias.language.objects.EQLBoolean;
+import com.ias.language.objects.EQLConnection;
+import com.ias.language.objects.EQLCursorReader;
+import com.ias.language.objects.EQLDataFrame;
+import com.ias.language.objects.EQLExpression;
 import com.ias.language.objects.EQLInstruction;
+import com.ias.language.objects.EQLInstructionStats;
+import com.ias.language.objects.EQLLookupIndex;
+import com.ias.language.objects.EQLNumber;
 import com.ias.language.objects.EQLObject;
+import com.ias.language.objects.EQLResultCache;
+import com.ias.language.objects.EQLRowSource;
+import com.ias.language.objects.EQLString;
 import com.ias.language.objects.IASOnDemandDataSource;
 
 public class EQLCommandLineDriver extends EQLUtilities {
 	private final static Logger log = LoggerFactory.getLogger(EQLCommandLineDriver.class.getCanonicalName());
+	private final static Pattern JOIN_SYNTAX = Pattern.compile("^join\\s+(left\\s+)?\\?\\s*,\\s*\\?\\s+on\\s+(.+)$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private final static Pattern JOIN_KEY = Pattern.compile("^(\\w+)\\s*=\\s*(\\w+)$");
+	private final static Pattern INDEX_SYNTAX = Pattern.compile("^index\\s+\\?\\s+by\\s+(\\w+)$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private final static Pattern INDEX_REF = Pattern.compile("\\?\\[\\?\\]\\.(\\w+)");
+	private final static Pattern EXPORT_SYNTAX = Pattern.compile("^export\\s+\\?\\s+to\\s+(?:'([^']+)'|(\\?))\\s+format\\s+(\\w+)(\\s+gzip)?$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private final static Pattern COPY_SYNTAX = Pattern.compile("^copy\\s+\\?\\s+into\\s+\\S+$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private final static Pattern LOAD_SYNTAX = Pattern.compile("^load\\s+(?:'([^']+)'|(\\?))\\s+into\\s+([\\w.$]+)(?:\\s+rejects\\s+'([^']+)')?$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private final static Pattern FILE_SYNTAX = Pattern.compile("^file\\s*\\(\\s*(?:'([^']+)'|(\\?))\\s*(?:,\\s*(text|binary)\\s*)?\\)$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private final static Pattern CALL_PARM = Pattern.compile("(?:\\b(in\\s*out|out)\\s+)?\\?", Pattern.CASE_INSENSITIVE);
+	private final static List<String> COALESCE_FUNCTIONS = Arrays.asList("insert", "update", "delete", "merge", "upsert", "create", "drop", "alter", "truncate", "set", "grant", "revoke", "comment");
+	private final static Pattern TRANSACTION_SYNTAX = Pattern.compile("^(begin|commit|rollback)(?:\\s+(?:work|transaction))?$", Pattern.CASE_INSENSITIVE);
+	private final static List<String> READ_FUNCTIONS = Arrays.asList("select", "with", "show", "explain", "describe", "desc");
+	private final static Pattern LOCKING_READ = Pattern.compile("\\bfor\\s+(?:update|share|no\\s+key\\s+update|key\\s+share)\\b|\\block\\s+in\\s+share\\s+mode\\b|\\bwith\\s*\\(\\s*(?:updlock|xlock|holdlock)", Pattern.CASE_INSENSITIVE);
+	private final static Pattern PARTITION_ARGS = Pattern.compile("^by\\s+([\\w$]+)\\s*,\\s*(\\d+)(?:\\s*,\\s*(ordered|unordered))?$", Pattern.CASE_INSENSITIVE);
+	private final static Pattern SORT_SYNTAX = Pattern.compile("^(order|distinct)\\s+\\?(?:\\s+by\\s+(.+))?$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private final static Pattern SUMMARIZE_SYNTAX = Pattern.compile("^summarize\\s+\\?(?:\\s+by\\s+(.+?))?\\s+compute\\s+(.+)$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
 
 	protected Map<String, EQLObject> vars;
 	protected List<EQLException> errorStack;
 	protected List<EQLInstruction> instructions;
 	protected Connection conn;
-	protected int completedLine;
+	protected Map<Connection, Integer> retiredConns;	// Connections switched away from and the cursors still open on them
+	protected Map<String, EQLConnection> pools;
+	protected boolean sharedPools;	// Pools belong to the caller (matrix runs), connect borrows from them
+	protected int poolReserve;		// Connections added to each pool for the connects of the engines sharing it
+	protected Map<Connection, EQLConnection> pooledConns;	// Borrowed connections, released instead of closed
+	protected Map<String, List<EQLConnection>> replicas;	// Read replica pools by primary target
+	protected int replicaTurn;		// Rotates the first replica tried so ties spread out
+	protected String target;		// Target name of the current connection
+	protected EQLResultCache resultCache;
+	protected volatile int completedLine;
+	protected boolean txExplicit;	// begin was run, statements commit at the matching commit
+	protected int uncommitted;		// statements run since the last commit with autocommit off
+	protected boolean sessionPinned;	// use, DDL, SET or writes ran on the connection, replicas don't share its session
 	protected int queryTimeout;
-	protected int lineExecuting;
+	protected volatile int lineExecuting;
+	protected volatile EQLInstruction current;	// Running instruction and its start, read by the monitor
+	protected volatile long currentStarted;
+	protected volatile Statement running;	// Statement executing on the database, cancelled by the monitor
+	protected volatile long instructionsRun;
+	protected AtomicLong rowsProcessed;		// Rows read from cursors and affected by statements
+	protected EQLExpression.Resolver resolver;	// Variable values of expressions and conditions
+	protected Map<EQLObject, Integer> openCursors;	// Server side cursors held by variables and the instruction that created them
+	protected Map<EQLObject, Connection> cursorConns;	// Connection each of those cursors reads from, unless it holds its own
+	protected boolean cursorsWarned;	// eql_max_cursors warning given, again after the count drops
+	protected EQLRunMetrics metrics;	// Per instruction metrics of the run, null unless eql.metrics.* is configured
 
 	public EQLCommandLineDriver(Properties config) {
 		super(config);
@@ -51,13 +120,57 @@ public class EQLCommandLineDriver extends EQLUtilities {
 		this.errorStack = new ArrayList<EQLException>();
 		this.instructions = null;
 		this.conn = null;
+		this.retiredConns = new IdentityHashMap<Connection, Integer>();
+		this.pools = new HashMap<String, EQLConnection>();
+		this.pooledConns = new HashMap<Connection, EQLConnection>();
+		this.replicas = new HashMap<String, List<EQLConnection>>();
+		this.openCursors = new IdentityHashMap<EQLObject, Integer>();
+		this.cursorConns = new IdentityHashMap<EQLObject, Connection>();
+		this.cursorsWarned = false;
 		this.completedLine = 0;
 		this.lineExecuting = 0;
+		this.rowsProcessed = new AtomicLong();
+		this.resolver = new EQLExpression.Resolver() {
+			@Override
+			public EQLObject resolve(String name, String column) throws EQLException {
+				EQLObject val = vars.get(name);
+				if (val == null)
+					throw new EQLException("Variable '" + name + "' not defined at time of use");
+				if (column == null)
+					return val;
+				if (val.getType() != EQLObject.types.cursor)
+					throw new EQLException("Variable '" + name + "' of type " + val.printType() + " has no column " + column);
+				try {
+					return pullCursorColumn(name, "?." + column);
+				} catch (SQLException | IOException e) {
+					throw new EQLException("Unable to read column " + column + " of @" + name + ": " + e.getMessage());
+				}
+			}
+		};
+		this.txExplicit = false;
+		this.uncommitted = 0;
+	}
+	
+	/**
+	 * Uses pools owned by the caller for every connection including connect, several engines can share them. The
+	 * pools stay open when the engine closes. Every engine holds one connection of its connect target for the whole
+	 * run, the pools are sized to eql.target.pool plus the engines running at once so copy, load, partitioned and fanout
+	 * work still get connections.
+	 * @param pools thread safe map
+	 * @param engines most engines running at the same time
+	 */
+	public void sharePools(Map<String, EQLConnection> pools, int engines) {
+		this.pools = pools;
+		this.sharedPools = true;
+		this.poolReserve = engines;
 	}
 	
 	public boolean compile(String code) {
 		try {
 			this.instructions = EQLInstruction.InstructionFactory(code);
+			for(EQLInstruction inst : this.instructions) {
+				inst.setOpcode(resolveOpcode(inst));
+			}
 			log.debug("Compiled {} instructions", this.instructions.size());
 		} catch (IOException | EQLException e) {
 			this.errorMsg("compile", e.getMessage());
@@ -66,13 +179,72 @@ public class EQLCommandLineDriver extends EQLUtilities {
 		return true;
 	}
 	
+	/**
+	 * Opcode run dispatches on, resolved once when the script compiles instead of comparing function names and
+	 * matching the statement text for every instruction run
+	 * @param inst
+	 * @return
+	 */
+	protected static EQLInstruction.opcodes resolveOpcode(EQLInstruction inst) {
+		String function = inst.getFunction();
+		if (inst.isControl()) {
+			if (function.equals("if"))
+				return EQLInstruction.opcodes.ifBlock;
+			if (function.equals("while"))
+				return EQLInstruction.opcodes.whileBlock;
+			return (function.equals("end")) ? EQLInstruction.opcodes.endBlock : EQLInstruction.opcodes.elseBlock;
+		}
+		switch (function) {
+			case "var":
+				return (inst.getExpression() != null) ? EQLInstruction.opcodes.expression : EQLInstruction.opcodes.var;
+			case "connect":
+				return EQLInstruction.opcodes.connect;
+			case "use":
+				return EQLInstruction.opcodes.use;
+			case "copy":
+				if (COPY_SYNTAX.matcher(inst.getAssignVal().toString().trim()).matches())
+					return EQLInstruction.opcodes.copy;
+				break;	// database COPY (PostgreSQL COPY ... FROM/TO) passes through
+			case "join":
+				return EQLInstruction.opcodes.join;
+			case "summarize":
+				return EQLInstruction.opcodes.summarize;
+			case "order":
+			case "distinct":
+				return EQLInstruction.opcodes.sort;
+			case "export":
+				return EQLInstruction.opcodes.export;
+			case "load":
+				if (LOAD_SYNTAX.matcher(inst.getAssignVal().toString().trim()).matches())
+					return EQLInstruction.opcodes.load;
+				break;	// database LOAD (MySQL LOAD DATA [LOCAL] INFILE) passes through
+			case "file":
+				if (inst.getAssignName() != null)
+					return EQLInstruction.opcodes.file;
+				break;
+			case "call":
+				return EQLInstruction.opcodes.call;
+			case "index":
+				return EQLInstruction.opcodes.index;
+			case "print":
+				return EQLInstruction.opcodes.print;
+			default:
+				break;
+		}
+		if (inst.getAssignName() == null && TRANSACTION_SYNTAX.matcher(inst.getAssignVal().toString().trim()).matches())
+			return EQLInstruction.opcodes.transaction;
+		if (inst.getAssignName() == null && inst.getModifier() == null && COALESCE_FUNCTIONS.contains(function))
+			return EQLInstruction.opcodes.dml;
+		return EQLInstruction.opcodes.exec;
+	}
+	
 	public int getLastCompletedInstructionNumber() {
 		return this.completedLine;
 	}
 	
 	public void setVariableDirect(String name, String value) {
 		EQLObject val = new EQLObject(value);
-		this.vars.put(name, val);
+		this.setVar(name, val);
 		if (name.equals("eql_timeout_s")) {
 			this.queryTimeout = Integer.parseInt(value);
 			this.infoMsg("engine", "Query timeout for future statements is set to " + this.queryTimeout + " seconds.");
@@ -81,6 +253,14 @@ public class EQLCommandLineDriver extends EQLUtilities {
 			this.logLevel = Integer.parseInt(value);
 			this.infoMsg("engine", "Log level set to #" + value);
 		}
+		if (name.equals("eql_commit_every")) {
+			try {
+				this.applyCommitMode();
+				this.infoMsg("engine", "Commit interval for future statements is set to " + value + " statements.");
+			} catch (SQLException e) {
+				this.errorMsg("engine", "Unable to set the commit interval, error:" + e.getMessage());
+			}
+		}
 		this.debugMsg("engine", "Assignment @" + name + " to value:" + value);
 	}
 	
@@ -92,17 +272,28 @@ public class EQLCommandLineDriver extends EQLUtilities {
 		this.lineExecuting = 0;
 		EQLInstruction lastConnection = null;
 		EQLInstruction lastConnUse = null;
-		for(EQLInstruction instruct:instructions) {
-			this.lineExecuting++;
-			if (instruct.getFunction().equals("connect")) {
+		List<EQLInstruction> coalesced = new ArrayList<EQLInstruction>();	// statements waiting to share a round trip
+		int reached = 0;	// last instruction that ran without stopping the script
+		int next = 0;	// index of the next instruction, if and while blocks jump
+		this.metrics = EQLRunMetrics.forConfig(this.config);
+		script:
+		while (next < this.instructions.size()) {
+			EQLInstruction instruct = this.instructions.get(next);
+			this.lineExecuting = ++next;
+			this.current = instruct;
+			this.currentStarted = System.currentTimeMillis();
+			this.instructionsRun++;
+			if (this.metrics != null)
+				this.metrics.begin(this.lineExecuting, instruct);
+			if (instruct.getOpcode() == EQLInstruction.opcodes.connect) {
 				lastConnection = instruct;  // keep a reference to the last connection to process before actual lines start
 				lastConnUse = null; // reset for any connection
 			}
-			if (instruct.getFunction().equals("use")) {
+			if (instruct.getOpcode() == EQLInstruction.opcodes.use) {
 				lastConnUse = instruct;
 			}
 			if (this.lineExecuting > startingLine) {
-				if (startingLine > 0 && lastConnection != null && !instruct.getFunction().equals("connect")) {  // if instruct is not a connection, process the last connection request
+				if (startingLine > 0 && lastConnection != null && instruct.getOpcode() != EQLInstruction.opcodes.connect) {  // if instruct is not a connection, process the last connection request
 					try {
 						this.connect(lastConnection);
 						lastConnection = null;
@@ -120,60 +311,186 @@ public class EQLCommandLineDriver extends EQLUtilities {
 						break;
 					}
 				}
+				startingLine = 0;	// restart point passed, a loop jumping back runs its instructions again
 				
-				//TODO put the function logic into the exec function so it can handle any command handed to it
-				if (instruct.getFunction().equals("var")) {
-					EQLObject val = instruct.getAssignVal();
-					this.debugMsg("engine", "Assignment @" + instruct.getAssignName() + " to value:" + instruct.getAssignVal());
-					EQLObject oldVal = this.vars.put(instruct.getAssignName(), val);
-					if (oldVal != null && oldVal.getType() == EQLObject.types.cursor) {
-						this.closeCursorIfLastReference(instruct.getAssignName(), oldVal);
-					}
-					if (instruct.getAssignVal().getType() == EQLObject.types.variable) {
-						String leftVarName = instruct.getAssignName();
-						String rightVarName = instruct.getParms().get(0);
-						EQLObject rightVarExtra = instruct.getAssignVal();
-						String rightVarRaw = rightVarExtra.toString().split("\\s+")[0];  // Assignments from cursor types only allow one value, parm #1 is index 0
+				if (this.isCoalescable(instruct)) {	// Consecutive statements without results are sent together
+					coalesced.add(instruct);
+					if (coalesced.size() >= this.getControlInt("eql_coalesce", 0) && !this.execCoalesced(coalesced, this.lineExecuting))
+						break;
+					reached = this.lineExecuting;
+					continue;
+				}
+				if (!coalesced.isEmpty() && !this.execCoalesced(coalesced, this.lineExecuting - 1))
+					break;
+
+				switch (instruct.getOpcode()) {
+					case ifBlock:
+					case elseBlock:
+					case whileBlock:
+					case endBlock:
+						try {
+							next = this.control(instruct, next - 1);
+						} catch (EQLException e) {
+							this.errorMsg(lineTitleToString(this.lineExecuting), "Condition failed, error:" + e.getMessage());
+							break script;
+						}
+						break;
+					case var:
+					case expression:
+						EQLObject val = instruct.getAssignVal();
+						if (instruct.getExpression() != null) {
+							try {
+								val = instruct.getExpression().evaluate(this.resolver);
+							} catch (EQLException e) {
+								this.errorMsg(lineTitleToString(this.lineExecuting), "Expression failed, error:" + e.getMessage());
+								break script;
+							}
+						}
+						if (this.isDebugEnabled())
+							this.debugMsg("engine", "Assignment @" + instruct.getAssignName() + " to value:" + val);
+						this.setVar(instruct.getAssignName(), val);
+						if (val.getType() == EQLObject.types.variable) {
+							String leftVarName = instruct.getAssignName();
+							String rightVarName = instruct.getParms().get(0);
+							EQLObject rightVarExtra = instruct.getAssignVal();
+							String rightVarRaw = rightVarExtra.toString().split("\\s+")[0];  // Assignments from cursor types only allow one value, parm #1 is index 0
+							String keyVarName = (instruct.getParms().size() > 1) ? instruct.getParms().get(1) : null;	// @lkp[@key].col
 	
+							try {
+								this.setVar(leftVarName, this.pullCursorColumn(rightVarName, rightVarRaw, keyVarName));
+								// Simple assignment copy value - cursors are copy reference
+								this.debugMsg("engine", "Assignment of '" + instruct.getAssignName() + "' to: @" + rightVarName);
+							} catch (SQLException | IOException | EQLException e) {
+								this.errorMsg("engine", "Unable to assign value from cursor, error:" + e.getMessage());
+								break script;
+							}
+						}
+						if (instruct.getAssignName().equals("eql_timeout_s")) {
+							this.queryTimeout = val.toInt();
+							this.infoMsg("engine", "Query timeout for future statements is set to " + this.queryTimeout + " seconds.");
+						}
+						if (instruct.getAssignName().equals("eql_log_level")) {
+							if (val.getType() == EQLObject.types.integer) {
+								this.logLevel = val.toInt();
+								this.infoMsg("engine", "Log level set to #" + val);
+							}
+							else
+								this.warnMsg("engine", "Internal variable eql_log_level must be an integer data type for use as a control variable at ln#" + instruct.getStartLine());;
+						}
+						if (instruct.getAssignName().equals("eql_commit_every")) {
+							try {
+								this.applyCommitMode();
+								this.infoMsg("engine", "Commit interval for future statements is set to " + this.getControlInt("eql_commit_every", 0) + " statements.");
+							} catch (SQLException e) {
+								this.errorMsg("engine", "Unable to set the commit interval, error:" + e.getMessage());
+								break script;
+							}
+						}
+						break;
+					case connect:
 						try {
-							this.vars.put(leftVarName, this.pullCursorColumn(rightVarName, rightVarRaw));
-							// Simple assignment copy value - cursors are copy reference
-							this.debugMsg("engine", "Assignment of '" + instruct.getAssignName() + "' to: @" + rightVarName);
-						} catch (SQLException | IOException | EQLException e) {
-							this.errorMsg("engine", "Unable to assign value from cursor, error:" + e.getMessage());
-							break;
+							this.connect(instruct);
+						} catch (EQLException e) {
+							this.errorMsg("engine", "Unable to make requested connection, error:" + e.getMessage());
+							break script;
 						}
-					}
-					if (instruct.getAssignName().equals("eql_timeout_s")) {
-						this.queryTimeout = instruct.getAssignVal().toInt();
-						this.infoMsg("engine", "Query timeout for future statements is set to " + this.queryTimeout + " seconds.");
-					}
-					if (instruct.getAssignName().equals("eql_log_level")) {
-						if (instruct.getAssignVal().getType() == EQLObject.types.integer) {
-							this.logLevel = instruct.getAssignVal().toInt();
-							this.infoMsg("engine", "Log level set to #" + instruct.getAssignVal());
+						break;
+					case copy:
+						try {
+							this.copy(instruct, this.lineExecuting);
+						} catch (EQLException e) {
+							this.errorMsg(lineTitleToString(this.lineExecuting), "Copy failed, error:" + e.getMessage());
+							break script;
 						}
-						else
-							this.warnMsg("engine", "Internal variable eql_log_level must be an integer data type for use as a control variable at ln#" + instruct.getStartLine());;
-					}
-				} else if (instruct.getFunction().equals("connect")) {
-					try {
-						this.connect(instruct);
-					} catch (EQLException e) {
-						this.errorMsg("engine", "Unable to make requested connection, error:" + e.getMessage());
 						break;
-					}
-				} else if (instruct.getFunction().equals("print")) {
-					log.debug("Running print function");
-					try {
-						this.print(instruct);
-					} catch (EQLException e) {
-						this.errorMsg("engine", "Unable to print message, error:" + e.getMessage());
+					case join:
+						try {
+							this.join(instruct, this.lineExecuting);
+						} catch (EQLException e) {
+							this.errorMsg(lineTitleToString(this.lineExecuting), "Join failed, error:" + e.getMessage());
+							break script;
+						}
 						break;
-					}
-				} else {
-					//Pass-through command to connection
-					if (this.exec(instruct, true, this.lineExecuting) == null)
+					case summarize:
+						try {
+							this.summarize(instruct, this.lineExecuting);
+						} catch (EQLException e) {
+							this.errorMsg(lineTitleToString(this.lineExecuting), "Summarize failed, error:" + e.getMessage());
+							break script;
+						}
+						break;
+					case sort:
+						try {
+							this.sort(instruct, this.lineExecuting);
+						} catch (EQLException e) {
+							this.errorMsg(lineTitleToString(this.lineExecuting), "Sort failed, error:" + e.getMessage());
+							break script;
+						}
+						break;
+					case export:
+						try {
+							this.export(instruct, this.lineExecuting);
+						} catch (EQLException e) {
+							this.errorMsg(lineTitleToString(this.lineExecuting), "Export failed, error:" + e.getMessage());
+							break script;
+						}
+						break;
+					case load:
+						try {
+							this.load(instruct, this.lineExecuting);
+						} catch (EQLException e) {
+							this.errorMsg(lineTitleToString(this.lineExecuting), "Load failed, error:" + e.getMessage());
+							break script;
+						}
+						break;
+					case file:
+						try {
+							this.fileVar(instruct, this.lineExecuting);
+						} catch (EQLException e) {
+							this.errorMsg(lineTitleToString(this.lineExecuting), "File failed, error:" + e.getMessage());
+							break script;
+						}
+						break;
+					case transaction:
+						try {
+							this.transaction(instruct, this.lineExecuting);
+						} catch (EQLException e) {
+							this.errorMsg(lineTitleToString(this.lineExecuting), "Transaction failed, error:" + e.getMessage());
+							break script;
+						}
+						break;
+					case call:
+						try {
+							this.call(instruct, this.lineExecuting);
+						} catch (EQLException e) {
+							this.errorMsg(lineTitleToString(this.lineExecuting), "Call failed, error:" + e.getMessage());
+							break script;
+						}
+						break;
+					case index:
+						try {
+							this.index(instruct, this.lineExecuting);
+						} catch (EQLException e) {
+							this.errorMsg(lineTitleToString(this.lineExecuting), "Index failed, error:" + e.getMessage());
+							break script;
+						}
+						break;
+					case print:
+						log.debug("Running print function");
+						try {
+							this.print(instruct);
+						} catch (EQLException e) {
+							this.errorMsg("engine", "Unable to print message, error:" + e.getMessage());
+							break script;
+						}
+						break;
+					case exec:
+					case dml:
+					case use:
+						//Pass-through command to connection
+						EQLObject result = this.exec(instruct, true, this.lineExecuting);
+						if (result == null || !this.statementDone(this.lineExecuting, result.getType() != EQLObject.types.cursor))
+							break script;
 						break;
 				}
 			} else {
@@ -184,7 +501,337 @@ public class EQLCommandLineDriver extends EQLUtilities {
 					this.infoMsg("engine", "Skipping instruction #" + this.lineExecuting + ". Lead of line :(" + StringUtils.substring(asgnName, 0, 20).replace('\n', ' ') + "...)");
 				}
 			}
-			this.completedLine = this.lineExecuting;
+			if (!this.txExplicit && this.uncommitted == 0)	// restarts begin after the last commit, instructions a block jumped over are done
+				this.completedLine = Math.max(this.lineExecuting, next);
+			reached = this.lineExecuting;
+		}
+		if (!coalesced.isEmpty() && !this.execCoalesced(coalesced, this.lineExecuting))
+			reached--;
+		this.current = null;
+		this.currentStarted = 0;
+		this.endTransaction(reached == this.lineExecuting);
+		this.reportMetrics();
+	}
+	
+	/**
+	 * Logs the slowest instructions (eql.metrics.top) and writes the report (eql.metrics.file), engines of a matrix
+	 * run add their set number to the file name
+	 */
+	protected void reportMetrics() {
+		if (this.metrics == null)
+			return;
+		this.metrics.end();
+		int top = 0;
+		try {
+			top = Integer.parseInt(this.config.getProperty("eql.metrics.top", "0"));
+		} catch (NumberFormatException e) {
+			this.warnMsg("metrics", "Illegal eql.metrics.top value, expecting a number of instructions, recieved: " + this.config.getProperty("eql.metrics.top"));
+		}
+		if (top > 0) {
+			this.infoMsg("metrics", "Slowest instructions of the run:");
+			for(EQLInstructionStats stat : this.metrics.slowest(top)) {
+				this.infoMsg("metrics", EQLRunMetrics.summary(stat));
+			}
+		}
+		String file = this.config.getProperty("eql.metrics.file");
+		if (file != null && file.length() > 0) {
+			String set = this.logTag.replaceAll("[^0-9]", "");
+			if (set.length() > 0) {
+				int dot = file.lastIndexOf('.');
+				file = (dot > file.lastIndexOf('/') && dot > file.lastIndexOf('\\')) ? file.substring(0, dot) + "-" + set + file.substring(dot) : file + "-" + set;
+			}
+			try {
+				this.metrics.write(file);
+				this.infoMsg("metrics", "Metrics of " + this.metrics.getStats().size() + " instructions written to " + file);
+			} catch (IOException e) {
+				this.errorMsg("metrics", "Unable to write the metrics report " + file + ", error:" + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Charges the reads of a cursor to the instruction that opened it
+	 * @param res cursor, other results are returned as they are
+	 * @param inst
+	 * @param instructNbr
+	 * @param start System.nanoTime when the statement was sent
+	 * @return res
+	 */
+	protected EQLObject trackCursor(EQLObject res, EQLInstruction inst, int instructNbr, long start) {
+		if (res == null || res.getType() != EQLObject.types.cursor)
+			return res;
+		res.setRowCounter(this.rowsProcessed);
+		if (this.metrics == null)
+			return res;
+		EQLInstructionStats stats = this.metrics.get(instructNbr, inst);
+		long nanos = System.nanoTime() - start;
+		stats.executed(nanos, 0);
+		res.setStats(stats, nanos);
+		return res;
+	}
+	
+	/**
+	 * if cond; elseif cond; else; end if; and while cond; end while;
+	 * An if runs the first branch whose condition is true, reaching the next branch ends the block. A while runs its
+	 * block while the condition is true, end while goes back to the condition.
+	 * @param inst
+	 * @param idx instruction index
+	 * @return index of the next instruction
+	 * @throws EQLException when a condition can not be evaluated
+	 */
+	protected int control(EQLInstruction inst, int idx) throws EQLException {
+		EQLInstruction.opcodes op = inst.getOpcode();
+		if (op == EQLInstruction.opcodes.ifBlock) {
+			int at = idx;
+			EQLInstruction branch = inst;
+			while (branch.getExpression() != null && !branch.getExpression().test(this.resolver)) {
+				at = branch.getBranchNext();
+				branch = this.instructions.get(at);
+			}
+			this.debugMsg(lineTitleToString(idx + 1), (branch.getExpression() != null) ? "Condition (" + branch.getExpression() + ") of instruction #" + (at + 1) + " is true"
+					: (branch.getFunction().equals("else")) ? "Running the else branch" : "No condition is true");
+			return at + 1;
+		} else if (op == EQLInstruction.opcodes.whileBlock) {
+			if (inst.getExpression().test(this.resolver))
+				return idx + 1;
+			this.debugMsg(lineTitleToString(idx + 1), "Loop ended, condition (" + inst.getExpression() + ") is false");
+			return inst.getBlockEnd() + 1;
+		} else if (op == EQLInstruction.opcodes.endBlock) {
+			return (this.instructions.get(inst.getBlockStart()).getOpcode() == EQLInstruction.opcodes.whileBlock) ? inst.getBlockStart() : idx + 1;
+		}
+		return inst.getBlockEnd() + 1;	// elseif or else reached at the end of the branch before
+	}
+	
+	/**
+	 * begin; commit; rollback; (optionally followed by work or transaction)
+	 * Statements between begin and commit run in one transaction, the eql_commit_every interval does not apply inside it
+	 * @param inst
+	 * @param instructNbr
+	 * @throws EQLException
+	 */
+	public void transaction(EQLInstruction inst, int instructNbr) throws EQLException {
+		Matcher m = TRANSACTION_SYNTAX.matcher(inst.getAssignVal().toString().trim());
+		if (!m.matches())
+			throw new EQLException("Transaction syntax is 'begin;', 'commit;' or 'rollback;' at ln#" + inst.getStartLine());
+		if (this.conn == null)
+			throw new EQLException("No connection found. Use 'connect your_connection;' to establish a connection");
+		String action = m.group(1).toLowerCase();
+		try {
+			if (action.equals("begin")) {
+				if (this.txExplicit)
+					throw new EQLException("Transaction already started, nested begin at ln#" + inst.getStartLine());
+				if (this.uncommitted > 0)	// work of the commit interval is committed before the transaction starts
+					this.commit();
+				this.conn.setAutoCommit(false);
+				this.txExplicit = true;
+				this.infoMsg(lineTitleToString(instructNbr), "Transaction started");
+			} else {
+				if (!this.txExplicit && this.uncommitted == 0) {
+					this.warnMsg(lineTitleToString(instructNbr), "No open transaction to " + action);
+					return;
+				}
+				int statements = this.uncommitted;
+				if (action.equals("commit"))
+					this.commit();
+				else
+					this.rollback();
+				this.txExplicit = false;
+				this.applyCommitMode();
+				this.infoMsg(lineTitleToString(instructNbr), "Transaction " + ((action.equals("commit")) ? "committed" : "rolled back") + " (" + statements + " statements)");
+			}
+		} catch (SQLException e) {
+			throw new EQLException(action + " failed: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Counts a statement against the open transaction and commits when the eql_commit_every interval is reached,
+	 * the completed line only moves forward when nothing is left uncommitted
+	 * @param line
+	 * @param dml statement changed data (no result set)
+	 * @return false when the commit failed
+	 */
+	protected boolean statementDone(int line, boolean dml) {
+		try {
+			if (dml && this.conn != null && !this.conn.getAutoCommit())
+				this.uncommitted++;
+			int every = this.getControlInt("eql_commit_every", 0);
+			if (!this.txExplicit && every > 0 && this.uncommitted >= every) {
+				int statements = this.uncommitted;
+				this.commit();
+				this.debugMsg(lineTitleToString(line), "Committed " + statements + " statements");
+			}
+		} catch (SQLException e) {
+			this.errorMsg(lineTitleToString(line), "Commit failed, error:" + e.getMessage());
+			return false;
+		}
+		if (!this.txExplicit && this.uncommitted == 0)
+			this.completedLine = line;
+		return true;
+	}
+	
+	/**
+	 * Autocommit is off while eql_commit_every is above 0, turning it off commits the pending statements
+	 * @throws SQLException
+	 */
+	protected void applyCommitMode() throws SQLException {
+		if (this.conn == null || this.txExplicit)
+			return;
+		boolean auto = this.getControlInt("eql_commit_every", 0) <= 0;
+		if (auto && this.uncommitted > 0)
+			this.commit();
+		if (this.conn.getAutoCommit() != auto)
+			this.conn.setAutoCommit(auto);
+	}
+	
+	protected void commit() throws SQLException {
+		this.conn.commit();
+		this.uncommitted = 0;
+	}
+	
+	protected void rollback() throws SQLException {
+		this.conn.rollback();
+		this.uncommitted = 0;
+	}
+	
+	/**
+	 * Ends the open transaction when the script stops. A script that ran to the end commits the interval work but
+	 * rolls back a begin without a commit, a failed script rolls back so a restart repeats the uncommitted statements.
+	 * @param finished
+	 */
+	protected void endTransaction(boolean finished) {
+		if (this.conn == null || (!this.txExplicit && this.uncommitted == 0))
+			return;
+		try {
+			if (finished && !this.txExplicit) {
+				this.commit();
+				this.completedLine = this.instructions.size();
+				this.debugMsg("engine", "Committed statements of the commit interval at end of script");
+			} else {
+				int statements = this.uncommitted;
+				this.rollback();
+				this.warnMsg("engine", "Rolled back " + statements + " uncommitted statements" +
+						((finished) ? ", begin without a commit at end of script" : ", restart resumes after instruction #" + this.completedLine));
+			}
+			this.txExplicit = false;
+			this.applyCommitMode();
+		} catch (SQLException e) {
+			this.errorMsg("engine", "Unable to end the open transaction, error:" + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Statement that can share a round trip with its neighbours, control variable eql_coalesce is the most statements
+	 * per round trip (0 or 1 is off). Only unassigned DML/DDL/SET statements whose variables are all injected as raw
+	 * text qualify, anything returning a result or binding a value runs on its own.
+	 * @param inst
+	 * @return
+	 */
+	protected boolean isCoalescable(EQLInstruction inst) {
+		if (this.getControlInt("eql_coalesce", 0) < 2 || this.conn == null)
+			return false;
+		if (inst.getOpcode() != EQLInstruction.opcodes.dml)
+			return false;
+		for(String name : inst.getParms()) {
+			EQLObject item = this.vars.get(name);
+			if (item == null || item.getType() != EQLObject.types.rawText)
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Sends a group of statements as one JDBC batch, the driver groups them in as few round trips as it supports.
+	 * Update counts are logged per instruction. The batch runs in a transaction that is rolled back when a statement
+	 * fails, drivers that go on after an error (Connector/J continueBatchOnError, SQL Server) would otherwise have
+	 * applied statements a restart runs again (DDL the database commits on its own stays). Inside a begin the open
+	 * transaction is left to the end of the script.
+	 * @param group cleared when done
+	 * @param lastLine instruction number of the last statement in the group
+	 * @return false when a statement failed
+	 */
+	protected boolean execCoalesced(List<EQLInstruction> group, int lastLine) {
+		int firstLine = lastLine - group.size() + 1;
+		List<EQLInstruction> work = new ArrayList<EQLInstruction>(group);
+		group.clear();
+		Statement stmt = null;
+		try {
+			if (work.size() == 1 || !this.conn.getMetaData().supportsBatchUpdates()) {
+				for(int idx=0; idx < work.size(); idx++) {
+					if (this.exec(work.get(idx), true, firstLine + idx) == null || !this.statementDone(firstLine + idx, true))
+						return false;
+				}
+				return true;
+			}
+
+			Stopwatch timer = Stopwatch.createStarted();
+			List<String> statements = new ArrayList<String>();
+			this.sessionPinned = true;
+			stmt = this.conn.createStatement();
+			if (this.queryTimeout > -1)
+				stmt.setQueryTimeout(this.queryTimeout);
+			for(EQLInstruction inst : work) {
+				String statement = inst.getPreparedStmt(this, this.vars);
+				statements.add(statement);
+				stmt.addBatch(statement);
+			}
+			int[] counts;
+			SQLException failed = null;
+			boolean autoCommit = this.conn.getAutoCommit();
+			if (autoCommit)
+				this.conn.setAutoCommit(false);
+			this.running = stmt;
+			try {
+				counts = stmt.executeBatch();
+				if (autoCommit)
+					this.conn.commit();
+			} catch (SQLException se) {
+				counts = (se instanceof BatchUpdateException && ((BatchUpdateException)se).getUpdateCounts() != null) ? ((BatchUpdateException)se).getUpdateCounts() : new int[0];
+				failed = se;
+			} finally {
+				this.running = null;
+				if (failed != null && !this.txExplicit)
+					this.rollback();
+				if (autoCommit)
+					this.conn.setAutoCommit(true);
+			}
+			if (failed != null) {
+				int at = 0;
+				while (at < counts.length && counts[at] != Statement.EXECUTE_FAILED) {
+					at++;
+				}
+				this.errorMsg(lineTitleToString(firstLine + Math.min(at, statements.size() - 1)), failed.getMessage());
+				this.warnMsg(lineTitleToString(firstLine), "Coalesced statements #" + firstLine + "-#" + lastLine + " rolled back" +
+						((this.txExplicit) ? " with the transaction" : ", restart resumes after instruction #" + this.completedLine));
+				return false;
+			}
+			for(int count : counts) {
+				if (count > 0)
+					this.rowsProcessed.addAndGet(count);
+			}
+			int done = 0;
+			while (done < counts.length && done < statements.size()) {
+				String statement = statements.get(done);
+				this.infoMsg(lineTitleToString(firstLine + done),
+						((counts[done] >= 0) ? "Statement affected " + counts[done] + " rows" : "Statement completed successfully") +
+						", coalesced " + (done + 1) + "/" + statements.size() + " runtime:" + elapsedTimeToString(timer) +
+						" (" + StringUtils.substring(statement, 0, 40).replace('\n', ' ') + ((statement.length() > 39) ? "...)" : ")"));
+				if (!this.statementDone(firstLine + done, true))
+					return false;
+				done++;
+			}
+			return true;
+		} catch (SQLException se) {
+			this.errorMsg(lineTitleToString(firstLine), se.getMessage());
+			return false;
+		} finally {
+			if (stmt != null) {
+				try {
+					stmt.close();
+				} catch (SQLException e) {
+					log.warn("Error closing coalesced statement - continuing");
+				}
+			}
 		}
 	}
 	
@@ -221,193 +868,1311 @@ public class EQLCommandLineDriver extends EQLUtilities {
 		}
 	}
 	
-	public String getOneColumn(IASOnDemandDataSource ids, String colName) throws EQLException {
-		List<String> vals = new ArrayList<String>();
-		for(Map<String, Object> row : ids.getData()) {	// pull the rows off the cursor
-			if (!row.containsKey(colName)) {
-				throw new EQLException("Requested column missing:" + colName);
-			}
-			
-			Object oVal = row.get(colName);
-			if (oVal != null && oVal instanceof String) {
-				vals.add("'" + oVal.toString() + "'");
-			} else {
-				if (oVal == null) {
-					log.debug("var:{} is null", colName);
-					vals.add("");
-				} else {
-					log.debug("var:{} instance of:{}", colName, oVal.getClass());
-					vals.add(oVal.toString());
+	/**
+	 * Same as pullCursorColumn, adds index lookups ?[?].col where keyParmName names the key variable
+	 * @param parmName
+	 * @param varText
+	 * @param keyParmName
+	 * @return
+	 * @throws EQLException
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public EQLObject pullCursorColumn(String parmName, String varText, String keyParmName) throws EQLException, SQLException, IOException {
+		EQLObject var = this.vars.get(parmName);
+		if (var == null || var.getType() != EQLObject.types.index) {
+			return this.pullCursorColumn(parmName, varText);
+		}
+		Matcher m = INDEX_REF.matcher(varText);
+		if (keyParmName == null || !m.find()) {
+			return var;		// the index itself
+		}
+		EQLObject key = this.vars.get(keyParmName);
+		if (key == null) {
+			throw new EQLException("Index key variable '" + keyParmName + "' not defined at time of use");
+		}
+		Object val = var.getLookupIndex().lookup(this.toLookupKey(key), m.group(1));
+		if (val == null) {
+			this.debugMsg("engine", "No value in @" + parmName + " for key " + key + " column " + m.group(1));
+		}
+		return this.valueToObject(val);
+	}
+	
+	private Object toLookupKey(EQLObject key) {
+		switch (key.getType()) {
+			case integer:
+				return Long.parseLong(key.toString());
+			case decimal:
+				return new BigDecimal(key.toString());
+			default:
+				return key.toString();
+		}
+	}
+	
+	/**
+	 * Wraps a column value as a typed variable value, the value is not converted to text and parsed again
+	 * @param val
+	 * @return
+	 */
+	protected EQLObject valueToObject(Object val) {
+		if (val == null) {
+			return new EQLObject();
+		} else if (val instanceof Number) {
+			return EQLNumber.of((Number) val);
+		} else if (val instanceof Boolean) {
+			return new EQLBoolean((Boolean) val);
+		} else if (val instanceof java.util.Date) {
+			return new EQLObject((java.util.Date) val);
+		} else {
+			return new EQLString(val.toString());
+		}
+	}
+	
+	public String getOneColumn(IASOnDemandDataSource ids, String colName) throws EQLException {
+		List<String> vals = new ArrayList<String>();
+		for(Map<String, Object> row : ids.getData()) {	// pull the rows off the cursor
+			if (!row.containsKey(colName)) {
+				throw new EQLException("Requested column missing:" + colName);
+			}
+			
+			Object oVal = row.get(colName);
+			if (oVal != null && oVal instanceof String) {
+				vals.add("'" + oVal.toString() + "'");
+			} else {
+				if (oVal == null) {
+					log.debug("var:{} is null", colName);
+					vals.add("");
+				} else {
+					log.debug("var:{} instance of:{}", colName, oVal.getClass());
+					vals.add(oVal.toString());
+				}
+			}
+		}
+		return StringUtils.join(vals, ',');
+	}
+	
+	/**
+	 * Supports:
+	 *   print @cursor;			print ?
+	 *   print @cursor.mycol;	print ?.mycol
+	 *   print @cursor.mycol @cursor.mycol2;	print ?.mycol ?.mycol2;
+	 *   print @value;			print ?;
+	 *   print @value1 @value2;	print ? ?;
+	 *   print Some Text myval=@cursor.col;   print Some Text myval=?.col;   Prints: Some Text myval='sample value'
+	 *   print Just some text;   print Just some text;
+	 * @param inst
+	 * @return
+	 * @throws EQLException
+	 */
+	public boolean print(EQLInstruction inst) throws EQLException {
+		// Scrape off the print and tokenize by space
+		String text = inst.getAssignVal().toString();
+		String refined = text.substring(text.toLowerCase().indexOf("print") + 5).trim();
+		String[] parts = refined.split("\\s+");
+		int pos = -1;
+		
+		StringBuilder sbLine = new StringBuilder();
+		
+		log.debug("Print found instruction has {} parts", parts.length);
+		
+//		if (parts.length == 0) {		// Empty line support 'Print;'
+//			this.infoMsg("Print ", "");
+//		}
+		
+		for(String part : parts) {
+			if (part.indexOf('?') < 0) {		// Segment does not have a variable
+				sbLine.append(((sbLine.length() > 0) ? " " : "") + part);
+			} else {							// Segment has a variable
+				pos++;
+				String parmName = inst.getParms().get(pos);
+				String keyParmName = null;
+				EQLObject item = null;
+				if (part.contains("[?]")) {		// index lookup uses the next parm as the key
+					pos++;
+					keyParmName = inst.getParms().get(pos);
+				}
+				
+				try {
+					item = this.pullCursorColumn(parmName, part, keyParmName);
+				} catch (SQLException | IOException e) {
+					if (sbLine.length() > 0) {	// Drain any static text before throwing an error
+						this.infoMsg("Print ", sbLine.toString());
+					}
+					this.errorMsg("engine", "Unable to assign value from cursor, error:" + e.getMessage());
+					return false;
+				}
+
+				if (item == null) {
+					if (sbLine.length() > 0) {	// Drain any static text before print cursor entries
+						this.infoMsg("Print ", sbLine.toString());
+					}
+					this.errorMsg("print ln#" + inst.getStartLine(), "No value found for var:" + parmName);
+					return false;
+				} else if (item.getType() == EQLObject.types.index) {
+					this.infoMsg("Print ", "- Index @" + parmName + " rows:" + item.getLookupIndex().getRowCount() + " key:" + item.getLookupIndex().getKeyName());
+				} else if (item.getType() == EQLObject.types.cursor) {
+					try {
+						IASOnDemandDataSource ids = this.cursorWindowToJson("cursors." + parmName, 0, 10);
+						String idList = StringUtils.join(ids.getColumnLabels(), ",");
+						this.infoMsg("Print ",  "- Cursor @" + parmName + " --------------");
+						this.infoMsg("Print ", idList);
+						this.infoMsg("Print ", new String(new char[idList.length()]).replace('\0',  '-'));
+						int rownbr = 1;
+						for(Map<String, Object> row : ids.getData()) {
+							List<String> arow = new ArrayList<String>();
+							for(String col : ids.getColumnNames()) {
+								Object val = row.get(col);
+								if (val != null)
+									arow.add(val.toString());
+								else
+									arow.add("");	// null is empty string for now
+							}
+							// spacesToString((2 + parmName.length()) - (Integer.toString(rownbr).length() + 3)) + "r#" + rownbr + "=" + 
+							this.infoMsg("Print ", StringUtils.join(arow, ","));
+							rownbr++;
+						}
+						this.infoMsg("Print ", new String(new char[idList.length()]).replace('\0',  '-'));
+						if (rownbr > 10) {
+							this.infoMsg("Print ", "@" + parmName + " print stops at " + 10 + " rows");
+						}
+					} catch (SQLException e) {
+						this.errorMsg("Print ", "@" + parmName + ":Unable to print cursor, SQL error:" + e.getMessage());
+					} catch (IOException e) {
+						this.errorMsg("Print ", "@" + parmName + ":Unable to print cursor, IO error:" + e.getMessage());
+					}
+				} else {
+					sbLine.append(((sbLine.length() > 0) ? " " : "") + item.toString());
+					// this.infoMsg("var:" + parmName + " type:" + item.printType() + " ln#" + inst.getStartLine(), item.toString());
+				}
+			}
+		}
+		
+		if (sbLine.length() > 0) {	// Drain any remaining static text before exiting
+			this.infoMsg("Print ", sbLine.toString());
+		}
+
+		return true;
+	}
+
+	/**
+	 * Assigns a variable. Cursors count the variables holding them, the cursor closes when the last one is assigned
+	 * another value. Server side cursors are tracked with the instruction that created them, more than eql_max_cursors
+	 * open at once is logged as a warning.
+	 * @param name
+	 * @param val
+	 */
+	protected void setVar(String name, EQLObject val) {
+		if (val != null && val.getType() == EQLObject.types.cursor && val.retain() == 1 && val.isServerCursor()) {
+			this.openCursors.put(val, this.lineExecuting);
+			if (!val.hasPooledConnection() && this.conn != null)
+				this.cursorConns.put(val, this.conn);
+			int max = this.getControlInt("eql_max_cursors", 32);
+			if (this.openCursors.size() > max && !this.cursorsWarned) {
+				this.cursorsWarned = true;
+				this.warnMsg(lineTitleToString(this.lineExecuting), this.openCursors.size() + " open cursors exceed eql_max_cursors (" + max + "), created by instructions " + this.cursorOrigins());
+			}
+		}
+		EQLObject old = this.vars.put(name, val);
+		this.closeCursorIfLastReference(name, old);
+	}
+	
+	/**
+	 * Instruction numbers that created the open cursors, oldest first
+	 * @return
+	 */
+	protected String cursorOrigins() {
+		List<Integer> lines = new ArrayList<Integer>(this.openCursors.values());
+		Collections.sort(lines);
+		StringBuilder sb = new StringBuilder();
+		for(Integer line : lines) {
+			sb.append((sb.length() > 0) ? ", #" : "#").append(line);
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Releases the reference of a variable that no longer holds the cursor, closes it when no variable is left
+	 * @param currentName
+	 * @param cursor
+	 * @return
+	 */
+	protected boolean closeCursorIfLastReference(String currentName, EQLObject cursor) {
+		try {
+			if (cursor != null && cursor.getType() == EQLObject.types.cursor) {
+				if (cursor.release() == 0) {	// Nothing left using this value so close it
+					cursor.close();
+					if (this.openCursors.remove(cursor) != null && this.openCursors.size() <= this.getControlInt("eql_max_cursors", 32))
+						this.cursorsWarned = false;
+					this.debugMsg("exec", "Closing previous cursor stored in '" + currentName + "'");
+					this.releaseRetired(this.cursorConns.remove(cursor));
+					this.closeCursorIfLastReference(currentName, cursor.getSourceCursor());
+				}
+				return true;
+			} else {
+				return false;
+			}
+		} catch (IOException e) {
+			this.errorMsg("closeCursor", "Error closing '" + currentName + "' error from driver:" + e.getMessage());
+			e.printStackTrace();
+		}
+		return false;
+	}
+
+	public void closeConnection() {
+		// Check for any open cursors/statements
+		List<String>markedForDelete = new ArrayList<String>();
+		for(String itemName:this.vars.keySet()) {
+			EQLObject item = this.vars.get(itemName);
+			try {
+				if (item != null && item.getType() == EQLObject.types.cursor) {
+					item.close();
+					this.closeCursorIfLastReference(itemName, item.getSourceCursor());
+					this.openCursors.remove(item);
+					this.vars.put(itemName, null); // removal creates concurrent modification errors while running the for loop
+					markedForDelete.add(itemName);
+					this.debugMsg("close", "Closed cursor named '" + itemName + "'");
+				}
+			} catch (IOException e) {
+				this.errorMsg("closeConnection", "'" + itemName + "' Close error:" + e.getMessage());
+				this.vars.put(itemName, null); // removal creates concurrent modification errors while running the for loop
+			}
+		}
+		for(String key:markedForDelete) {
+			this.vars.remove(key);
+		}
+		for(Map.Entry<EQLObject, Integer> leaked : this.openCursors.entrySet()) {	// still open but no variable holds them
+			this.warnMsg("close", "Cursor created by instruction #" + leaked.getValue() + " was left open, closing it");
+			try {
+				leaked.getKey().close();
+			} catch (IOException e) {
+				this.errorMsg("closeConnection", "Cursor of instruction #" + leaked.getValue() + " close error:" + e.getMessage());
+			}
+		}
+		this.openCursors.clear();
+		this.cursorConns.clear();
+		this.cursorsWarned = false;
+		
+		if (this.conn != null) {
+			try {
+				this.closeOrRelease(this.conn);
+				this.infoMsg("close", "Closed database connection");
+			} catch (SQLException e) {
+				this.errorMsg("run", e.getMessage());
+				e.printStackTrace();
+			}
+			this.conn = null;
+		}
+	}
+	
+	/**
+	 * Called before switching connections. Variables keep their values, client side cursors (cached, join, sort...)
+	 * stay usable. When server cursors are still open on the current connection it is kept aside until the last of
+	 * them closes so they stay readable for cross target join/copy, otherwise it is closed.
+	 */
+	protected void retireConnection() {
+		if (this.conn == null)
+			return;
+		int openCursors = 0;
+		for(Connection owner : this.cursorConns.values()) {
+			if (owner == this.conn)
+				openCursors++;
+		}
+		if (openCursors == 0) {
+			try {
+				this.closeOrRelease(this.conn);
+				this.infoMsg("close", "Closed database connection");
+			} catch (SQLException e) {
+				this.errorMsg("close", e.getMessage());
+			}
+		} else {
+			this.retiredConns.put(this.conn, openCursors);
+			this.debugMsg("connect", "Previous connection kept open for " + openCursors + " open cursors");
+		}
+		this.conn = null;
+	}
+	
+	/**
+	 * A cursor of a connection switched away from closed, the connection closes with its last cursor
+	 * @param owner connection of the cursor, null when it was not tracked
+	 */
+	protected void releaseRetired(Connection owner) {
+		Integer left = (owner == null) ? null : this.retiredConns.get(owner);
+		if (left == null)
+			return;
+		if (left > 1) {
+			this.retiredConns.put(owner, left - 1);
+			return;
+		}
+		this.retiredConns.remove(owner);
+		try {
+			this.closeOrRelease(owner);
+			this.debugMsg("close", "Closed previous connection, its last cursor was closed");
+		} catch (SQLException e) {
+			this.errorMsg("close", e.getMessage());
+		}
+	}
+	
+	public void close() {
+		this.closeConnection();
+		for(Connection retired : this.retiredConns.keySet()) {
+			try {
+				this.closeOrRelease(retired);
+			} catch (SQLException e) {
+				this.errorMsg("close", e.getMessage());
+			}
+		}
+		this.retiredConns.clear();
+		if (!this.sharedPools) {
+			for(EQLConnection pool : this.pools.values()) {
+				pool.close();
+			}
+			this.pools.clear();
+		}
+		this.replicas.clear();
+		this.closeLog();
+	}
+	
+	protected void closeOrRelease(Connection c) throws SQLException {
+		EQLConnection pool = this.pooledConns.remove(c);
+		if (pool != null)
+			pool.release(c);
+		else
+			c.close();
+	}
+	
+	/**
+	 * Streams a cursor into a table on another configured target
+	 *   copy @cursor into target.table;
+	 * Control variables: eql_bulk_threads (writers), eql_bulk_batch (rows per insert batch), eql_bulk_commit (rows per commit, 0 = once at the end)
+	 * @param inst
+	 * @param instructNbr
+	 * @return rows copied
+	 * @throws EQLException
+	 */
+	public long copy(EQLInstruction inst, int instructNbr) throws EQLException {
+		String[] parts = inst.getAssignVal().toString().trim().split("\\s+");
+		if (parts.length != 4 || !parts[1].equals("?") || !parts[2].equalsIgnoreCase("into") || inst.getParms().size() != 1) {
+			throw new EQLException("Copy syntax is 'copy @cursor into target.table;' at ln#" + inst.getStartLine());
+		}
+		int dot = parts[3].indexOf('.');
+		if (dot < 1 || dot == parts[3].length() - 1) {
+			throw new EQLException("Copy destination must be in the format target.table, found '" + parts[3] + "' at ln#" + inst.getStartLine());
+		}
+		String target = parts[3].substring(0, dot);
+		String table = parts[3].substring(dot + 1);
+		String varName = inst.getParms().get(0);
+		EQLObject src = this.vars.get(varName);
+		if (src == null || src.getType() != EQLObject.types.cursor) {
+			throw new EQLException("Copy source @" + varName + " is not a cursor at ln#" + inst.getStartLine());
+		}
+
+		int writers = this.getControlInt("eql_bulk_threads", 2);
+		int batch = this.getControlInt("eql_bulk_batch", 1000);
+		int commitRows = this.getControlInt("eql_bulk_commit", 10000);
+
+		Stopwatch timer = Stopwatch.createStarted();
+		EQLCursorReader reader = new EQLCursorReader(src);
+		reader.setFetchSize(batch);
+		EQLCopy copier = new EQLCopy(reader, this.getPool(target), table, writers, batch, commitRows);
+		this.debugMsg(lineTitleToString(instructNbr), "Copy statement: " + copier.getInsertStatement());
+		long rows = copier.run();
+		this.infoMsg(lineTitleToString(instructNbr), "Copied " + rows + " rows from @" + varName + " into " + target + "." + table +
+				" with " + writers + " writers and " + copier.getCommits() + " commits, runtime:" + elapsedTimeToString(timer));
+		return rows;
+	}
+	
+	/**
+	 * Streams a cursor to a file, the cursor is read to the end
+	 *   export @cursor to 'file' format csv|jsonl|columnar [gzip];
+	 *   export @cursor to @file format csv;
+	 * Columnar files hold eql_export_batch rows (default 65536) per record batch, gzip deflates each batch.
+	 * @param inst
+	 * @param instructNbr
+	 * @return rows written
+	 * @throws EQLException
+	 */
+	public long export(EQLInstruction inst, int instructNbr) throws EQLException {
+		Matcher m = EXPORT_SYNTAX.matcher(inst.getAssignVal().toString().trim());
+		int parmsExpected = (m.matches() && m.group(2) != null) ? 2 : 1;
+		if (!m.matches() || inst.getParms().size() != parmsExpected) {
+			throw new EQLException("Export syntax is 'export @cursor to 'file' format csv|jsonl|columnar [gzip];' at ln#" + inst.getStartLine());
+		}
+		EQLObject src = this.vars.get(inst.getParms().get(0));
+		if (src == null || src.getType() != EQLObject.types.cursor) {
+			throw new EQLException("Export source @" + inst.getParms().get(0) + " is not a cursor at ln#" + inst.getStartLine());
+		}
+		String fileName = m.group(1);
+		if (fileName == null) {
+			EQLObject fileVar = this.vars.get(inst.getParms().get(1));
+			if (fileVar == null)
+				throw new EQLException("Variable '" + inst.getParms().get(1) + "' not defined at time of use. ln#" + inst.getStartLine());
+			fileName = fileVar.toString();
+		}
+		if (m.group(3).equalsIgnoreCase("columnar")) {
+			return this.exportColumnar(inst, instructNbr, src, fileName, m.group(4) != null);
+		}
+		EQLExport.formats format;
+		try {
+			format = EQLExport.formats.valueOf(m.group(3).toLowerCase());
+		} catch (IllegalArgumentException e) {
+			throw new EQLException("Unknown export format '" + m.group(3) + "', expecting csv, jsonl or columnar at ln#" + inst.getStartLine());
+		}
+
+		Stopwatch timer = Stopwatch.createStarted();
+		EQLCursorReader reader = new EQLCursorReader(src);
+		reader.setFetchSize(1000);
+		EQLExport exporter = new EQLExport(reader, Paths.get(fileName), format, m.group(4) != null);
+		long rows = exporter.run();
+		this.infoMsg(lineTitleToString(instructNbr), "Exported " + rows + " rows from @" + inst.getParms().get(0) + " to " + fileName +
+				" (" + exporter.getBytesWritten() / 1024 + "KB), runtime:" + elapsedTimeToString(timer));
+		return rows;
+	}
+	
+	protected long exportColumnar(EQLInstruction inst, int instructNbr, EQLObject src, String fileName, boolean compress) throws EQLException {
+		Stopwatch timer = Stopwatch.createStarted();
+		EQLCursorReader reader = new EQLCursorReader(src);
+		reader.setFetchSize(1000);
+		EQLColumnarExport exporter = new EQLColumnarExport(reader, Paths.get(fileName), compress, this.getControlInt("eql_export_batch", 65536));
+		long rows = exporter.run();
+		this.infoMsg(lineTitleToString(instructNbr), "Exported " + rows + " rows in " + exporter.getBatches() + " batches from @" + inst.getParms().get(0) + " to " + fileName +
+				" (" + exporter.getBytesWritten() / 1024 + "KB), runtime:" + elapsedTimeToString(timer));
+		return rows;
+	}
+	
+	/**
+	 * Parallel load of a CSV file with a header record into a table
+	 *   load 'file' into [target.]table [rejects 'file'];
+	 * Without a configured target prefix the table is on the current connection's target. Records that do not
+	 * convert to the column types go to the rejects file (default file.rejected).
+	 * Control variables: eql_bulk_threads (workers), eql_bulk_batch (rows per insert batch), eql_bulk_commit (rows per commit, 0 = once at the end)
+	 * @param inst
+	 * @param instructNbr
+	 * @return rows loaded
+	 * @throws EQLException
+	 */
+	public long load(EQLInstruction inst, int instructNbr) throws EQLException {
+		Matcher m = LOAD_SYNTAX.matcher(inst.getAssignVal().toString().trim());
+		int parmsExpected = (m.matches() && m.group(2) != null) ? 1 : 0;
+		if (!m.matches() || inst.getParms().size() != parmsExpected) {
+			throw new EQLException("Load syntax is 'load 'file' into [target.]table [rejects 'file'];' at ln#" + inst.getStartLine());
+		}
+		String fileName = m.group(1);
+		if (fileName == null) {
+			EQLObject fileVar = this.vars.get(inst.getParms().get(0));
+			if (fileVar == null)
+				throw new EQLException("Variable '" + inst.getParms().get(0) + "' not defined at time of use. ln#" + inst.getStartLine());
+			fileName = fileVar.toString();
+		}
+		String target = this.target;
+		String table = m.group(3);
+		int dot = table.indexOf('.');
+		if (dot > 0 && this.getConfigItems(table.substring(0, dot)).get("jdbc") != null) {
+			target = table.substring(0, dot);
+			table = table.substring(dot + 1);
+		}
+		if (target == null) {
+			throw new EQLException("Load needs a connection or a target.table destination at ln#" + inst.getStartLine());
+		}
+		String rejectName = (m.group(4) != null) ? m.group(4) : fileName + ".rejected";
+
+		int workers = this.getControlInt("eql_bulk_threads", 2);
+		int batch = this.getControlInt("eql_bulk_batch", 1000);
+		int commitRows = this.getControlInt("eql_bulk_commit", 10000);
+
+		Stopwatch timer = Stopwatch.createStarted();
+		EQLLoad loader = new EQLLoad(Paths.get(fileName), this.getPool(target), table, workers, batch, commitRows, Paths.get(rejectName));
+		long rows = loader.run();
+		this.debugMsg(lineTitleToString(instructNbr), "Load statement: " + loader.getInsertStatement());
+		this.infoMsg(lineTitleToString(instructNbr), "Loaded " + rows + " rows from " + fileName + " into " + target + "." + table + " in " + loader.getChunks() +
+				" chunks with " + workers + " workers and " + loader.getCommits() + " commits, runtime:" + elapsedTimeToString(timer));
+		if (loader.getRowsRejected() > 0) {
+			this.warnMsg(lineTitleToString(instructNbr), loader.getRowsRejected() + " records rejected into " + rejectName + ", first: " + loader.getFirstReject());
+		}
+		return rows;
+	}
+	
+	/**
+	 * Client side hash join of two cursors, the result is a new cursor variable
+	 *   @j = join @probe, @build on probe_col = build_col [and probe_col2 = build_col2];
+	 *   @j = join left @probe, @build on ...;	keeps probe rows without a match
+	 * The build (second) cursor is loaded into memory and spills to disk partitions past eql_mem_mb (default 64),
+	 * the probe (first) cursor is streamed as the result is read.
+	 * @param inst
+	 * @param instructNbr
+	 * @return
+	 * @throws EQLException
+	 */
+	public EQLObject join(EQLInstruction inst, int instructNbr) throws EQLException {
+		Matcher m = JOIN_SYNTAX.matcher(inst.getAssignVal().toString().trim());
+		if (inst.getAssignName() == null || !m.matches() || inst.getParms().size() != 2) {
+			throw new EQLException("Join syntax is '@var = join [left] @cursor1, @cursor2 on col1 = col2 [and col3 = col4];' at ln#" + inst.getStartLine());
+		}
+		boolean leftOuter = m.group(1) != null;
+		EQLObject probeVar = this.vars.get(inst.getParms().get(0));
+		EQLObject buildVar = this.vars.get(inst.getParms().get(1));
+		if (probeVar == null || probeVar.getType() != EQLObject.types.cursor || buildVar == null || buildVar.getType() != EQLObject.types.cursor) {
+			throw new EQLException("Join requires two cursor variables at ln#" + inst.getStartLine());
+		}
+		if (probeVar == buildVar) {
+			throw new EQLException("Join of a cursor with itself is not supported, select it twice at ln#" + inst.getStartLine());
+		}
+
+		EQLCursorReader probe = new EQLCursorReader(probeVar);
+		EQLCursorReader build = new EQLCursorReader(buildVar);
+		String[] pairs = m.group(2).trim().split("(?i)\\s+and\\s+");
+		int[] probeKeys = new int[pairs.length];
+		int[] buildKeys = new int[pairs.length];
+		for(int idx=0; idx < pairs.length; idx++) {
+			Matcher km = JOIN_KEY.matcher(pairs[idx].trim());
+			if (!km.matches()) {
+				throw new EQLException("Join key '" + pairs[idx].trim() + "' must be in the format col1 = col2 at ln#" + inst.getStartLine());
+			}
+			probeKeys[idx] = EQLDataFrame.findColumn(probe.getColumnNames(), probe.getColumnLabels(), km.group(1));
+			buildKeys[idx] = EQLDataFrame.findColumn(build.getColumnNames(), build.getColumnLabels(), km.group(2));
+			if (probeKeys[idx] < 0)
+				throw new EQLException("Join column '" + km.group(1) + "' not found in @" + inst.getParms().get(0));
+			if (buildKeys[idx] < 0)
+				throw new EQLException("Join column '" + km.group(2) + "' not found in @" + inst.getParms().get(1));
+		}
+
+		Stopwatch timer = Stopwatch.createStarted();
+		build.setFetchSize(1000);
+		probe.setFetchSize(1000);
+		EQLHashJoin joiner = new EQLHashJoin(probe, build, probeKeys, buildKeys, leftOuter, this.getMemoryBudget(), 16);
+		EQLObject result = new EQLObject(joiner.execute());
+		probeVar.retain();	// probe rows stream while the result is read, reassigning @probe must not close it
+		result.setSourceCursor(probeVar);
+		this.setVar(inst.getAssignName(), result);
+		this.infoMsg(lineTitleToString(instructNbr), "Join ready (@" + inst.getAssignName() + ") build rows:" + joiner.getBuildRows() +
+				((joiner.isSpilled()) ? " spilled to disk partitions" : " in memory") + ", runtime:" + elapsedTimeToString(timer));
+		return result;
+	}
+	
+	/**
+	 * Streaming group by over a cursor, the result is a new cursor variable with one row per group
+	 *   @s = summarize @cursor [by col1, col2] compute count(*), sum(x), approx_distinct(y), p95(z);
+	 * Other aggregates: count(col), min, max, avg, median. approx_distinct and percentiles use sketches so memory
+	 * depends on the number of groups, never on the number of rows.
+	 * @param inst
+	 * @param instructNbr
+	 * @return
+	 * @throws EQLException
+	 */
+	public EQLObject summarize(EQLInstruction inst, int instructNbr) throws EQLException {
+		Matcher m = SUMMARIZE_SYNTAX.matcher(inst.getAssignVal().toString().trim());
+		if (inst.getAssignName() == null || !m.matches() || inst.getParms().size() != 1) {
+			throw new EQLException("Summarize syntax is '@var = summarize @cursor [by col1, col2] compute count(*), sum(col);' at ln#" + inst.getStartLine());
+		}
+		EQLObject src = this.vars.get(inst.getParms().get(0));
+		if (src == null || src.getType() != EQLObject.types.cursor) {
+			throw new EQLException("Summarize source @" + inst.getParms().get(0) + " is not a cursor at ln#" + inst.getStartLine());
+		}
+
+		EQLCursorReader reader = new EQLCursorReader(src);
+		int[] groupCols = new int[0];
+		if (m.group(1) != null) {
+			String[] cols = m.group(1).trim().split("\\s*,\\s*");
+			groupCols = new int[cols.length];
+			for(int idx=0; idx < cols.length; idx++) {
+				groupCols[idx] = EQLDataFrame.findColumn(reader.getColumnNames(), reader.getColumnLabels(), cols[idx]);
+				if (groupCols[idx] < 0)
+					throw new EQLException("Group by column '" + cols[idx] + "' not found in @" + inst.getParms().get(0));
+			}
+		}
+		List<EQLSummarize.Aggregate> aggs = new ArrayList<EQLSummarize.Aggregate>();
+		for(String expr : m.group(2).trim().split(",")) {
+			aggs.add(EQLSummarize.parse(expr, reader));
+		}
+
+		Stopwatch timer = Stopwatch.createStarted();
+		reader.setFetchSize(1000);
+		EQLSummarize summary = new EQLSummarize(reader, groupCols, aggs);
+		EQLDataFrame frame = summary.execute();
+		if (summary.getStateBytes() > this.getMemoryBudget()) {
+			this.warnMsg(lineTitleToString(instructNbr), "Summarize group state used " + summary.getStateBytes() / 1024 + "KB, over the eql_mem_mb budget");
+		}
+		EQLObject result = new EQLObject(frame.rows());
+		this.setVar(inst.getAssignName(), result);
+		this.infoMsg(lineTitleToString(instructNbr), "Summary ready (@" + inst.getAssignName() + ") rows read:" + summary.getRows() +
+				" groups:" + frame.getRowCount() + ", runtime:" + elapsedTimeToString(timer));
+		return result;
+	}
+	
+	/**
+	 * Builds a hash index over a cursor for in-process lookups, the cursor is read to the end
+	 *   @lkp = index @cursor by key_col;
+	 *   @name = @lkp[@id].name;	print @lkp[@id].name;
+	 * A missing key gives an empty value.
+	 * @param inst
+	 * @param instructNbr
+	 * @return
+	 * @throws EQLException
+	 */
+	public EQLObject index(EQLInstruction inst, int instructNbr) throws EQLException {
+		Matcher m = INDEX_SYNTAX.matcher(inst.getAssignVal().toString().trim());
+		if (inst.getAssignName() == null || !m.matches() || inst.getParms().size() != 1) {
+			throw new EQLException("Index syntax is '@var = index @cursor by key_col;' at ln#" + inst.getStartLine());
+		}
+		EQLObject src = this.vars.get(inst.getParms().get(0));
+		if (src == null || src.getType() != EQLObject.types.cursor) {
+			throw new EQLException("Index source @" + inst.getParms().get(0) + " is not a cursor at ln#" + inst.getStartLine());
+		}
+
+		Stopwatch timer = Stopwatch.createStarted();
+		EQLCursorReader reader = new EQLCursorReader(src);
+		reader.setFetchSize(1000);
+		EQLLookupIndex lookup = EQLLookupIndex.build(reader, m.group(1));
+		if (lookup.getFrame().getBytes() > this.getMemoryBudget()) {
+			this.warnMsg(lineTitleToString(instructNbr), "Index @" + inst.getAssignName() + " uses " + lookup.getFrame().getBytes() / 1024 + "KB, over the eql_mem_mb budget");
+		}
+		EQLObject result = new EQLObject(lookup);
+		this.setVar(inst.getAssignName(), result);
+		this.infoMsg(lineTitleToString(instructNbr), "Index ready (@" + inst.getAssignName() + ") rows:" + lookup.getRowCount() + " key:" + lookup.getKeyName() +
+				((lookup.getDuplicates() > 0) ? " duplicate keys ignored:" + lookup.getDuplicates() : "") + ", runtime:" + elapsedTimeToString(timer));
+		return result;
+	}
+	
+	/**
+	 * File backed variable, the file is streamed into the statement when the variable is bound instead of being
+	 * read into memory
+	 *   @doc = file('/path');			UTF-8 text, setCharacterStream
+	 *   @img = file(@path, binary);	setBinaryStream
+	 * @param inst
+	 * @param instructNbr
+	 * @return
+	 * @throws EQLException
+	 */
+	public EQLObject fileVar(EQLInstruction inst, int instructNbr) throws EQLException {
+		Matcher m = FILE_SYNTAX.matcher(inst.getAssignVal().toString().trim());
+		int parmsExpected = (m.matches() && m.group(2) != null) ? 1 : 0;
+		if (!m.matches() || inst.getParms().size() != parmsExpected) {
+			throw new EQLException("File syntax is '@var = file('path'[, text|binary]);' at ln#" + inst.getStartLine());
+		}
+		String path = m.group(1);
+		if (path == null) {
+			EQLObject pathVar = this.vars.get(inst.getParms().get(0));
+			if (pathVar == null)
+				throw new EQLException("Variable '" + inst.getParms().get(0) + "' not defined at time of use. ln#" + inst.getStartLine());
+			path = pathVar.toString();
+		}
+		File file = new File(path);
+		if (!file.isFile() || !file.canRead()) {
+			throw new EQLException("File " + path + " not found or not readable at ln#" + inst.getStartLine());
+		}
+		boolean binary = m.group(3) != null && m.group(3).equalsIgnoreCase("binary");
+
+		long chars = 0;
+		if (!binary) {		// Drivers want the length in characters, count them with one streaming pass
+			char[] buf = new char[64 * 1024];
+			try (Reader rd = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+				int len = rd.read(buf);
+				while (len >= 0) {
+					chars += len;
+					len = rd.read(buf);
+				}
+			} catch (IOException e) {
+				throw new EQLException("File " + path + " read failed: " + e.getMessage());
+			}
+		}
+		EQLObject result = new EQLObject(file, binary, chars);
+		this.setVar(inst.getAssignName(), result);
+		this.infoMsg(lineTitleToString(instructNbr), "File ready (@" + inst.getAssignName() + ") " + path + " bytes:" + file.length() +
+				((binary) ? " binary" : " chars:" + chars));
+		return result;
+	}
+	
+	/**
+	 * Client side ordering and de-duplication of a cursor, the result is a new cursor variable
+	 *   @o = order @cursor by col1 [desc], col2 [asc];
+	 *   @d = distinct @cursor [by col1, col2];	first row of each key, all columns when no by list
+	 * Rows are sorted in memory up to eql_mem_mb, larger cursors spill sorted runs to temp files that are merged as the
+	 * result is read.
+	 * @param inst
+	 * @param instructNbr
+	 * @return
+	 * @throws EQLException
+	 */
+	public EQLObject sort(EQLInstruction inst, int instructNbr) throws EQLException {
+		Matcher m = SORT_SYNTAX.matcher(inst.getAssignVal().toString().trim());
+		if (inst.getAssignName() == null || !m.matches() || inst.getParms().size() != 1) {
+			throw new EQLException("Syntax is '@var = order @cursor by col1 [desc], col2;' or '@var = distinct @cursor [by col1, col2];' at ln#" + inst.getStartLine());
+		}
+		boolean distinct = m.group(1).equalsIgnoreCase("distinct");
+		if (!distinct && m.group(2) == null) {
+			throw new EQLException("Order requires a 'by' column list at ln#" + inst.getStartLine());
+		}
+		EQLObject src = this.vars.get(inst.getParms().get(0));
+		if (src == null || src.getType() != EQLObject.types.cursor) {
+			throw new EQLException("Sort source @" + inst.getParms().get(0) + " is not a cursor at ln#" + inst.getStartLine());
+		}
+
+		EQLCursorReader reader = new EQLCursorReader(src);
+		int[] keyCols;
+		boolean[] desc;
+		if (m.group(2) == null) {	// distinct over every column
+			keyCols = new int[reader.getColumnTypes().length];
+			desc = new boolean[keyCols.length];
+			for(int idx=0; idx < keyCols.length; idx++) {
+				keyCols[idx] = idx;
+			}
+		} else {
+			String[] cols = m.group(2).trim().split("\\s*,\\s*");
+			keyCols = new int[cols.length];
+			desc = new boolean[cols.length];
+			for(int idx=0; idx < cols.length; idx++) {
+				String[] words = cols[idx].trim().split("\\s+");
+				if (words.length > 2 || (words.length == 2 && !words[1].equalsIgnoreCase("asc") && !words[1].equalsIgnoreCase("desc")))
+					throw new EQLException("Sort column '" + cols[idx].trim() + "' must be 'name [asc|desc]' at ln#" + inst.getStartLine());
+				keyCols[idx] = EQLDataFrame.findColumn(reader.getColumnNames(), reader.getColumnLabels(), words[0]);
+				desc[idx] = words.length == 2 && words[1].equalsIgnoreCase("desc");
+				if (keyCols[idx] < 0)
+					throw new EQLException("Sort column '" + words[0] + "' not found in @" + inst.getParms().get(0));
+			}
+		}
+
+		Stopwatch timer = Stopwatch.createStarted();
+		reader.setFetchSize(1000);
+		EQLExternalSort sorter = new EQLExternalSort(reader, keyCols, desc, distinct, this.getMemoryBudget());
+		EQLObject result = new EQLObject(sorter.execute());
+		this.setVar(inst.getAssignName(), result);
+		this.infoMsg(lineTitleToString(instructNbr), ((distinct) ? "Distinct" : "Order") + " ready (@" + inst.getAssignName() + ") rows read:" + sorter.getRows() +
+				((sorter.getRunCount() > 0) ? ", merging " + sorter.getRunCount() + " runs from disk" : ", sorted in memory") + ", runtime:" + elapsedTimeToString(timer));
+		return result;
+	}
+	
+	/**
+	 * Stored procedure call, one execute returns every result set and the OUT values
+	 *   @rs = call proc(@in, out @total, inout @cnt);
+	 * Result sets are assigned in order to @rs, @rs_2, @rs_3... (@eql_last_stmt when not assigned). The last result
+	 * set stays a database cursor when the driver keeps results open and there are no OUT values, the others are read
+	 * client side before moving on as the driver closes them. OUT values are registered with the type of the current
+	 * variable value (varchar when not defined) and assigned back after the results are read.
+	 * @param inst
+	 * @param instructNbr
+	 * @return number of result sets
+	 * @throws EQLException
+	 */
+	public int call(EQLInstruction inst, int instructNbr) throws EQLException {
+		if (this.conn == null)
+			throw new EQLException("No connection found. Use 'connect your_connection;' to establish a connection");
+		this.sessionPinned = true;	// procedures can change the session
+		String statement = inst.getPreparedStmt(this, this.vars);
+		List<String> names = new ArrayList<String>();	// bound parameters, raw text is already part of the statement
+		for(String name : inst.getParms()) {
+			EQLObject item = this.vars.get(name);
+			if (item == null || item.getType() != EQLObject.types.rawText)
+				names.add(name);
+		}
+		List<String> modes = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder();
+		int pos = 0;
+		while (pos < statement.length()) {	// markers outside of quoted text ('why?' is a literal)
+			int open = pos;
+			while (open < statement.length() && statement.charAt(open) != '\'' && statement.charAt(open) != '"') {
+				open++;
+			}
+			Matcher m = CALL_PARM.matcher(statement.substring(pos, open));
+			StringBuffer part = new StringBuffer();
+			while (m.find()) {
+				modes.add((m.group(1) == null) ? "in" : m.group(1).replaceAll("\\s+", "").toLowerCase());
+				m.appendReplacement(part, "?");
+			}
+			m.appendTail(part);
+			sb.append(part);
+			if (open < statement.length()) {
+				int close = statement.indexOf(statement.charAt(open), open + 1);
+				pos = (close < 0) ? statement.length() : close + 1;
+				sb.append(statement, open, pos);
+			} else {
+				pos = open;
+			}
+		}
+		statement = sb.toString().trim();
+		if (modes.size() != names.size())
+			throw new EQLException("Call has " + modes.size() + " parameter markers for " + names.size() + " variables at ln#" + inst.getStartLine() + ", variables inside quotes must be raw text");
+		if (!statement.startsWith("{"))
+			statement = "{" + statement + "}";	// JDBC escape syntax, translated by the driver
+
+		Stopwatch timer = Stopwatch.createStarted();
+		String base = (inst.getAssignName() != null) ? inst.getAssignName() : "eql_last_stmt";
+		List<EQLObject> results = new ArrayList<EQLObject>();
+		CallableStatement cs = null;
+		boolean owned = false;	// the last cursor closes the statement
+		try {
+			cs = this.conn.prepareCall(statement);
+			if (this.queryTimeout > -1)
+				cs.setQueryTimeout(this.queryTimeout);
+			boolean hasOut = false;
+			boolean debug = this.isDebugEnabled();
+			for(int idx=0; idx < names.size(); idx++) {
+				EQLObject item = this.vars.get(names.get(idx));
+				if (!modes.get(idx).equals("in")) {
+					hasOut = true;
+					cs.registerOutParameter(idx + 1, outParameterType(item));
+				}
+				if (modes.get(idx).equals("out"))
+					continue;
+				if (item == null)
+					throw new EQLException("Variable '" + names.get(idx) + "' not defined at time of use. ln#" + inst.getStartLine());
+				if (debug)
+					this.debugMsg(lineTitleToString(instructNbr), "Parm #" + (idx + 1) + " named " + names.get(idx) + " set as " + item.printType() + " with value:" + item.toString());
+				if (item.getType() == EQLObject.types.integer)
+					cs.setLong(idx + 1, item.toLong());
+				else if (item.getType() == EQLObject.types.decimal && item.getNumber() instanceof Double)
+					cs.setDouble(idx + 1, item.toDouble());
+				else if (item.getType() == EQLObject.types.decimal)
+					cs.setBigDecimal(idx + 1, item.toBigDecimal());
+				else if (item.getType() == EQLObject.types.bool || item.getType() == EQLObject.types.date)
+					cs.setObject(idx + 1, item.toObject());
+				else if (item.getType() == EQLObject.types.cursor || item.getType() == EQLObject.types.index || item.getType() == EQLObject.types.file)
+					throw new EQLException("Variable '" + names.get(idx) + "' of type " + item.printType() + " can not be a call parameter at ln#" + inst.getStartLine());
+				else
+					cs.setString(idx + 1, item.toString());
+			}
+
+			boolean keepOpen = !hasOut && this.conn.getMetaData().supportsMultipleOpenResults();
+			ResultSet open = null;		// result still streaming from the statement
+			int updates = 0;
+			boolean isResult;
+			this.running = cs;
+			try {
+				isResult = cs.execute();
+			} finally {
+				this.running = null;
+			}
+			while (isResult || cs.getUpdateCount() != -1) {
+				if (isResult) {
+					if (open != null)
+						results.set(results.size() - 1, readResult(open));
+					open = cs.getResultSet();
+					results.add(null);
+					if (!keepOpen) {
+						results.set(results.size() - 1, readResult(open));
+						open = null;
+					}
+				} else {
+					updates++;
+				}
+				isResult = (keepOpen) ? cs.getMoreResults(Statement.KEEP_CURRENT_RESULT) : cs.getMoreResults();
+			}
+			if (open != null) {
+				results.set(results.size() - 1, new EQLObject(cs, open));
+				owned = true;
+			}
+
+			StringBuilder assigned = new StringBuilder();
+			for(int idx=0; idx < names.size(); idx++) {
+				if (modes.get(idx).equals("in"))
+					continue;
+				this.setVar(names.get(idx), this.valueToObject(cs.getObject(idx + 1)));
+				assigned.append(" @").append(names.get(idx));
+			}
+			for(int idx=0; idx < results.size(); idx++) {
+				String name = (idx == 0) ? base : base + "_" + (idx + 1);
+				this.setVar(name, results.get(idx));
+				assigned.append(" @").append(name);
+			}
+			if (inst.getAssignName() != null && !results.isEmpty()) {
+				this.setVar("eql_last_stmt", results.get(0));
+			}
+			this.infoMsg(lineTitleToString(instructNbr), "Call ready (" + assigned.toString().trim() + ") results:" + results.size() + " updates:" + updates +
+					" runtime:" + elapsedTimeToString(timer) + " (" + StringUtils.substring(statement, 0, 40).replace('\n', ' ') + ((statement.length() > 39) ? "...)" : ")"));
+			return results.size();
+		} catch (SQLException e) {
+			throw new EQLException("Call " + statement + " failed: " + e.getMessage());
+		} finally {
+			if (!owned && cs != null) {
+				try {
+					cs.close();
+				} catch (SQLException e) {
+					log.warn("Error closing call statement - continuing");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a result set client side so the statement can move to its next result
+	 * @param rs
+	 * @return
+	 * @throws EQLException
+	 */
+	protected EQLObject readResult(ResultSet rs) throws EQLException {
+		EQLObject cursor = new EQLObject(null, rs);
+		try {
+			EQLCursorReader reader = new EQLCursorReader(cursor);
+			reader.setFetchSize(1000);
+			return new EQLObject(EQLDataFrame.load(reader).rows());
+		} finally {
+			try {
+				cursor.close();
+			} catch (IOException e) {
+				log.warn("Error closing call result - continuing");
+			}
+		}
+	}
+
+	/**
+	 * SQL type an OUT parameter is registered with, from the current value of its variable
+	 * @param item
+	 * @return
+	 */
+	protected static int outParameterType(EQLObject item) {
+		if (item != null && item.getType() == EQLObject.types.integer)
+			return Types.BIGINT;
+		if (item != null && item.getType() == EQLObject.types.decimal)
+			return (item.getNumber() instanceof Double) ? Types.DOUBLE : Types.NUMERIC;
+		if (item != null && item.getType() == EQLObject.types.bool)
+			return Types.BOOLEAN;
+		if (item != null && item.getType() == EQLObject.types.date)
+			return Types.TIMESTAMP;
+		return Types.VARCHAR;
+	}
+	
+	/**
+	 * Same statement on several targets, the rows merge into one client side cursor
+	 *   @all = fanout(us-east, us-west, eu) select ...;
+	 * The first column eql_target names the target of each row. Control variable eql_fanout_threads caps the targets
+	 * queried at once (default 8). Failed targets are reported and left out, the instruction fails when all fail.
+	 * @param inst
+	 * @param save
+	 * @param instructNbr
+	 * @return
+	 * @throws EQLException
+	 */
+	public EQLObject fanout(EQLInstruction inst, boolean save, int instructNbr) throws EQLException {
+		String statement = inst.getPreparedStmt(this, this.vars);
+		List<Object> values = this.bindValues(inst);
+		List<EQLFanout.Part> shards = new ArrayList<EQLFanout.Part>();
+		for(String name : inst.getModifierArgs().split(",")) {
+			String target = name.trim();
+			if (target.length() == 0)
+				continue;
+			if (this.config == null || this.config.getProperty("eql." + target + ".jdbc") == null)
+				throw new EQLException("Fanout target '" + target + "' is not configured at ln#" + inst.getStartLine());
+			shards.add(new EQLFanout.Part(target, this.getPool(target), statement, values));
+		}
+		if (shards.isEmpty())
+			throw new EQLException("Fanout syntax is 'fanout(target1, target2...) statement' at ln#" + inst.getStartLine());
+
+		Stopwatch timer = Stopwatch.createStarted();
+		EQLFanout fan = new EQLFanout(shards, this.getControlInt("eql_fanout_threads", 8), this.queryTimeout, this, false, true, false);
+		fan.open();
+		EQLObject result = new EQLObject(fan);
+		String name = inst.getAssignName();
+		if (name != null && name.length() > 0) {
+			this.setVar(name, result);
+		}
+		if (save) {
+			this.setVar("eql_last_stmt", result);
+		}
+		this.infoMsg(lineTitleToString(instructNbr), "Fanout ready (@" + ((name != null) ? name : "eql_last_stmt") + ") targets:" + shards.size() +
+				" runtime:" + elapsedTimeToString(timer) + " (" + StringUtils.substring(statement, 0, 40).replace('\n', ' ') + ((statement.length() > 39) ? "...)" : ")"));
+		return result;
+	}
+
+	/**
+	 * Statement split into key ranges that are read in parallel on pooled connections of the current target
+	 *   @big = partitioned(by id, 16) select ...;
+	 *   @big = partitioned(by id, 16, ordered) select ...;	ranges in key order, rows ordered by the key
+	 * The key is an integer column of the result. Its min and max split the range into equal parts, each part runs
+	 * the statement as a derived table filtered on its range (null keys go to the last part). At most the pool size
+	 * of the target (eql.target.pool) parts run at once. Unordered results interleave the parts as they arrive.
+	 * @param inst
+	 * @param save
+	 * @param instructNbr
+	 * @return
+	 * @throws EQLException
+	 */
+	public EQLObject partitioned(EQLInstruction inst, boolean save, int instructNbr) throws EQLException {
+		Matcher m = PARTITION_ARGS.matcher(inst.getModifierArgs());
+		if (!m.matches())
+			throw new EQLException("Partitioned syntax is 'partitioned(by column, parts[, ordered]) select ...' at ln#" + inst.getStartLine());
+		if (this.conn == null || this.target == null)
+			throw new EQLException("No connection found. Use 'connect your_connection;' to establish a connection");
+		String key = m.group(1);
+		int parts = Integer.parseInt(m.group(2));
+		boolean ordered = m.group(3) != null && m.group(3).equalsIgnoreCase("ordered");
+		String statement = inst.getPreparedStmt(this, this.vars);
+		List<Object> values = this.bindValues(inst);
+		Stopwatch timer = Stopwatch.createStarted();
+
+		Long min = null;
+		Long max = null;
+		try (PreparedStatement stmt = this.conn.prepareStatement("select min(" + key + "), max(" + key + ") from (" + statement + ") eql_part")) {
+			if (this.queryTimeout > -1)
+				stmt.setQueryTimeout(this.queryTimeout);
+			for(int idx=0; idx < values.size(); idx++) {
+				stmt.setObject(idx + 1, values.get(idx));
+			}
+			try (ResultSet rs = stmt.executeQuery()) {
+				if (rs.next() && rs.getObject(1) != null) {
+					if (!(rs.getObject(1) instanceof Number) || !EQLDataFrame.isIntegral(rs.getMetaData().getColumnType(1)))
+						throw new EQLException("Partition key " + key + " must be an integer column at ln#" + inst.getStartLine());
+					min = rs.getLong(1);
+					max = rs.getLong(2);
+				}
+			}
+		} catch (SQLException e) {
+			throw new EQLException("Partition range of " + key + " failed: " + e.getMessage());
+		}
+
+		EQLConnection pool = this.getPool(this.target);
+		String order = (ordered) ? " order by " + key : "";
+		List<EQLFanout.Part> ranges = new ArrayList<EQLFanout.Part>();
+		if (min == null) {	// no keys, one part returns what is there (null keys or nothing)
+			ranges.add(new EQLFanout.Part("1", pool, statement, values));
+		} else {
+			parts = (int) Math.max(1, Math.min(parts, max - min + 1));
+			long step = (max - min) / parts + 1;
+			for(int idx=0; idx < parts; idx++) {
+				List<Object> bound = new ArrayList<Object>(values);
+				bound.add(min + idx * step);
+				String range = key + " >= ?";
+				if (idx < parts - 1) {
+					range += " and " + key + " < ?";
+					bound.add(min + (idx + 1) * step);
+				} else {
+					range = "(" + range + " or " + key + " is null)";
+				}
+				ranges.add(new EQLFanout.Part(Integer.toString(idx + 1), pool, "select * from (" + statement + ") eql_part where " + range + order, bound));
+			}
+		}
+
+		EQLFanout fan = new EQLFanout(ranges, pool.getMaxSize(), this.queryTimeout, this, ordered, false, true);
+		fan.open();
+		EQLObject result = new EQLObject(fan);
+		String name = inst.getAssignName();
+		if (name != null && name.length() > 0) {
+			this.setVar(name, result);
+		}
+		if (save) {
+			this.setVar("eql_last_stmt", result);
+		}
+		this.infoMsg(lineTitleToString(instructNbr), "Partitioned ready (@" + ((name != null) ? name : "eql_last_stmt") + ") parts:" + ranges.size() +
+				((min != null) ? " " + key + ":" + min + ".." + max : "") + ((ordered) ? " ordered" : "") + " runtime:" + elapsedTimeToString(timer) +
+				" (" + StringUtils.substring(statement, 0, 40).replace('\n', ' ') + ((statement.length() > 39) ? "...)" : ")"));
+		return result;
+	}
+
+	/**
+	 * Values of the bound parameters of a statement for setObject, raw text is already part of the statement
+	 * @param inst
+	 * @return
+	 * @throws EQLException
+	 */
+	protected List<Object> bindValues(EQLInstruction inst) throws EQLException {
+		List<Object> values = new ArrayList<Object>();
+		for(String name : inst.getParms()) {
+			EQLObject item = this.vars.get(name);
+			if (item == null)
+				throw new EQLException("Variable '" + name + "' not defined at time of use. ln#" + inst.getStartLine());
+			if (item.getType() == EQLObject.types.rawText)
+				continue;
+			if (item.getType() == EQLObject.types.cursor || item.getType() == EQLObject.types.index || item.getType() == EQLObject.types.file)
+				throw new EQLException("Variable '" + name + "' of type " + item.printType() + " can not be a parameter of a parallel statement at ln#" + inst.getStartLine());
+			values.add(item.toObject());
+		}
+		return values;
+	}
+
+	/**
+	 * Replica for a read statement of the current target, the one with the fewest outstanding queries.
+	 * Replicas are configured as eql.target.replicas=name1,name2 where each name is a target of its own. Reads stay on
+	 * the primary inside a begin/commit and once the commit interval has written so they see their own changes, and
+	 * locking reads (for update, lock in share mode) always run on the primary. Once any other statement (use, DDL,
+	 * SET, writes, calls) ran on the connection the reads stay on it, temporary tables and session settings only
+	 * exist there.
+	 * @param inst
+	 * @return null to use the primary
+	 */
+	protected EQLConnection chooseReplica(EQLInstruction inst) {
+		if (!READ_FUNCTIONS.contains(inst.getFunction()))
+			this.sessionPinned = true;
+		if (this.target == null || this.txExplicit || this.uncommitted > 0 || this.sessionPinned)
+			return null;
+		if (LOCKING_READ.matcher(inst.getAssignVal().toString()).find())
+			return null;
+		List<EQLConnection> pools = this.replicas.get(this.target);
+		if (pools == null) {
+			pools = new ArrayList<EQLConnection>();
+			String names = (this.config != null) ? this.config.getProperty("eql." + this.target + ".replicas", "") : "";
+			for(String name : names.split(",")) {
+				if (name.trim().length() == 0)
+					continue;
+				try {
+					pools.add(this.getPool(name.trim()));
+				} catch (EQLException e) {
+					this.warnMsg("connect", "Replica '" + name.trim() + "' of '" + this.target + "' skipped, error:" + e.getMessage());
+				}
+			}
+			this.replicas.put(this.target, pools);
+		}
+		if (pools.isEmpty())
+			return null;
+		EQLConnection best = null;
+		int start = this.replicaTurn++;
+		for(int idx=0; idx < pools.size(); idx++) {
+			EQLConnection pool = pools.get(Math.abs((start + idx) % pools.size()));
+			if (best == null || pool.getActive() < best.getActive())
+				best = pool;
+		}
+		return best;
+	}
+	
+	/**
+	 * Memory budget in bytes for client side cursor work, control variable eql_mem_mb (default 64)
+	 * @return
+	 */
+	protected long getMemoryBudget() {
+		return this.getControlInt("eql_mem_mb", 64) * 1024L * 1024L;
+	}
+	
+	/**
+	 * Connection pool for a configured target, created on first use. Size is eql.target.pool (default 8), plus the
+	 * engines of a matrix run sharing the pool
+	 * @param target
+	 * @return
+	 * @throws EQLException
+	 */
+	protected EQLConnection getPool(String target) throws EQLException {
+		synchronized (this.pools) {		// shared by the engines of a matrix run
+			EQLConnection pool = this.pools.get(target);
+			if (pool == null) {
+				Map<String,String> configs = this.getConfigItems(target);
+				int size = 8;
+				try {
+					size = Integer.parseInt(configs.get("pool"));
+				} catch (NumberFormatException e) {
+					this.warnMsg("getPool", "Illegal pool size for '" + target + "' using " + size);
 				}
+				size += this.poolReserve;
+				pool = new EQLConnection(target, configs.get("class"), configs.get("jdbc"), configs.get("user"), configs.get("pass"), size);
+				this.pools.put(target, pool);
+				this.debugMsg("getPool", "Connection pool for '" + target + "' created with max size:" + size);
 			}
+			return pool;
 		}
-		return StringUtils.join(vals, ',');
 	}
 	
 	/**
-	 * Supports:
-	 *   print @cursor;			print ?
-	 *   print @cursor.mycol;	print ?.mycol
-	 *   print @cursor.mycol @cursor.mycol2;	print ?.mycol ?.mycol2;
-	 *   print @value;			print ?;
-	 *   print @value1 @value2;	print ? ?;
-	 *   print Some Text myval=@cursor.col;   print Some Text myval=?.col;   Prints: Some Text myval='sample value'
-	 *   print Just some text;   print Just some text;
+	 * Result cache TTL in seconds for a statement, 0 when not cached. The cached(seconds) modifier wins over the
+	 * eql.target.cache setting, which applies to select statements of that target.
 	 * @param inst
 	 * @return
 	 * @throws EQLException
 	 */
-	public boolean print(EQLInstruction inst) throws EQLException {
-		// Scrape off the print and tokenize by space
-		String text = inst.getAssignVal().toString();
-		String refined = text.substring(text.toLowerCase().indexOf("print") + 5).trim();
-		String[] parts = refined.split("\\s+");
-		int pos = -1;
-		
-		StringBuilder sbLine = new StringBuilder();
-		
-		log.debug("Print found instruction has {} parts", parts.length);
-		
-//		if (parts.length == 0) {		// Empty line support 'Print;'
-//			this.infoMsg("Print ", "");
-//		}
-		
-		for(String part : parts) {
-			if (part.indexOf('?') < 0) {		// Segment does not have a variable
-				sbLine.append(((sbLine.length() > 0) ? " " : "") + part);
-			} else {							// Segment has a variable
-				pos++;
-				String parmName = inst.getParms().get(pos);
-				EQLObject item = null;
-				
-				try {
-					item = this.pullCursorColumn(parmName, part);
-				} catch (SQLException | IOException e) {
-					if (sbLine.length() > 0) {	// Drain any static text before throwing an error
-						this.infoMsg("Print ", sbLine.toString());
-					}
-					this.errorMsg("engine", "Unable to assign value from cursor, error:" + e.getMessage());
-					return false;
-				}
-
-				if (item == null) {
-					if (sbLine.length() > 0) {	// Drain any static text before print cursor entries
-						this.infoMsg("Print ", sbLine.toString());
-					}
-					this.errorMsg("print ln#" + inst.getStartLine(), "No value found for var:" + parmName);
-					return false;
-				} else if (item.getType() == EQLObject.types.cursor) {
-					try {
-						IASOnDemandDataSource ids = this.cursorWindowToJson("cursors." + parmName, 0, 10);
-						String idList = StringUtils.join(ids.getColumnLabels(), ",");
-						this.infoMsg("Print ",  "- Cursor @" + parmName + " --------------");
-						this.infoMsg("Print ", idList);
-						this.infoMsg("Print ", new String(new char[idList.length()]).replace('\0',  '-'));
-						int rownbr = 1;
-						for(Map<String, Object> row : ids.getData()) {
-							List<String> arow = new ArrayList<String>();
-							for(String col : ids.getColumnNames()) {
-								Object val = row.get(col);
-								if (val != null)
-									arow.add(val.toString());
-								else
-									arow.add("");	// null is empty string for now
-							}
-							// spacesToString((2 + parmName.length()) - (Integer.toString(rownbr).length() + 3)) + "r#" + rownbr + "=" + 
-							this.infoMsg("Print ", StringUtils.join(arow, ","));
-							rownbr++;
-						}
-						this.infoMsg("Print ", new String(new char[idList.length()]).replace('\0',  '-'));
-						if (rownbr > 10) {
-							this.infoMsg("Print ", "@" + parmName + " print stops at " + 10 + " rows");
-						}
-					} catch (SQLException e) {
-						this.errorMsg("Print ", "@" + parmName + ":Unable to print cursor, SQL error:" + e.getMessage());
-					} catch (IOException e) {
-						this.errorMsg("Print ", "@" + parmName + ":Unable to print cursor, IO error:" + e.getMessage());
-					}
-				} else {
-					sbLine.append(((sbLine.length() > 0) ? " " : "") + item.toString());
-					// this.infoMsg("var:" + parmName + " type:" + item.printType() + " ln#" + inst.getStartLine(), item.toString());
-				}
+	protected int getCacheTtl(EQLInstruction inst) throws EQLException {
+		if (inst.getAssignName() == null)
+			return 0;
+		if ("cached".equals(inst.getModifier())) {
+			try {
+				return Integer.parseInt(inst.getModifierArgs());
+			} catch (NumberFormatException e) {
+				throw new EQLException("Cached syntax is '@var = cached(seconds) select ...;' at ln#" + inst.getStartLine());
 			}
 		}
-		
-		if (sbLine.length() > 0) {	// Drain any remaining static text before exiting
-			this.infoMsg("Print ", sbLine.toString());
+		if (this.target != null && (inst.getFunction().equals("select") || inst.getFunction().equals("with"))) {
+			try {
+				return Integer.parseInt(this.getConfigItems(this.target).get("cache"));
+			} catch (NumberFormatException e) {
+				this.warnMsg("engine", "Illegal cache setting for '" + this.target + "', results are not cached");
+			}
 		}
-
-		return true;
+		return 0;
 	}
-
 	
-	protected boolean closeCursorIfLastReference(String currentName, EQLObject cursor) {
-		try {
-			if (cursor != null && cursor.getType() == EQLObject.types.cursor) {
-				int refCnt = 0;
-				for(String itemName:this.vars.keySet()) {
-					EQLObject item = this.vars.get(itemName);
-					if (item != null && item.getType() == EQLObject.types.cursor && item == cursor) {
-						refCnt++;
-					}
-				}
-				
-				if (refCnt == 0) {	// Nothing left using this value so close it
-					cursor.getCursor().close();
-					cursor.getStatement().close();
-					this.debugMsg("exec", "Closing previous cursor stored in '" + currentName + "'");
-				}
-				return true;
-			} else {
-				return false;
+	/**
+	 * Reads a cursor into the result cache. Reading stops at the cache size limit or the eql_mem_mb budget, a larger
+	 * result is not cached and the rows read so far are kept in the cursor cache ahead of the unread rows.
+	 * @param ers cursor of the statement
+	 * @param cacheKey
+	 * @param instructNbr
+	 * @return cursor over the cached rows, or ers when the result was too large
+	 * @throws EQLException
+	 * @throws IOException
+	 */
+	protected EQLObject cacheResult(EQLObject ers, String cacheKey, int instructNbr) throws EQLException, IOException {
+		EQLCursorReader reader = new EQLCursorReader(ers);
+		reader.setFetchSize(1000);
+		EQLDataFrame frame = new EQLDataFrame(reader.getColumnNames(), reader.getColumnLabels(), reader.getColumnTypes());
+		long limit = Math.min(this.getResultCache().getMaxBytes(), this.getMemoryBudget());
+		Object[] row = reader.next();
+		while (row != null && frame.getBytes() <= limit) {
+			frame.add(row);
+			row = reader.next();
+		}
+		if (row == null) {
+			ers.close();
+			this.getResultCache().put(cacheKey, frame);
+			return new EQLObject(frame.rows());
+		}
+		this.debugMsg(lineTitleToString(instructNbr), "Result is over " + limit / 1024 + "KB after " + frame.getRowCount() + " rows, not cached");
+		ers.getCursor_cols().addAll(reader.getColumnNames());
+		ers.getCursor_labels().addAll(reader.getColumnLabels());
+		for(int idx=0; idx <= frame.getRowCount(); idx++) {	// rows read so far, then the row over the limit
+			Map<String,Object> cachedRow = new LinkedTreeMap<String,Object>();
+			for(int col=0; col < frame.getColumnCount(); col++) {
+				cachedRow.put(reader.getColumnNames().get(col), (idx < frame.getRowCount()) ? frame.get(idx, col) : row[col]);
 			}
-		} catch (SQLException e) {
-			this.errorMsg("closeCursor", "Error closing '" + currentName + "' error from driver:" + e.getMessage());
-			e.printStackTrace();
+			ers.getCursor_cache().add(cachedRow);
 		}
-		return false;
+		frame.clear();
+		return ers;
 	}
-
-	public void closeConnection() {
-		// Check for any open cursors/statements
-		List<String>markedForDelete = new ArrayList<String>();
-		for(String itemName:this.vars.keySet()) {
-			EQLObject item = this.vars.get(itemName);
-			try {
-				if (item != null && item.getType() == EQLObject.types.cursor) {
-					if (!item.getCursor().isClosed()) {
-						item.getCursor().close();
-					}
-					if (!item.getStatement().isClosed()) {
-						item.getStatement().close();
-					}
-					this.vars.put(itemName, null); // removal creates concurrent modification errors while running the for loop
-					markedForDelete.add(itemName);
-					this.debugMsg("close", "Closed cursor named '" + itemName + "'");
+	
+	/**
+	 * Disk result cache, eql.cache.dir (default the temp directory) limited to eql.cache.mb (default 256)
+	 * @return
+	 * @throws EQLException
+	 */
+	protected EQLResultCache getResultCache() throws EQLException {
+		if (this.resultCache == null) {
+			String dir = System.getProperty("java.io.tmpdir") + File.separator + "eql-cache";
+			long mb = 256;
+			if (this.config != null) {
+				dir = this.config.getProperty("eql.cache.dir", dir);
+				try {
+					mb = Long.parseLong(this.config.getProperty("eql.cache.mb", "256"));
+				} catch (NumberFormatException e) {
+					this.warnMsg("engine", "Illegal eql.cache.mb setting, using " + mb);
 				}
-			} catch (SQLException e) {
-				this.errorMsg("closeConnection", "'" + itemName + "' Close error:" + e.getMessage());
-				this.vars.put(itemName, null); // removal creates concurrent modification errors while running the for loop
 			}
+			this.resultCache = new EQLResultCache(new File(dir), mb * 1024L * 1024L);
+			this.debugMsg("engine", "Result cache at " + dir + " limited to " + mb + "MB");
 		}
-		for(String key:markedForDelete) {
-			this.vars.remove(key);
-		}
-		
-		if (this.conn != null) {
-			try {
-				this.conn.close();
-				this.infoMsg("close", "Closed database connection");
-			} catch (SQLException e) {
-				this.errorMsg("run", e.getMessage());
-				e.printStackTrace();
-			}
-			this.conn = null;
+		return this.resultCache;
+	}
+	
+	/**
+	 * Typed text of the bound parameters of a statement, part of the result cache key
+	 * @param inst
+	 * @return
+	 */
+	protected String boundValuesToString(EQLInstruction inst) {
+		StringBuilder bound = new StringBuilder();
+		for (String name : inst.getParms()) {
+			EQLObject item = this.vars.get(name);
+			if (item != null && item.getType() != EQLObject.types.rawText)	// raw text is already part of the statement
+				bound.append(item.printType()).append(':').append(item.toString()).append('\u0001');
+			if (item != null && item.getType() == EQLObject.types.file)	// file content changes show as a new size or time
+				bound.append(item.getFile().length()).append(':').append(item.getFile().lastModified()).append('\u0001');
 		}
+		return bound.toString();
 	}
 	
-	public void close() {
-		this.closeConnection();
+	/**
+	 * Integer control variable (eql_*) value or the default when it is not set
+	 * @param name
+	 * @param defaultVal
+	 * @return
+	 */
+	protected int getControlInt(String name, int defaultVal) {
+		EQLObject val = this.vars.get(name);
+		if (val != null && val.getType() == EQLObject.types.integer) {
+			return val.toInt();
+		}
+		return defaultVal;
 	}
 	
 	/**
@@ -418,6 +2183,27 @@ public class EQLCommandLineDriver extends EQLUtilities {
 	 */
 	public EQLObject exec(EQLInstruction inst, boolean save, int instructNbr) {
 		PreparedStatement stmt = null;
+		boolean owned = false;		// a cursor took the statement, it closes with the cursor
+		Connection db = this.conn;
+		EQLConnection replica = null;		// set while a replica connection is held by this call
+		List<Closeable> streams = new ArrayList<Closeable>();	// file parameters, open until the statement ran
+		long opened = System.nanoTime();
+		if ("fanout".equals(inst.getModifier())) {	// runs on the listed targets, not the current connection
+			try {
+				return this.trackCursor(this.fanout(inst, save, instructNbr), inst, instructNbr, opened);
+			} catch (EQLException e) {
+				this.errorMsg(lineTitleToString(instructNbr), "Fanout failed, error:" + e.getMessage());
+				return null;
+			}
+		}
+		if ("partitioned".equals(inst.getModifier())) {
+			try {
+				return this.trackCursor(this.partitioned(inst, save, instructNbr), inst, instructNbr, opened);
+			} catch (EQLException e) {
+				this.errorMsg(lineTitleToString(instructNbr), "Partitioned failed, error:" + e.getMessage());
+				return null;
+			}
+		}
 		try {
 			if (conn == null || conn.isClosed()) {
 				if (save)
@@ -441,52 +2227,148 @@ public class EQLCommandLineDriver extends EQLUtilities {
 			log.debug("Preparing statement:{}", statement);
 			
 			Stopwatch timer = Stopwatch.createStarted();
+			EQLInstructionStats stats = (this.metrics != null) ? this.metrics.get(instructNbr, inst) : null;
+			long prepareStart = System.nanoTime();
 			
-			stmt = conn.prepareStatement(statement); //, ResultSet.TYPE_SCROLL_INSENSITIVE);
-			if (this.queryTimeout > -1)
-				stmt.setQueryTimeout(this.queryTimeout);
+			EQLDataFrame cached = null;
+			String cacheKey = null;
+			int cacheTtl = this.getCacheTtl(inst);
+			if (cacheTtl > 0) {
+				cacheKey = EQLResultCache.key(this.target, statement, this.boundValuesToString(inst));
+				cached = this.getResultCache().get(cacheKey, cacheTtl);
+			}
+			if (cached == null) {	// A cache hit never touches the database
+				replica = this.chooseReplica(inst);
+				if (replica != null) {
+					try {
+						db = replica.acquire();
+						this.debugMsg(lineTitleToString(instructNbr), "Read sent to replica '" + replica.getTarget() + "'");
+					} catch (SQLException e) {
+						this.warnMsg(lineTitleToString(instructNbr), "Replica '" + replica.getTarget() + "' unavailable, reading from the primary. Error:" + e.getMessage());
+						replica = null;
+					}
+				}
+				EQLEvents.Prepare prepared = (EQLEvents.ENABLED) ? new EQLEvents.Prepare() : null;
+				if (prepared != null)
+					prepared.begin();
+				stmt = db.prepareStatement(statement); //, ResultSet.TYPE_SCROLL_INSENSITIVE);
+				if (this.queryTimeout > -1)
+					stmt.setQueryTimeout(this.queryTimeout);
 			
-//			stmt = conn.prepareStatement(inst.getAssignVal().toString()); //, ResultSet.TYPE_SCROLL_INSENSITIVE);
+//				stmt = conn.prepareStatement(inst.getAssignVal().toString()); //, ResultSet.TYPE_SCROLL_INSENSITIVE);
 
-			String currentVal = "";
-			try {
-				int idx = 1;
-				int seq = 1;
-				for (String val : inst.getParms()) {
-					currentVal = val;
-					EQLObject item = this.vars.get(val);
-					if (item.getType() == EQLObject.types.string) {
-						this.debugMsg(lineTitleToString(instructNbr), "Parm #" + seq + " named " + val + " set as string with value:" + item.toString());
-						stmt.setString(idx, item.toString());
-					} else if (item.getType() == EQLObject.types.rawText) {
-						//this.debugMsg("exec", "Parm #" + idx + " named " + val + " ignored as already direct injected");
-						idx--; // drop back one as this was already direct injected
-					} else if (item.getType() == EQLObject.types.integer) {
-						this.debugMsg(lineTitleToString(instructNbr), "Parm #" + seq + " named " + val + " set as integer with value:" + item.toString());
-						stmt.setInt(idx, item.toInt());
-					} else if (item.getType() == EQLObject.types.decimal) {
-						this.debugMsg(lineTitleToString(instructNbr), "Parm #" + seq + " named " + val + " set as double with value:" + item.toString());
-						stmt.setDouble(idx, item.toDouble());
-					} else {
-						this.debugMsg(lineTitleToString(instructNbr), "Parm #" + seq + " named " + val + " set as command string with value:" + item.toString());
-						stmt.setString(idx, item.toString());
+				String currentVal = "";
+				try {
+					int idx = 1;
+					int seq = 1;
+					boolean debug = this.isDebugEnabled();
+					for (String val : inst.getParms()) {
+						currentVal = val;
+						EQLObject item = this.vars.get(val);
+						if (item.getType() == EQLObject.types.string) {
+							if (debug)
+								this.debugMsg(lineTitleToString(instructNbr), "Parm #" + seq + " named " + val + " set as string with value:" + item.toString());
+							stmt.setString(idx, item.toString());
+						} else if (item.getType() == EQLObject.types.rawText) {
+							//this.debugMsg("exec", "Parm #" + idx + " named " + val + " ignored as already direct injected");
+							idx--; // drop back one as this was already direct injected
+						} else if (item.getType() == EQLObject.types.integer) {
+							if (debug)
+								this.debugMsg(lineTitleToString(instructNbr), "Parm #" + seq + " named " + val + " set as integer with value:" + item.toString());
+							stmt.setLong(idx, item.toLong());
+						} else if (item.getType() == EQLObject.types.decimal && item.getNumber() instanceof Double) {
+							if (debug)
+								this.debugMsg(lineTitleToString(instructNbr), "Parm #" + seq + " named " + val + " set as double with value:" + item.toString());
+							stmt.setDouble(idx, item.toDouble());
+						} else if (item.getType() == EQLObject.types.decimal) {
+							if (debug)
+								this.debugMsg(lineTitleToString(instructNbr), "Parm #" + seq + " named " + val + " set as decimal with value:" + item.toString());
+							stmt.setBigDecimal(idx, item.toBigDecimal());
+						} else if (item.getType() == EQLObject.types.bool) {
+							if (debug)
+								this.debugMsg(lineTitleToString(instructNbr), "Parm #" + seq + " named " + val + " set as boolean with value:" + item.toString());
+							stmt.setBoolean(idx, item.toBoolean());
+						} else if (item.getType() == EQLObject.types.date) {
+							if (debug)
+								this.debugMsg(lineTitleToString(instructNbr), "Parm #" + seq + " named " + val + " set as date with value:" + item.toString());
+							stmt.setObject(idx, item.toDate());
+						} else if (item.getType() == EQLObject.types.file) {
+							if (debug)
+								this.debugMsg(lineTitleToString(instructNbr), "Parm #" + seq + " named " + val + " streamed from file:" + item.toString());
+							if (item.isBinary()) {
+								InputStream in = new BufferedInputStream(new FileInputStream(item.getFile()), 64 * 1024);
+								streams.add(in);
+								stmt.setBinaryStream(idx, in, item.getFile().length());
+							} else {
+								Reader rd = new BufferedReader(new InputStreamReader(new FileInputStream(item.getFile()), StandardCharsets.UTF_8), 64 * 1024);
+								streams.add(rd);
+								stmt.setCharacterStream(idx, rd, item.getCharLength());
+							}
+						} else {
+							if (debug)
+								this.debugMsg(lineTitleToString(instructNbr), "Parm #" + seq + " named " + val + " set as command string with value:" + item.toString());
+							stmt.setString(idx, item.toString());
+						}
+						idx++;
+						seq++;
 					}
-					idx++;
-					seq++;
+				} catch(SQLException se) {
+					this.errorMsg(lineTitleToString(instructNbr), "SQL Exception processing variable '" + currentVal + "'. Error is :" + se.getMessage());
+					se.printStackTrace();
+					return null;
+				} catch(IOException ie) {
+					this.errorMsg(lineTitleToString(instructNbr), "Unable to open file for variable '" + currentVal + "'. Error is :" + ie.getMessage());
+					return null;
+				} catch(NullPointerException se) {
+					this.errorMsg(lineTitleToString(instructNbr), "Failed to locate query parameter named '" + currentVal + "'. The variable is missing or not defined. Make sure to escape the database command @ symbols with \\@ if sending to the database engine.");
+					se.printStackTrace();
+					return null;
+				}
+				if (prepared != null)
+					prepared.end();
+				if (prepared != null && prepared.shouldCommit()) {
+					prepared.instruction = instructNbr;
+					prepared.function = String.valueOf(inst.getOpcode());
+					prepared.sqlHash = EQLEvents.hash(statement);
+					prepared.parameters = inst.getParms().size();
+					prepared.commit();
 				}
-			} catch(SQLException se) {
-				this.errorMsg(lineTitleToString(instructNbr), "SQL Exception processing variable '" + currentVal + "'. Error is :" + se.getMessage());
-				se.printStackTrace();
-				return null;
-			} catch(NullPointerException se) {
-				this.errorMsg(lineTitleToString(instructNbr), "Failed to locate query parameter named '" + currentVal + "'. The variable is missing or not defined. Make sure to escape the database command @ symbols with \\@ if sending to the database engine.");
-				se.printStackTrace();
-				return null;
 			}
 
 			ResultSet rs  = null;
 			EQLObject ers = null;
-			if (!stmt.execute()) {	// True means a result was obtained
+			long executeNanos = -1;
+			boolean hasResult = true;
+			if (cached == null) {
+				long executeStart = System.nanoTime();
+				if (stats != null)
+					stats.prepared(executeStart - prepareStart);
+				EQLEvents.Execute executed = (EQLEvents.ENABLED) ? new EQLEvents.Execute() : null;
+				if (executed != null)
+					executed.begin();
+				this.running = stmt;
+				try {
+					hasResult = stmt.execute();
+				} finally {
+					this.running = null;
+				}
+				if (executed != null)
+					executed.end();
+				executeNanos = System.nanoTime() - executeStart;
+				if (executed != null && executed.shouldCommit()) {
+					executed.instruction = instructNbr;
+					executed.function = String.valueOf(inst.getOpcode());
+					executed.sqlHash = EQLEvents.hash(statement);
+					executed.rowsAffected = (hasResult) ? 0 : stmt.getUpdateCount();
+					executed.cursor = hasResult;
+					executed.commit();
+				}
+				if (stats != null)
+					stats.executed(executeNanos, (hasResult) ? 0 : stmt.getUpdateCount());
+				if (!hasResult && stmt.getUpdateCount() > 0)
+					this.rowsProcessed.addAndGet(stmt.getUpdateCount());
+			}
+			if (!hasResult) {	// True means a result was obtained
 				if (stmt.getUpdateCount() > -1)
 					ers = new EQLObject("Statement affected " + stmt.getUpdateCount() + " rows, runtime:" + elapsedTimeToString(timer) + " (" + StringUtils.substring(statement, 0, 40) + ((statement.length() > 39) ? "...)" : ")"));
 				else
@@ -494,16 +2376,32 @@ public class EQLCommandLineDriver extends EQLUtilities {
 				
 				this.infoMsg(lineTitleToString(instructNbr), ers.toString());
 			} else {
-				rs = stmt.getResultSet();
-				ers = new EQLObject(stmt, rs);
+				if (cached != null) {
+					ers = new EQLObject(cached.rows());
+					ers.setRowCounter(this.rowsProcessed);
+					if (stats != null)
+						ers.setStats(stats, -1);
+				} else {
+					rs = stmt.getResultSet();
+					ers = new EQLObject(stmt, rs);
+					owned = true;
+					ers.setRowCounter(this.rowsProcessed);
+					if (stats != null)
+						ers.setStats(stats, executeNanos);
+					if (replica != null) {	// the cursor owns the replica connection from here
+						ers.setPooledConnection(replica, db);
+						replica = null;
+					}
+					if (cacheKey != null)	// Results are read in full to store them, the cursor is replaced by the rows read
+						ers = this.cacheResult(ers, cacheKey, instructNbr);
+				}
 				if (inst.getAssignName() != null && inst.getAssignName().length() > 0) {
-					EQLObject ers_old = this.vars.put(inst.getAssignName(), ers);		// Returns old value if replacement was performed
-					this.closeCursorIfLastReference(inst.getAssignName(), ers_old);
+					this.setVar(inst.getAssignName(), ers);
 					this.infoMsg(
 							lineTitleToString(instructNbr),
 							"Results ready (@" + inst.getAssignName() + 
 								((save)? " and @eql_last_stmt" : "") +
-								") runtime:" + elapsedTimeToString(timer) + 
+								")" + ((cached != null) ? " from cache" : "") + " runtime:" + elapsedTimeToString(timer) + 
 								" (" + StringUtils.substring(statement, 0, 40).replace('\n', ' ') +
 								((statement.length() > 39) ? "...)" : ")")
 							);
@@ -516,20 +2414,36 @@ public class EQLCommandLineDriver extends EQLUtilities {
 							);
 				}
 				if (save) {
-					EQLObject ers_old = this.vars.put("eql_last_stmt", ers);		// Returns old value if replacement was performed
-					if (ers_old != null) {
-						this.closeCursorIfLastReference("eql_last_stmt", ers_old);
-					}
+					this.setVar("eql_last_stmt", ers);
 					this.debugMsg(lineTitleToString(instructNbr), "Executed query, results ready");
 				}
 			}
 			return ers;
+		} catch(EQLException | IOException ee) {
+			this.errorMsg(lineTitleToString(instructNbr), ee.getMessage());
+			return null;
 		} catch(SQLException | NullPointerException se) {
 			this.errorMsg(lineTitleToString(instructNbr), se.getMessage());
 			//Handle errors for JDBC
 			se.printStackTrace();
 			return null;
-		} 
+		} finally {
+			for(Closeable stream : streams) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+					log.warn("Error closing file parameter stream - continuing");
+				}
+			}
+			try {
+				if (stmt != null && !owned)	// statements without a cursor (DML, DDL, failed binds) close here
+					stmt.close();
+			} catch (SQLException e) {
+				log.warn("Error closing statement - continuing");
+			}
+			if (replica != null)
+				replica.release(db);
+		}
 	}
 	
 	protected String lineTitleToString(int lineNbr) {
@@ -564,6 +2478,60 @@ public class EQLCommandLineDriver extends EQLUtilities {
 		return String.format("%.1f", unit) + txt;
 	}
 	
+	/**
+	 * Printable copy of a cached cursor row, numbers are typed for expressions over pulled columns and dates are
+	 * epoch milliseconds. Rows of client side cursors are returned as they are.
+	 * @param eCursor
+	 * @param row
+	 * @return
+	 * @throws SQLException
+	 */
+	protected Map<String,Object> displayRow(EQLObject eCursor, Map<String,Object> row) throws SQLException {
+		if (eCursor.getRowSource() != null || eCursor.getRsmd() == null)
+			return row;
+		Map<String,Object> display = new LinkedTreeMap<String,Object>();
+		List<String> cols = eCursor.getCursor_cols();
+		for(int idx=0; idx < cols.size(); idx++) {
+			display.put(cols.get(idx), displayValue(row.get(cols.get(idx)), eCursor.getRsmd().getColumnType(idx + 1)));
+		}
+		return display;
+	}
+	
+	protected static Object displayValue(Object val, int colType) throws SQLException {
+		if (val == null)
+			return null;
+		switch (colType) {
+			case Types.INTEGER:
+				return (val instanceof Number) ? Integer.valueOf(((Number)val).intValue()) : val;
+			case Types.BIGINT:
+			case Types.SMALLINT:
+			case Types.TINYINT:
+				return (val instanceof Number) ? Long.valueOf(((Number)val).longValue()) : val;
+			case Types.DECIMAL:
+			case Types.NUMERIC:
+				return (val instanceof Number && !(val instanceof BigDecimal)) ? new BigDecimal(val.toString()) : val;
+			case Types.BOOLEAN:
+			case Types.BIT:
+				return (val instanceof Number) ? Boolean.valueOf(((Number)val).intValue() != 0) : val;
+			case Types.DOUBLE:
+				return (val instanceof Number) ? Double.valueOf(((Number)val).doubleValue()) : val;
+			case Types.FLOAT:
+				return (val instanceof Number) ? Float.valueOf(((Number)val).floatValue()) : val;
+			case Types.DATE:
+				return (val instanceof java.util.Date) ? Long.valueOf(((java.util.Date)val).getTime()) : val;
+			default:
+				if (val instanceof java.sql.Clob)
+					return ((java.sql.Clob)val).getSubString(1, (int)((java.sql.Clob)val).length());
+				if (val instanceof java.sql.Blob)
+					val = ((java.sql.Blob)val).getBytes(1, (int)((java.sql.Blob)val).length());
+				if (val instanceof byte[])	// binary shows as base64 like exports write it
+					return java.util.Base64.getEncoder().encodeToString((byte[])val);
+				if (val instanceof java.sql.Timestamp && ((java.sql.Timestamp)val).getNanos() == 0)	// whole seconds print without .0
+					return StringUtils.removeEnd(val.toString(), ".0");
+				return val.toString();
+		}
+	}
+	
 	public IASOnDemandDataSource cursorWindowToJson(String name, int start, int end) throws EQLException, SQLException, IOException {
 		IASOnDemandDataSource ldds = new IASOnDemandDataSource();
 		String tableName = "";
@@ -601,6 +2569,7 @@ public class EQLCommandLineDriver extends EQLUtilities {
 			}
 			
 			ResultSet cursor = eCursor.getCursor();
+			EQLRowSource source = eCursor.getRowSource();	// Client side cursors (join...) have no ResultSet
 
 //			if (!cursor.absolute(start)) {
 //				throw new EQLException("Request to moving cursor '" + name + "' to row #" + start + " pushed it beyond the result set boundary.");
@@ -610,7 +2579,7 @@ public class EQLCommandLineDriver extends EQLUtilities {
 			if (end == 0)
 				end = 1000;
 						
-			if (eCursor.getRsmd() == null)
+			if (source == null && eCursor.getRsmd() == null)
 				eCursor.setRsmd(cursor.getMetaData());
 			
 			try {
@@ -622,12 +2591,12 @@ public class EQLCommandLineDriver extends EQLUtilities {
 				if (eCursor.getCursor_cache().size() > start) {
 					int pullCacheRows = eCursor.getCursor_cache().size();
 					for(int idx=start; idx < Math.min(pullCacheRows, end); idx++) {
-						rows.add(eCursor.getCursor_cache().get(idx));
+						rows.add(this.displayRow(eCursor, eCursor.getCursor_cache().get(idx)));
 						cnt++;
 					}
 				}
 			
-				if (cnt < (end - 1)) { // Are we fetching rows? make sure we get the best row sized transfered
+				if (cnt < (end - 1) && cursor != null) { // Are we fetching rows? make sure we get the best row sized transfered
 					if ((end-start)>2)
 						cursor.setFetchSize((end-start)+1);
 					else
@@ -639,6 +2608,32 @@ public class EQLCommandLineDriver extends EQLUtilities {
 					firstRow = true;
 				
 				log.debug("Counting vars for get data:  cnt:{} end:{}", cnt, end);
+				if (source != null && firstRow) {
+					eCursor.getCursor_cols().addAll(source.getColumnNames());
+					eCursor.getCursor_labels().addAll(source.getColumnLabels());
+				}
+				long fetchStart = System.nanoTime();
+				int fetched = cnt;
+				EQLEvents.Fetch event = (EQLEvents.ENABLED) ? new EQLEvents.Fetch() : null;
+				if (event != null)
+					event.begin();
+				while(cnt < (end - 1) && source != null) {
+					Object[] vals = source.next();
+					if (vals == null)
+						break;
+					if (eCursor.isTracked()) {
+						long now = System.nanoTime();
+						eCursor.recordFetch(now - fetchStart, 1, (eCursor.getStats() != null) ? EQLInstructionStats.sizeOf(vals) : 0);
+						fetchStart = now;
+					}
+					Map<String,Object> row = new LinkedTreeMap<String,Object>();
+					for(int idx=0; idx < vals.length; idx++) {
+						row.put(eCursor.getCursor_cols().get(idx), vals[idx]);
+					}
+					cnt++;
+					rows.add(row);
+					eCursor.getCursor_cache().add(row);
+				}
 				while(cnt < (end - 1) && cursor != null && !cursor.isAfterLast() && cursor.next()) {
 					Map<String,Object> row = new LinkedTreeMap<String,Object>();
 					
@@ -649,23 +2644,27 @@ public class EQLCommandLineDriver extends EQLUtilities {
 							eCursor.getCursor_cols().add(nm);
 							eCursor.getCursor_labels().add(lb);
 						}
-						if (eCursor.getRsmd().getColumnType(idx) == Types.INTEGER)
-							row.put(nm, cursor.getInt(idx));
-						else if (eCursor.getRsmd().getColumnType(idx) == Types.DOUBLE)
-							row.put(nm, cursor.getDouble(idx));
-						else if (eCursor.getRsmd().getColumnType(idx) == Types.FLOAT)
-							row.put(nm, cursor.getFloat(idx));
-						else if (eCursor.getRsmd().getColumnType(idx) == Types.CHAR || eCursor.getRsmd().getColumnType(idx) == Types.VARCHAR)
-							row.put(nm, cursor.getString(idx));
-						else if (eCursor.getRsmd().getColumnType(idx) == Types.DATE)
-							row.put(nm, cursor.getDate(idx).getTime());
-						else
-							row.put(nm, cursor.getString(idx));
+						row.put(nm, cursor.getObject(idx));	// cached as read, the rows are replayed to copy, join, export...
 					}
 					firstRow = false;
 					cnt++;
-					rows.add(row);
+					rows.add(this.displayRow(eCursor, row));
 					eCursor.getCursor_cache().add(row);
+					if (eCursor.isTracked()) {
+						long now = System.nanoTime();
+						eCursor.recordFetch(now - fetchStart, 1, (eCursor.getStats() != null) ? EQLInstructionStats.sizeOf(row.values().toArray()) : 0);
+						fetchStart = now;
+					}
+				}
+				if (event != null)
+					event.end();
+				if (cnt > fetched && event != null && event.shouldCommit()) {
+					Integer origin = this.openCursors.get(eCursor);
+					event.instruction = this.lineExecuting;
+					event.cursor = name;
+					event.origin = (origin == null) ? 0 : origin;
+					event.rows = cnt - fetched;
+					event.commit();
 				}
 				ldds.setData(rows);
 				ldds.setColumnNames(eCursor.getCursor_cols());
@@ -727,18 +2726,37 @@ public class EQLCommandLineDriver extends EQLUtilities {
 		if (jdbcUrl == null) 
 			throw new EQLException("Missing jdbc URL entry in System Config database for '" + connectTarget + "'. Contact your site admin.");
 
-		this.closeConnection();		// Close any existing connections before making a new connection
+		if (this.txExplicit)
+			throw new EQLException("Transaction open on the current connection, commit or rollback before connecting at ln#" + inst.getStartLine());
+		if (this.conn != null && this.uncommitted > 0) {
+			try {
+				this.commit();
+			} catch (SQLException e) {
+				throw new EQLException("Commit before connecting failed: " + e.getMessage());
+			}
+		}
+		this.retireConnection();		// Close any existing connections before making a new connection, open cursors keep theirs
+		EQLEvents.Connect event = (EQLEvents.ENABLED) ? new EQLEvents.Connect() : null;
+		if (event != null)
+			event.begin();
 		try {
 			//Register JDBC driver
 			Class.forName(className);
 			this.debugMsg("connect", "JDBC driver located");
 				
 			//Make the connection
-			if (user != null && user.length() > 0)
+			if (this.sharedPools) {
+				EQLConnection pool = this.getPool(connectTarget);
+				conn = pool.acquire();
+				this.pooledConns.put(conn, pool);
+			} else if (user != null && user.length() > 0)
 				conn = DriverManager.getConnection(jdbcUrl, user, pass);
 			else
 				conn = DriverManager.getConnection(jdbcUrl);
 
+			this.target = connectTarget;
+			this.sessionPinned = false;
+			this.applyCommitMode();
 			this.infoMsg("connect", "Connection to '" + connectTarget + "' established");
 		} catch(SQLException e) {
 			this.errorMsg("connect", "Could not connect to '" + connectTarget + "'. Error from driver:" + e.getMessage());
@@ -747,7 +2765,15 @@ public class EQLCommandLineDriver extends EQLUtilities {
 			this.errorMsg("connect", "Could not locate the requested JDBC driver for '" + connectTarget + "'. Contact your site admin");
 			e.printStackTrace();
 			return false;
-		} 
+		} finally {
+			if (event != null)
+				event.end();
+			if (event != null && event.shouldCommit()) {
+				event.instruction = this.lineExecuting;
+				event.target = connectTarget;
+				event.commit();
+			}
+		}
 		return true;
 	}
 	
@@ -761,6 +2787,8 @@ public class EQLCommandLineDriver extends EQLUtilities {
 				configItems.put("jdbc", conf.getProperty("eql."+target+".jdbc"));
 				configItems.put("user", conf.getProperty("eql."+target+".user", ""));
 				configItems.put("pass", conf.getProperty("eql."+target+".pass", ""));
+				configItems.put("pool", conf.getProperty("eql."+target+".pool", "8"));
+				configItems.put("cache", conf.getProperty("eql."+target+".cache", "0"));
 			} else {
 				this.errorMsg("getConfigItem", "No config file located, must supply a -c parameter to the engine defining the connection properties.");
 			}
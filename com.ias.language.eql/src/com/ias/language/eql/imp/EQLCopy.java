@@ -0,0 +1,243 @@
+package com.ias.language.eql.imp;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ias.language.objects.EQLConnection;
+import com.ias.language.objects.EQLRowSource;
+
+/**
+ * Streams a row source into a table on another target.
+ *   One reader thread pulls blocks of rows from the source, writer threads insert the blocks through batched
+ *   prepared statements on pooled destination connections. The queue between them is bounded so a slow
+ *   destination throttles the reader instead of buffering the whole cursor.
+ * Worker threads never write to the engine log (not thread safe), counts are reported by the caller.
+ */
+public class EQLCopy {
+	private final static Logger log = LoggerFactory.getLogger(EQLCopy.class.getCanonicalName());
+	private final static List<Object[]> END_OF_DATA = Collections.emptyList();
+	private final static long POLL_MS = 200;
+
+	protected EQLRowSource source;
+	protected EQLConnection dest;
+	protected String table;
+	protected int writers;
+	protected int batchSize;
+	protected int commitRows;
+	protected AtomicLong rowsWritten;
+	protected AtomicLong commits;
+	protected AtomicReference<Exception> failure;
+
+	public EQLCopy(EQLRowSource source, EQLConnection dest, String table, int writers, int batchSize, int commitRows) {
+		this.source = source;
+		this.dest = dest;
+		this.table = table;
+		this.writers = Math.max(1, writers);
+		this.batchSize = Math.max(1, batchSize);
+		this.commitRows = commitRows;
+		this.rowsWritten = new AtomicLong(0);
+		this.commits = new AtomicLong(0);
+		this.failure = new AtomicReference<Exception>();
+	}
+
+	public long getRowsWritten() {
+		return this.rowsWritten.get();
+	}
+
+	public long getCommits() {
+		return this.commits.get();
+	}
+
+	/**
+	 * Insert statement using the source column labels as the destination column names
+	 * @return
+	 */
+	public String getInsertStatement() {
+		List<String> marks = new ArrayList<String>();
+		for(int idx=0; idx < this.source.getColumnLabels().size(); idx++) {
+			marks.add("?");
+		}
+		return "insert into " + this.table + " (" + StringUtils.join(this.source.getColumnLabels(), ",") + ") values (" + StringUtils.join(marks, ",") + ")";
+	}
+
+	/**
+	 * Runs the copy to completion
+	 * @return rows written
+	 * @throws EQLException first error raised by the reader or any writer
+	 */
+	public long run() throws EQLException {
+		final BlockingQueue<List<Object[]>> queue = new ArrayBlockingQueue<List<Object[]>>(this.writers * 2);
+		final String insert = this.getInsertStatement();
+		ExecutorService pool = Executors.newFixedThreadPool(this.writers + 1);
+		List<Future<Long>> tasks = new ArrayList<Future<Long>>();
+
+		log.debug("Copy started with {} writers, statement:{}", this.writers, insert);
+		try {
+			tasks.add(pool.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					return read(queue);
+				}
+			}));
+			for(int idx=0; idx < this.writers; idx++) {
+				tasks.add(pool.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						return write(queue, insert);
+					}
+				}));
+			}
+			for(Future<Long> task : tasks) {
+				try {
+					task.get();
+				} catch (ExecutionException e) {
+					Exception cause = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+					this.failure.compareAndSet(null, cause);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			this.failure.compareAndSet(null, e);
+		} finally {
+			pool.shutdownNow();
+		}
+
+		Exception e = this.failure.get();
+		if (e != null) {
+			if (e instanceof EQLException)
+				throw (EQLException) e;
+			throw new EQLException("Copy into " + this.table + " failed after " + this.rowsWritten.get() + " rows: " + e.getMessage());
+		}
+		return this.rowsWritten.get();
+	}
+
+	protected long read(BlockingQueue<List<Object[]>> queue) throws Exception {
+		long rows = 0;
+		try {
+			List<Object[]> block = new ArrayList<Object[]>(this.batchSize);
+			Object[] row = this.source.next();
+			while (row != null && this.failure.get() == null) {
+				block.add(row);
+				rows++;
+				if (block.size() >= this.batchSize) {
+					this.offer(queue, block);
+					block = new ArrayList<Object[]>(this.batchSize);
+				}
+				row = this.source.next();
+			}
+			if (block.size() > 0)
+				this.offer(queue, block);
+		} catch (Exception e) {
+			this.failure.compareAndSet(null, e);
+			throw e;
+		} finally {
+			for(int idx=0; idx < this.writers; idx++) {	// One end marker per writer, skipped when the writers are already gone
+				if (!this.offerQuiet(queue, END_OF_DATA))
+					break;
+			}
+		}
+		return rows;
+	}
+
+	private void offer(BlockingQueue<List<Object[]>> queue, List<Object[]> block) throws InterruptedException, EQLException {
+		while (!queue.offer(block, POLL_MS, TimeUnit.MILLISECONDS)) {
+			if (this.failure.get() != null)
+				throw new EQLException("Copy reader stopped, a writer failed");
+		}
+	}
+
+	private boolean offerQuiet(BlockingQueue<List<Object[]>> queue, List<Object[]> block) {
+		try {
+			while (!queue.offer(block, POLL_MS, TimeUnit.MILLISECONDS)) {
+				if (this.failure.get() != null)
+					return false;
+			}
+			return true;
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+
+	protected long write(BlockingQueue<List<Object[]>> queue, String insert) throws Exception {
+		Connection conn = null;
+		PreparedStatement ps = null;
+		long written = 0;
+		long sinceCommit = 0;
+		int[] colTypes = this.source.getColumnTypes();
+		try {
+			conn = this.dest.acquire();
+			conn.setAutoCommit(false);
+			ps = conn.prepareStatement(insert);
+			while (true) {
+				List<Object[]> block = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+				if (block == null) {
+					if (this.failure.get() != null)
+						throw new EQLException("Copy writer stopped, another worker failed");
+					continue;
+				}
+				if (block == END_OF_DATA)
+					break;
+
+				for(Object[] row : block) {
+					for(int idx=0; idx < row.length; idx++) {
+						if (row[idx] == null)
+							ps.setNull(idx + 1, colTypes[idx]);
+						else
+							ps.setObject(idx + 1, row[idx]);
+					}
+					ps.addBatch();
+				}
+				ps.executeBatch();
+				written += block.size();
+				sinceCommit += block.size();
+				this.rowsWritten.addAndGet(block.size());
+
+				if (this.commitRows > 0 && sinceCommit >= this.commitRows) {
+					conn.commit();
+					this.commits.incrementAndGet();
+					sinceCommit = 0;
+				}
+			}
+			conn.commit();
+			this.commits.incrementAndGet();
+		} catch (Exception e) {
+			this.failure.compareAndSet(null, e);
+			if (conn != null) {
+				try {
+					conn.rollback();
+				} catch (SQLException e1) {
+					log.warn("Rollback failed on copy writer:{}", e1.getMessage());
+				}
+			}
+			throw e;
+		} finally {
+			if (ps != null) {
+				try {
+					ps.close();
+				} catch (SQLException e) {
+					log.warn("Error closing copy statement - continuing");
+				}
+			}
+			this.dest.release(conn);
+		}
+		return written;
+	}
+}
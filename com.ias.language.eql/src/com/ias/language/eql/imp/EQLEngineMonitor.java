@@ -0,0 +1,208 @@
+package com.ias.language.eql.imp;
+
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ias.language.objects.EQLConnection;
+import com.ias.language.objects.EQLInstruction;
+import com.ias.language.objects.EQLResultCache;
+
+/**
+ * Live view of an engine for operators, read from the JMX threads while the script runs.
+ *   Config: eql.jmx (true by default, false does not register). Remote consoles need the usual
+ *   com.sun.management.jmxremote settings of the JVM.
+ *   Rates are measured over the last minute from samples taken when the attributes are read.
+ */
+public class EQLEngineMonitor implements EQLEngineMonitorMBean {
+	private final static Logger log = LoggerFactory.getLogger(EQLEngineMonitor.class.getCanonicalName());
+	private final static long WINDOW_MS = 60000;
+	private final static long SAMPLE_MS = 1000;
+
+	protected final EQLCommandLineDriver engine;
+	protected final ArrayDeque<long[]> samples;		// time, rows, instructions
+	protected ObjectName name;
+
+	public EQLEngineMonitor(EQLCommandLineDriver engine) {
+		this.engine = engine;
+		this.samples = new ArrayDeque<long[]>();
+	}
+
+	/**
+	 * Registers a monitor of the engine with the platform MBean server
+	 * @param engine
+	 * @param config
+	 * @param script file name of the script
+	 * @param set matrix set number, 0 for a single run
+	 * @return null when disabled or the registration failed
+	 */
+	public static EQLEngineMonitor register(EQLCommandLineDriver engine, Properties config, String script, int set) {
+		if (config != null && !Boolean.parseBoolean(config.getProperty("eql.jmx", "true")))
+			return null;
+		EQLEngineMonitor monitor = new EQLEngineMonitor(engine);
+		try {
+			String file = (script == null) ? "eql" : script.replaceAll(".*[/\\\\]", "");
+			monitor.name = new ObjectName("com.ias.language.eql:type=Engine,script=" + ObjectName.quote(file) + ((set > 0) ? ",set=" + set : ""));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(monitor, monitor.name);
+			log.debug("Engine monitor registered as {}", monitor.name);
+			return monitor;
+		} catch (JMException e) {
+			log.warn("Engine monitor not registered: {}", e.getMessage());
+			return null;
+		}
+	}
+
+	public void unregister() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (this.name != null && server.isRegistered(this.name))
+				server.unregisterMBean(this.name);
+		} catch (JMException e) {
+			log.warn("Engine monitor {} not unregistered: {}", this.name, e.getMessage());
+		}
+	}
+
+	@Override
+	public int getLineExecuting() {
+		return this.engine.lineExecuting;
+	}
+
+	@Override
+	public int getCompletedLine() {
+		return this.engine.completedLine;
+	}
+
+	@Override
+	public int getInstructionCount() {
+		List<EQLInstruction> instructions = this.engine.instructions;
+		return (instructions == null) ? 0 : instructions.size();
+	}
+
+	@Override
+	public String getCurrentStatement() {
+		EQLInstruction inst = this.engine.current;
+		if (inst == null)
+			return "";
+		String text = (inst.getAssignName() != null) ? "@" + inst.getAssignName() + " = " + inst.getAssignVal() : String.valueOf(inst.getAssignVal());
+		return inst.getOpcode() + ": " + StringUtils.abbreviate(text.replaceAll("\\s+", " "), 100);
+	}
+
+	@Override
+	public long getCurrentElapsedMs() {
+		long started = this.engine.currentStarted;
+		return (started == 0) ? 0 : System.currentTimeMillis() - started;
+	}
+
+	@Override
+	public int getOpenCursors() {
+		return this.engine.openCursors.size();
+	}
+
+	@Override
+	public long getResultCacheHits() {
+		EQLResultCache cache = this.engine.resultCache;
+		return (cache == null) ? 0 : cache.getHits();
+	}
+
+	@Override
+	public long getResultCacheMisses() {
+		EQLResultCache cache = this.engine.resultCache;
+		return (cache == null) ? 0 : cache.getMisses();
+	}
+
+	@Override
+	public int getResultCacheEntries() {
+		EQLResultCache cache = this.engine.resultCache;
+		return (cache == null) ? 0 : cache.getEntries();
+	}
+
+	@Override
+	public long getResultCacheBytes() {
+		EQLResultCache cache = this.engine.resultCache;
+		return (cache == null) ? 0 : cache.getBytes();
+	}
+
+	@Override
+	public String[] getPools() {
+		List<String> list = new ArrayList<String>();
+		synchronized (this.engine.pools) {
+			for(EQLConnection pool : this.engine.pools.values()) {
+				list.add(pool.getTarget() + " active:" + pool.getActive() + " idle:" + pool.getIdle() + " opened:" + pool.getOpened() + " max:" + pool.getMaxSize());
+			}
+		}
+		return list.toArray(new String[list.size()]);
+	}
+
+	@Override
+	public long getRowsProcessed() {
+		return this.engine.rowsProcessed.get();
+	}
+
+	@Override
+	public long getInstructionsRun() {
+		return this.engine.instructionsRun;
+	}
+
+	@Override
+	public double getRowsPerSecond() {
+		return this.rate(1);
+	}
+
+	@Override
+	public double getInstructionsPerSecond() {
+		return this.rate(2);
+	}
+
+	@Override
+	public String cancelStatement() {
+		Statement stmt = this.engine.running;
+		if (stmt == null)
+			return "No statement is executing";
+		int line = this.engine.lineExecuting;
+		try {
+			stmt.cancel();
+		} catch (SQLException e) {
+			return "Cancel of instruction #" + line + " failed: " + e.getMessage();
+		}
+		this.engine.warnMsg("jmx", "Statement of instruction #" + line + " cancelled by an operator");
+		return "Cancel sent to instruction #" + line;
+	}
+
+	/**
+	 * Change per second of a counter since the oldest sample of the window
+	 * @param counter 1 rows, 2 instructions
+	 * @return
+	 */
+	protected synchronized double rate(int counter) {
+		long now = System.currentTimeMillis();
+		long[] last = this.samples.peekLast();
+		if (last == null || now - last[0] >= SAMPLE_MS) {
+			last = new long[] {now, this.engine.rowsProcessed.get(), this.engine.instructionsRun};
+			this.samples.addLast(last);
+		}
+		while (this.samples.size() > 2) {		// keep one sample at or before the window start
+			Iterator<long[]> it = this.samples.iterator();
+			it.next();
+			if (now - it.next()[0] < WINDOW_MS)
+				break;
+			this.samples.removeFirst();
+		}
+		long[] first = this.samples.peekFirst();
+		if (first == last)
+			return 0;
+		return (last[counter] - first[counter]) * 1000.0 / (last[0] - first[0]);
+	}
+}
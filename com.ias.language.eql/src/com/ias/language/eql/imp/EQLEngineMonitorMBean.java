@@ -0,0 +1,69 @@
+package com.ias.language.eql.imp;
+
+/**
+ * JMX view of a running script, registered as com.ias.language.eql:type=Engine,script=name[,set=n]
+ */
+public interface EQLEngineMonitorMBean {
+	/**
+	 * @return instruction number running now, 0 before the run
+	 */
+	public int getLineExecuting();
+
+	/**
+	 * @return last instruction a restart can begin after
+	 */
+	public int getCompletedLine();
+
+	public int getInstructionCount();
+
+	/**
+	 * @return opcode and start of the running instruction
+	 */
+	public String getCurrentStatement();
+
+	/**
+	 * @return milliseconds the running instruction has been working
+	 */
+	public long getCurrentElapsedMs();
+
+	/**
+	 * @return server side cursors held by variables
+	 */
+	public int getOpenCursors();
+
+	public long getResultCacheHits();
+
+	public long getResultCacheMisses();
+
+	public int getResultCacheEntries();
+
+	public long getResultCacheBytes();
+
+	/**
+	 * @return one line per connection pool: target active, idle, opened and max connections
+	 */
+	public String[] getPools();
+
+	/**
+	 * @return rows read from cursors plus rows affected by statements
+	 */
+	public long getRowsProcessed();
+
+	public long getInstructionsRun();
+
+	/**
+	 * @return rows per second over the last minute
+	 */
+	public double getRowsPerSecond();
+
+	/**
+	 * @return instructions per second over the last minute
+	 */
+	public double getInstructionsPerSecond();
+
+	/**
+	 * Cancels the statement executing on the database, the script stops with the statement error
+	 * @return what was cancelled
+	 */
+	public String cancelStatement();
+}
@@ -0,0 +1,130 @@
+package com.ias.language.eql.imp;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of the engine phases, so GC pauses, lock contention and allocation in a recording can
+ * be tied to script instructions. Enable them with the settings of the recording, e.g.
+ *   -XX:StartFlightRecording:settings=profile   (all com.ias.language.eql.* events are enabled by default)
+ * Fields are only filled when the event is committed, a disabled event costs the begin/end checks.
+ * Statements are identified by a hash of the SQL text, the text itself is not recorded. On a JVM without Flight
+ * Recorder no event is created (see ENABLED).
+ */
+public final class EQLEvents {
+	/**
+	 * Flight Recorder is part of the JVM (Java 8u262 and later, 11 and later), the events are only created when it is
+	 */
+	public final static boolean ENABLED = available();
+
+	private EQLEvents() {
+	}
+
+	private static boolean available() {
+		try {
+			Class.forName("jdk.jfr.Event", false, EQLEvents.class.getClassLoader());
+			return true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Identifies a statement in a recording without its text
+	 * @param statement
+	 * @return
+	 */
+	public static String hash(String statement) {
+		return (statement == null) ? "" : String.format("%08x", statement.hashCode());
+	}
+
+	@Name("com.ias.language.eql.Compile")
+	@Label("EQL Compile")
+	@Category({"EQL"})
+	@Description("Script parsed into instructions")
+	@StackTrace(false)
+	public static class Compile extends Event {
+		@Label("Instructions")
+		public int instructions;
+
+		@Label("Characters")
+		public int characters;
+	}
+
+	@Name("com.ias.language.eql.Connect")
+	@Label("EQL Connect")
+	@Category({"EQL"})
+	@Description("Connection to a configured target")
+	@StackTrace(false)
+	public static class Connect extends Event {
+		@Label("Instruction")
+		public int instruction;
+
+		@Label("Target")
+		public String target;
+	}
+
+	@Name("com.ias.language.eql.Prepare")
+	@Label("EQL Prepare")
+	@Category({"EQL"})
+	@Description("Statement prepared and its parameters bound")
+	@StackTrace(false)
+	public static class Prepare extends Event {
+		@Label("Instruction")
+		public int instruction;
+
+		@Label("Function")
+		public String function;
+
+		@Label("SQL Hash")
+		public String sqlHash;
+
+		@Label("Parameters")
+		public int parameters;
+	}
+
+	@Name("com.ias.language.eql.Execute")
+	@Label("EQL Execute")
+	@Category({"EQL"})
+	@Description("Statement executed on the database")
+	@StackTrace(false)
+	public static class Execute extends Event {
+		@Label("Instruction")
+		public int instruction;
+
+		@Label("Function")
+		public String function;
+
+		@Label("SQL Hash")
+		public String sqlHash;
+
+		@Label("Rows Affected")
+		public long rowsAffected;
+
+		@Label("Returned Cursor")
+		public boolean cursor;
+	}
+
+	@Name("com.ias.language.eql.Fetch")
+	@Label("EQL Fetch")
+	@Category({"EQL"})
+	@Description("Rows read from a cursor into its cache (print, column pulls)")
+	@StackTrace(false)
+	public static class Fetch extends Event {
+		@Label("Instruction")
+		public int instruction;
+
+		@Label("Cursor")
+		public String cursor;
+
+		@Label("Opened By Instruction")
+		public int origin;
+
+		@Label("Rows")
+		public long rows;
+	}
+}
@@ -0,0 +1,274 @@
+package com.ias.language.eql.imp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ias.language.objects.EQLRowSource;
+
+/**
+ * Streams a row source to a CSV or JSON lines file.
+ *   Rows are appended to one reused character buffer which is encoded into a reused byte buffer and written to the
+ *   file channel whenever it fills, memory use does not depend on the number of rows. Plain files write a direct
+ *   buffer to the channel, gzip files pass a heap buffer through the deflater.
+ */
+public class EQLExport {
+	private final static Logger log = LoggerFactory.getLogger(EQLExport.class.getCanonicalName());
+	private final static int BUFFER = 256 * 1024;
+	private final static int FLUSH_CHARS = 64 * 1024;
+	private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+	public enum formats {csv, jsonl}
+
+	protected EQLRowSource source;
+	protected Path file;
+	protected formats format;
+	protected boolean gzip;
+	protected StringBuilder text;
+	protected CharsetEncoder encoder;
+	protected ByteBuffer bytes;
+	protected FileChannel channel;
+	protected OutputStream zipped;
+	protected long rows;
+	protected long bytesWritten;
+
+	public EQLExport(EQLRowSource source, Path file, formats format, boolean gzip) {
+		this.source = source;
+		this.file = file;
+		this.format = format;
+		this.gzip = gzip;
+		this.rows = 0;
+		this.bytesWritten = 0;
+	}
+
+	public long getRows() {
+		return this.rows;
+	}
+
+	/**
+	 * Bytes written to the file (compressed size for gzip)
+	 * @return
+	 */
+	public long getBytesWritten() {
+		return this.bytesWritten;
+	}
+
+	/**
+	 * Writes every remaining row of the source, an existing file is replaced
+	 * @return rows written
+	 * @throws EQLException
+	 */
+	public long run() throws EQLException {
+		List<String> labels = this.source.getColumnLabels();
+		String[] jsonKeys = new String[labels.size()];
+		this.text = new StringBuilder(FLUSH_CHARS + 4096);
+		this.encoder = StandardCharsets.UTF_8.newEncoder();
+		this.bytes = (this.gzip) ? ByteBuffer.allocate(BUFFER) : ByteBuffer.allocateDirect(BUFFER);
+
+		try {
+			this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			if (this.gzip)
+				this.zipped = new GZIPOutputStream(Channels.newOutputStream(this.channel), BUFFER);
+
+			if (this.format == formats.csv) {
+				for(int col=0; col < labels.size(); col++) {
+					if (col > 0)
+						this.text.append(',');
+					this.appendCsvString(labels.get(col));
+				}
+				this.text.append('\n');
+			} else {
+				for(int col=0; col < labels.size(); col++) {	// keys are escaped once
+					StringBuilder key = new StringBuilder();
+					key.append((col == 0) ? '{' : ',');
+					appendJsonString(key, labels.get(col));
+					jsonKeys[col] = key.append(':').toString();
+				}
+			}
+
+			Object[] row = this.source.next();
+			while (row != null) {
+				if (this.format == formats.csv) {
+					for(int col=0; col < row.length; col++) {
+						if (col > 0)
+							this.text.append(',');
+						this.appendCsvValue(row[col]);
+					}
+				} else {
+					for(int col=0; col < row.length; col++) {
+						this.text.append(jsonKeys[col]);
+						this.appendJsonValue(row[col]);
+					}
+					this.text.append((row.length == 0) ? "{}" : "}");
+				}
+				this.text.append('\n');
+				this.rows++;
+				if (this.text.length() >= FLUSH_CHARS)
+					this.flush(false);
+				row = this.source.next();
+			}
+			this.flush(true);
+			if (this.zipped != null)
+				this.zipped.close();	// closes the channel too
+			this.channel.close();
+			this.bytesWritten = Files.size(this.file);
+			log.debug("Exported {} rows to {} ({} bytes)", this.rows, this.file, this.bytesWritten);
+			return this.rows;
+		} catch (IOException e) {
+			throw new EQLException("Export to " + this.file + " failed: " + e.getMessage());
+		} finally {
+			try {
+				if (this.channel != null && this.channel.isOpen())
+					this.channel.close();
+			} catch (IOException e) {
+				log.warn("Error closing export file {} - continuing", this.file);
+			}
+		}
+	}
+
+	/**
+	 * Encodes the pending text into the byte buffer, draining the buffer to the file as it fills
+	 * @param end
+	 * @throws IOException
+	 */
+	protected void flush(boolean end) throws IOException {
+		CharBuffer chars = CharBuffer.wrap(this.text);
+		CoderResult res = this.encoder.encode(chars, this.bytes, end);
+		while (res.isOverflow()) {
+			this.drain();
+			res = this.encoder.encode(chars, this.bytes, end);
+		}
+		if (res.isError())
+			res.throwException();
+		if (end) {
+			while (this.encoder.flush(this.bytes).isOverflow()) {
+				this.drain();
+			}
+			this.drain();
+		}
+		this.text.setLength(0);	// surrogate pairs are never split, rows end on a newline
+	}
+
+	protected void drain() throws IOException {
+		this.bytes.flip();
+		if (this.zipped != null) {
+			this.zipped.write(this.bytes.array(), this.bytes.arrayOffset() + this.bytes.position(), this.bytes.remaining());
+		} else {
+			while (this.bytes.hasRemaining()) {
+				this.channel.write(this.bytes);
+			}
+		}
+		this.bytes.clear();
+	}
+
+	protected void appendCsvValue(Object val) {
+		if (val == null)
+			return;
+		if (val instanceof Long || val instanceof Integer || val instanceof Short || val instanceof Byte) {
+			this.text.append(((Number) val).longValue());
+		} else if (val instanceof Double || val instanceof Float) {
+			this.text.append(((Number) val).doubleValue());
+		} else if (val instanceof BigDecimal) {
+			this.text.append(((BigDecimal) val).toPlainString());
+		} else if (val instanceof Boolean) {
+			this.text.append(((Boolean) val).booleanValue());
+		} else if (val instanceof byte[]) {
+			this.text.append(Base64.getEncoder().encodeToString((byte[]) val));
+		} else {
+			this.appendCsvString(val.toString());
+		}
+	}
+
+	/**
+	 * RFC 4180 quoting, only values holding a delimiter, quote or line break are quoted
+	 * @param s
+	 */
+	protected void appendCsvString(String s) {
+		boolean quote = false;
+		for(int idx=0; idx < s.length() && !quote; idx++) {
+			char c = s.charAt(idx);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if (!quote) {
+			this.text.append(s);
+			return;
+		}
+		this.text.append('"');
+		for(int idx=0; idx < s.length(); idx++) {
+			char c = s.charAt(idx);
+			if (c == '"')
+				this.text.append('"');
+			this.text.append(c);
+		}
+		this.text.append('"');
+	}
+
+	protected void appendJsonValue(Object val) {
+		if (val == null) {
+			this.text.append("null");
+		} else if (val instanceof Long || val instanceof Integer || val instanceof Short || val instanceof Byte) {
+			this.text.append(((Number) val).longValue());
+		} else if (val instanceof Double || val instanceof Float) {
+			double d = ((Number) val).doubleValue();
+			if (Double.isNaN(d) || Double.isInfinite(d))
+				this.text.append("null");
+			else
+				this.text.append(d);
+		} else if (val instanceof BigDecimal) {
+			this.text.append(((BigDecimal) val).toPlainString());
+		} else if (val instanceof Boolean) {
+			this.text.append(((Boolean) val).booleanValue());
+		} else if (val instanceof byte[]) {
+			this.text.append('"').append(Base64.getEncoder().encodeToString((byte[]) val)).append('"');
+		} else {
+			appendJsonString(this.text, val.toString());
+		}
+	}
+
+	protected static void appendJsonString(StringBuilder sb, String s) {
+		sb.append('"');
+		for(int idx=0; idx < s.length(); idx++) {
+			char c = s.charAt(idx);
+			switch (c) {
+				case '"':
+					sb.append("\\\"");
+					break;
+				case '\\':
+					sb.append("\\\\");
+					break;
+				case '\n':
+					sb.append("\\n");
+					break;
+				case '\r':
+					sb.append("\\r");
+					break;
+				case '\t':
+					sb.append("\\t");
+					break;
+				default:
+					if (c < 0x20) {
+						sb.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+					} else {
+						sb.append(c);
+					}
+			}
+		}
+		sb.append('"');
+	}
+}
@@ -0,0 +1,302 @@
+package com.ias.language.eql.imp;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ias.language.objects.EQLDataFrame;
+import com.ias.language.objects.EQLRowFile;
+import com.ias.language.objects.EQLRowSource;
+
+/**
+ * Run based external merge sort of a row source.
+ *   Rows are collected in memory up to the budget, sorted and spilled as a run file, the runs are then k-way merged
+ *   while the result is read. With distinct only the first row of each key is kept (duplicates are already dropped
+ *   inside each run). Nulls sort before any value.
+ */
+public class EQLExternalSort {
+	private final static Logger log = LoggerFactory.getLogger(EQLExternalSort.class.getCanonicalName());
+	private final static int MAX_MERGE = 64;	// runs merged at once, more runs are merged in passes
+
+	protected EQLRowSource source;
+	protected int[] keyCols;
+	protected boolean[] desc;
+	protected boolean distinct;
+	protected long memBudget;
+	protected Comparator<Object[]> comparator;
+	protected long rows;
+	protected int runCount;
+
+	public EQLExternalSort(EQLRowSource source, int[] keyCols, boolean[] desc, boolean distinct, long memBudget) {
+		this.source = source;
+		this.keyCols = keyCols;
+		this.desc = desc;
+		this.distinct = distinct;
+		this.memBudget = Math.max(1, memBudget);
+		this.rows = 0;
+		this.runCount = 0;
+		this.comparator = new Comparator<Object[]>() {
+			@Override
+			public int compare(Object[] a, Object[] b) {
+				return compareRows(a, b);
+			}
+		};
+	}
+
+	public long getRows() {
+		return this.rows;
+	}
+
+	/**
+	 * Number of runs spilled to disk, 0 when the sort fit in memory
+	 * @return
+	 */
+	public int getRunCount() {
+		return this.runCount;
+	}
+
+	protected int compareRows(Object[] a, Object[] b) {
+		for(int idx=0; idx < this.keyCols.length; idx++) {
+			int cmp = compareValues(a[this.keyCols[idx]], b[this.keyCols[idx]]);
+			if (cmp != 0)
+				return (this.desc[idx]) ? -cmp : cmp;
+		}
+		return 0;
+	}
+
+	/**
+	 * Compares two column values, numbers of different java types compare by value
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static int compareValues(Object a, Object b) {
+		if (a == b)
+			return 0;
+		if (a == null)
+			return -1;
+		if (b == null)
+			return 1;
+		Object na = EQLHashJoin.normalize(a);
+		Object nb = EQLHashJoin.normalize(b);
+		if (na instanceof Long && nb instanceof Long)
+			return Long.compare((Long) na, (Long) nb);
+		if (na instanceof Number && nb instanceof Number) {
+			if (na instanceof Double || nb instanceof Double)	// NaN and infinities
+				return Double.compare(((Number) na).doubleValue(), ((Number) nb).doubleValue());
+			return decimal((Number) na).compareTo(decimal((Number) nb));
+		}
+		if (na instanceof Comparable && na.getClass() == nb.getClass())
+			return ((Comparable<Object>) na).compareTo(nb);
+		return na.toString().compareTo(nb.toString());
+	}
+
+	private static BigDecimal decimal(Number num) {
+		if (num instanceof BigDecimal)
+			return (BigDecimal) num;
+		if (num instanceof Long)
+			return BigDecimal.valueOf((Long) num);
+		return new BigDecimal(num.toString());
+	}
+
+	private static long rowBytes(Object[] row) {
+		long bytes = 16 + 8L * row.length;
+		for(Object val : row) {
+			bytes += EQLDataFrame.estimateBytes(val);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Reads the whole source and returns the sorted rows as a stream
+	 * @return
+	 * @throws EQLException
+	 */
+	public EQLRowSource execute() throws EQLException {
+		List<EQLRowFile> runs = new ArrayList<EQLRowFile>();
+		List<Object[]> buffer = new ArrayList<Object[]>();
+		long bytes = 0;
+		try {
+			Object[] row = this.source.next();
+			while (row != null) {
+				buffer.add(row);
+				bytes += rowBytes(row);
+				this.rows++;
+				if (bytes > this.memBudget) {
+					runs.add(this.spill(buffer));
+					buffer = new ArrayList<Object[]>();
+					bytes = 0;
+				}
+				row = this.source.next();
+			}
+
+			if (runs.size() == 0) {
+				Collections.sort(buffer, this.comparator);
+				log.debug("Sorted {} rows in memory", this.rows);
+				return new ListSource(buffer);
+			}
+
+			if (buffer.size() > 0)
+				runs.add(this.spill(buffer));
+			this.runCount = runs.size();
+			while (runs.size() > MAX_MERGE) {	// Too many files to open at once, merge groups into longer runs
+				List<EQLRowFile> merged = new ArrayList<EQLRowFile>();
+				for(int start=0; start < runs.size(); start += MAX_MERGE) {
+					List<EQLRowFile> group = new ArrayList<EQLRowFile>(runs.subList(start, Math.min(runs.size(), start + MAX_MERGE)));
+					MergeSource merge = new MergeSource(group);
+					EQLRowFile out = new EQLRowFile(this.source.getColumnTypes().length);
+					Object[] mrow = merge.next();
+					while (mrow != null) {
+						out.write(mrow);
+						mrow = merge.next();
+					}
+					merge.close();
+					merged.add(out);
+				}
+				runs = merged;
+			}
+			log.debug("Merging {} sorted runs of {} rows", runs.size(), this.rows);
+			return new MergeSource(runs);
+		} catch (EQLException | IOException e) {
+			for(EQLRowFile run : runs) {
+				run.close();
+			}
+			throw (e instanceof EQLException) ? (EQLException) e : new EQLException(e);
+		}
+	}
+
+	protected EQLRowFile spill(List<Object[]> buffer) throws EQLException {
+		Collections.sort(buffer, this.comparator);
+		EQLRowFile run = new EQLRowFile(this.source.getColumnTypes().length);
+		Object[] last = null;
+		for(Object[] row : buffer) {
+			if (!this.distinct || last == null || this.compareRows(last, row) != 0)
+				run.write(row);
+			last = row;
+		}
+		return run;
+	}
+
+	protected abstract class SortedSource implements EQLRowSource {
+		Object[] lastOut = null;
+
+		abstract Object[] nextSorted() throws EQLException;
+
+		@Override
+		public List<String> getColumnNames() {
+			return source.getColumnNames();
+		}
+
+		@Override
+		public List<String> getColumnLabels() {
+			return source.getColumnLabels();
+		}
+
+		@Override
+		public int[] getColumnTypes() {
+			return source.getColumnTypes();
+		}
+
+		@Override
+		public Object[] next() throws EQLException {
+			Object[] row = this.nextSorted();
+			while (distinct && row != null && this.lastOut != null && compareRows(this.lastOut, row) == 0) {
+				row = this.nextSorted();
+			}
+			this.lastOut = row;
+			return row;
+		}
+	}
+
+	protected class ListSource extends SortedSource {
+		List<Object[]> rows;
+		int pos;
+
+		ListSource(List<Object[]> rows) {
+			this.rows = rows;
+			this.pos = 0;
+		}
+
+		@Override
+		Object[] nextSorted() {
+			if (this.pos >= this.rows.size())
+				return null;
+			Object[] row = this.rows.get(this.pos);
+			this.rows.set(this.pos++, null);	// release as we go
+			return row;
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.pos = this.rows.size();
+		}
+	}
+
+	/**
+	 * k-way merge of sorted run files through a priority queue of the current head of each run
+	 */
+	protected class MergeSource extends SortedSource {
+		List<EQLRowFile> runs;
+		PriorityQueue<RunHead> heads;
+
+		MergeSource(List<EQLRowFile> runs) throws EQLException {
+			this.runs = runs;
+			this.heads = new PriorityQueue<RunHead>(Math.max(1, runs.size()), new Comparator<RunHead>() {
+				@Override
+				public int compare(RunHead a, RunHead b) {
+					int cmp = compareRows(a.row, b.row);
+					return (cmp != 0) ? cmp : Integer.compare(a.order, b.order);	// stable across runs
+				}
+			});
+			for(int idx=0; idx < runs.size(); idx++) {
+				EQLRowFile run = runs.get(idx);
+				run.startRead();
+				Object[] row = run.read();
+				if (row != null)
+					this.heads.add(new RunHead(run, row, idx));
+			}
+		}
+
+		@Override
+		Object[] nextSorted() throws EQLException {
+			RunHead head = this.heads.poll();
+			if (head == null)
+				return null;
+			Object[] row = head.row;
+			head.row = head.run.read();
+			if (head.row != null)
+				this.heads.add(head);
+			else
+				head.run.close();
+			return row;
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.heads.clear();
+			for(EQLRowFile run : this.runs) {
+				run.close();
+			}
+		}
+	}
+
+	protected static class RunHead {
+		EQLRowFile run;
+		Object[] row;
+		int order;
+
+		RunHead(EQLRowFile run, Object[] row, int order) {
+			this.run = run;
+			this.row = row;
+			this.order = order;
+		}
+	}
+}
@@ -0,0 +1,327 @@
+package com.ias.language.eql.imp;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ias.language.objects.EQLConnection;
+import com.ias.language.objects.EQLCursorReader;
+import com.ias.language.objects.EQLObject;
+import com.ias.language.objects.EQLRowSource;
+
+/**
+ * Runs statements in parallel and merges the rows into one stream, used for targets (fanout) and key ranges
+ * (partitioned).
+ *   Each part runs on a pooled connection, at most 'threads' parts run at once. Rows reach the reader in blocks
+ *   through bounded queues so the parts are read as fast as the reader consumes them. Unordered streams interleave
+ *   the parts in the order rows arrive, ordered streams return the parts one after the other.
+ *   With the source column the first column (eql_target) names the part of each row.
+ *   A failed part is reported in the engine log by the reading thread and left out of the stream (opening fails
+ *   only when every part failed), unless every part is required in which case reading fails.
+ */
+public class EQLFanout implements EQLRowSource {
+	private final static Logger log = LoggerFactory.getLogger(EQLFanout.class.getCanonicalName());
+	private final static int BLOCK = 1000;
+	private final static long POLL_MS = 200;
+	public final static String TARGET_COLUMN = "eql_target";
+
+	/**
+	 * One statement of the stream and the pool it runs on
+	 */
+	public static class Part {
+		final String name;
+		final EQLConnection pool;
+		final String statement;
+		final List<Object> values;
+
+		public Part(String name, EQLConnection pool, String statement, List<Object> values) {
+			this.name = name;
+			this.pool = pool;
+			this.statement = statement;
+			this.values = values;
+		}
+	}
+
+	protected static class Block {
+		final String target;
+		final List<Object[]> rows;
+		final boolean end;		// last block of a part
+		final long partRows;
+		final Exception error;
+
+		Block(String target, List<Object[]> rows, boolean end, long partRows, Exception error) {
+			this.target = target;
+			this.rows = rows;
+			this.end = end;
+			this.partRows = partRows;
+			this.error = error;
+		}
+	}
+
+	protected List<Part> parts;
+	protected int threads;
+	protected int queryTimeout;
+	protected EQLUtilities reporter;
+	protected boolean ordered;
+	protected boolean sourceColumn;
+	protected boolean requireAll;
+	protected List<BlockingQueue<Block>> queues;	// per part, unordered streams share one queue
+	protected int reading;		// part read next by an ordered stream
+	protected ExecutorService pool;
+	protected CountDownLatch described;		// first part returned its columns or every part failed
+	protected AtomicInteger undescribed;
+	protected volatile List<String> names;
+	protected List<String> labels;
+	protected int[] colTypes;
+	protected Iterator<Object[]> current;
+	protected int running;
+	protected int failed;
+	protected volatile boolean closed;
+
+	/**
+	 * @param parts
+	 * @param threads parts run at once
+	 * @param queryTimeout seconds, -1 for none
+	 * @param reporter engine log of part failures
+	 * @param ordered parts are returned one after the other in list order
+	 * @param sourceColumn adds the eql_target column with the part name
+	 * @param requireAll a failed part fails the stream instead of being left out
+	 */
+	public EQLFanout(List<Part> parts, int threads, int queryTimeout, EQLUtilities reporter, boolean ordered, boolean sourceColumn, boolean requireAll) {
+		this.parts = parts;
+		this.threads = Math.max(1, Math.min(threads, parts.size()));
+		this.queryTimeout = queryTimeout;
+		this.reporter = reporter;
+		this.ordered = ordered;
+		this.sourceColumn = sourceColumn;
+		this.requireAll = requireAll;
+		this.queues = new ArrayList<BlockingQueue<Block>>();
+		BlockingQueue<Block> shared = new ArrayBlockingQueue<Block>(this.threads * 2 + parts.size());	// room for every end marker
+		for(int idx=0; idx < parts.size(); idx++) {
+			this.queues.add((ordered) ? new ArrayBlockingQueue<Block>(3) : shared);
+		}
+		this.reading = 0;
+		this.described = new CountDownLatch(1);
+		this.undescribed = new AtomicInteger(parts.size());
+		this.running = parts.size();
+		this.failed = 0;
+	}
+
+	/**
+	 * Starts every part and waits for the column layout of the first one to answer
+	 * @throws EQLException when every part failed
+	 */
+	public void open() throws EQLException {
+		this.pool = Executors.newFixedThreadPool(this.threads);
+		for(int idx=0; idx < this.parts.size(); idx++) {
+			final Part part = this.parts.get(idx);
+			final BlockingQueue<Block> queue = this.queues.get(idx);
+			this.pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					runPart(part, queue);
+				}
+			});
+		}
+		this.pool.shutdown();	// queued parts still run, the threads end with the last one
+
+		try {
+			this.described.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			this.close();
+			throw new EQLException("Interrupted waiting for the fanout targets");
+		}
+		if (this.names == null) {
+			StringBuilder errors = new StringBuilder();
+			for(int idx=0; idx < this.queues.size(); idx++) {
+				if (idx > 0 && this.queues.get(idx) == this.queues.get(idx - 1))
+					continue;
+				for(Block block : this.queues.get(idx)) {
+					if (block.error != null)
+						errors.append((errors.length() > 0) ? "; " : "").append(block.target).append(": ").append(block.error.getMessage());
+				}
+			}
+			this.close();
+			throw new EQLException("Failed on every part - " + errors);
+		}
+	}
+
+	public int getFailed() {
+		return this.failed;
+	}
+
+	@Override
+	public List<String> getColumnNames() {
+		return this.names;
+	}
+
+	@Override
+	public List<String> getColumnLabels() {
+		return this.labels;
+	}
+
+	@Override
+	public int[] getColumnTypes() {
+		return this.colTypes;
+	}
+
+	@Override
+	public Object[] next() throws EQLException {
+		while (true) {
+			if (this.current != null && this.current.hasNext())
+				return this.current.next();
+			this.current = null;
+			if (this.running == 0 || this.closed)
+				return null;
+
+			Block block;
+			try {
+				block = this.queues.get(this.reading).poll(POLL_MS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new EQLException("Interrupted reading the fanout results");
+			}
+			if (block == null)
+				continue;
+			if (block.rows != null)
+				this.current = block.rows.iterator();
+			if (block.end) {
+				this.running--;
+				if (this.ordered)
+					this.reading++;
+				if (block.error != null) {
+					this.failed++;
+					if (this.requireAll)
+						throw new EQLException("Part '" + block.target + "' failed after " + block.partRows + " rows: " + block.error.getMessage());
+					this.reporter.warnMsg("fanout", "Target '" + block.target + "' failed" + ((block.partRows > 0) ? " after " + block.partRows + " rows, its results are incomplete" : ", no results included") + ". Error:" + block.error.getMessage());
+				} else {
+					this.reporter.debugMsg("fanout", "Part '" + block.target + "' returned " + block.partRows + " rows");
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		this.closed = true;
+		if (this.pool != null)
+			this.pool.shutdownNow();
+		for(BlockingQueue<Block> queue : this.queues) {
+			queue.clear();
+		}
+	}
+
+	/**
+	 * Runs the statement of one part, worker threads never write to the engine log
+	 * @param part
+	 * @param queue
+	 */
+	protected void runPart(Part part, BlockingQueue<Block> queue) {
+		String target = part.name;
+		Connection c = null;
+		PreparedStatement stmt = null;
+		boolean ready = false;
+		long rows = 0;
+		try {
+			c = part.pool.acquire();
+			stmt = c.prepareStatement(part.statement);
+			if (this.queryTimeout > -1)
+				stmt.setQueryTimeout(this.queryTimeout);
+			for(int idx=0; idx < part.values.size(); idx++) {
+				stmt.setObject(idx + 1, part.values.get(idx));
+			}
+			EQLCursorReader reader = new EQLCursorReader(new EQLObject(stmt, stmt.executeQuery()));
+			reader.setFetchSize(BLOCK);
+			this.describe(target, reader);
+			ready = true;
+			this.undescribed.decrementAndGet();
+			this.described.countDown();
+
+			List<Object[]> block = new ArrayList<Object[]>(BLOCK);
+			Object[] row = reader.next();
+			while (row != null && !this.closed) {
+				if (this.sourceColumn) {
+					Object[] vals = new Object[row.length + 1];
+					vals[0] = target;
+					System.arraycopy(row, 0, vals, 1, row.length);
+					row = vals;
+				}
+				block.add(row);
+				rows++;
+				if (block.size() >= BLOCK) {
+					this.put(queue, new Block(target, block, false, rows, null));
+					block = new ArrayList<Object[]>(BLOCK);
+				}
+				row = reader.next();
+			}
+			this.put(queue, new Block(target, block, true, rows, null));
+		} catch (Exception e) {
+			log.debug("Part {} failed after {} rows", target, rows, e);
+			this.put(queue, new Block(target, null, true, rows, e));
+			if (!ready && this.undescribed.decrementAndGet() == 0)
+				this.described.countDown();
+		} finally {
+			try {
+				if (stmt != null)
+					stmt.close();
+			} catch (SQLException e) {
+				log.warn("Error closing statement of part {} - continuing", target);
+			}
+			part.pool.release(c);
+		}
+	}
+
+	/**
+	 * Column layout of the stream from the first part, later parts have to return the same number of columns
+	 * @param target
+	 * @param reader
+	 * @throws EQLException
+	 */
+	protected synchronized void describe(String target, EQLCursorReader reader) throws EQLException {
+		int extra = (this.sourceColumn) ? 1 : 0;
+		if (this.names != null) {
+			if (reader.getColumnTypes().length != this.colTypes.length - extra)
+				throw new EQLException("Part '" + target + "' returned " + reader.getColumnTypes().length + " columns, expected " + (this.colTypes.length - extra));
+			return;
+		}
+		List<String> labels = new ArrayList<String>();
+		List<String> names = new ArrayList<String>();
+		if (this.sourceColumn) {
+			labels.add(TARGET_COLUMN);
+			names.add(TARGET_COLUMN);
+		}
+		labels.addAll(reader.getColumnLabels());
+		names.addAll(reader.getColumnNames());
+		this.colTypes = new int[names.size()];
+		if (this.sourceColumn)
+			this.colTypes[0] = Types.VARCHAR;
+		System.arraycopy(reader.getColumnTypes(), 0, this.colTypes, extra, reader.getColumnTypes().length);
+		this.labels = labels;
+		this.names = names;
+	}
+
+	protected void put(BlockingQueue<Block> queue, Block block) {
+		try {
+			while (!this.closed && !queue.offer(block, POLL_MS, TimeUnit.MILLISECONDS)) {
+				// reader is behind, wait for room
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
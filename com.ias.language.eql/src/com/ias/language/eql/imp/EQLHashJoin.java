@@ -0,0 +1,405 @@
+package com.ias.language.eql.imp;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ias.language.objects.EQLDataFrame;
+import com.ias.language.objects.EQLRowFile;
+import com.ias.language.objects.EQLRowSource;
+
+/**
+ * Client side equi-join of two row sources.
+ *   The build side is loaded into a columnar frame with a chained hash table over the key columns, the probe side
+ *   is streamed through it. When the build side grows past the memory budget both sides are hash partitioned to
+ *   spill files and each partition pair is joined in memory (grace hash join).
+ * Null keys never match, a left join keeps every probe row and fills the build columns with nulls.
+ */
+public class EQLHashJoin {
+	private final static Logger log = LoggerFactory.getLogger(EQLHashJoin.class.getCanonicalName());
+	private final static long ENTRY_BYTES = 48;	// hash map entry + chain slot per build row
+
+	protected EQLRowSource probe;
+	protected EQLRowSource build;
+	protected int[] probeKeys;
+	protected int[] buildKeys;
+	protected boolean leftOuter;
+	protected long memBudget;
+	protected int partitions;
+	protected List<String> outNames;
+	protected List<String> outLabels;
+	protected int[] outTypes;
+	protected long buildRows;
+	protected boolean spilled;
+
+	public EQLHashJoin(EQLRowSource probe, EQLRowSource build, int[] probeKeys, int[] buildKeys, boolean leftOuter, long memBudget, int partitions) {
+		this.probe = probe;
+		this.build = build;
+		this.probeKeys = probeKeys;
+		this.buildKeys = buildKeys;
+		this.leftOuter = leftOuter;
+		this.memBudget = memBudget;
+		this.partitions = Math.max(2, partitions);
+		this.buildRows = 0;
+		this.spilled = false;
+
+		// Output is every probe column followed by every build column, duplicate names get a numbered suffix
+		this.outNames = new ArrayList<String>(probe.getColumnNames());
+		this.outLabels = new ArrayList<String>(probe.getColumnLabels());
+		for(int idx=0; idx < build.getColumnNames().size(); idx++) {
+			this.outNames.add(uniqueName(this.outNames, build.getColumnNames().get(idx)));
+			this.outLabels.add(uniqueName(this.outLabels, build.getColumnLabels().get(idx)));
+		}
+		int pCols = probe.getColumnTypes().length;
+		int bCols = build.getColumnTypes().length;
+		this.outTypes = new int[pCols + bCols];
+		System.arraycopy(probe.getColumnTypes(), 0, this.outTypes, 0, pCols);
+		System.arraycopy(build.getColumnTypes(), 0, this.outTypes, pCols, bCols);
+	}
+
+	private static String uniqueName(List<String> existing, String name) {
+		String candidate = name;
+		int suffix = 2;
+		boolean found = true;
+		while (found) {
+			found = false;
+			for(String item : existing) {
+				if (item.equalsIgnoreCase(candidate)) {
+					found = true;
+					candidate = name + "_" + suffix++;
+					break;
+				}
+			}
+		}
+		return candidate;
+	}
+
+	public long getBuildRows() {
+		return this.buildRows;
+	}
+
+	public boolean isSpilled() {
+		return this.spilled;
+	}
+
+	/**
+	 * Join key of a row, numbers are normalized so keys from different drivers (Integer/Long/BigDecimal) match.
+	 * Returns null when any key column is null.
+	 * @param row
+	 * @param keys
+	 * @return
+	 */
+	public static Object keyOf(Object[] row, int[] keys) {
+		if (keys.length == 1)
+			return normalize(row[keys[0]]);
+
+		Object[] parts = new Object[keys.length];
+		for(int idx=0; idx < keys.length; idx++) {
+			parts[idx] = normalize(row[keys[idx]]);
+			if (parts[idx] == null)
+				return null;
+		}
+		return Arrays.asList(parts);
+	}
+
+	/**
+	 * Key form of a value, equal numbers of any java type give equal keys: whole numbers that fit become a Long,
+	 * other numbers a BigDecimal without trailing zeros (decimals keep all their digits). NaN and infinities stay
+	 * Double.
+	 * @param val
+	 * @return
+	 */
+	public static Object normalize(Object val) {
+		if (val instanceof Integer || val instanceof Long || val instanceof Short || val instanceof Byte) {
+			return ((Number) val).longValue();
+		} else if (val instanceof Double || val instanceof Float) {
+			double d = ((Number) val).doubleValue();
+			if (Double.isNaN(d) || Double.isInfinite(d))
+				return d;
+			if (d == Math.rint(d) && Math.abs(d) < Long.MAX_VALUE)
+				return (long) d;
+			return normalize(BigDecimal.valueOf(d));
+		} else if (val instanceof BigDecimal || val instanceof BigInteger) {
+			BigDecimal bd = ((val instanceof BigInteger) ? new BigDecimal((BigInteger) val) : (BigDecimal) val).stripTrailingZeros();
+			if (bd.scale() <= 0 && bd.toBigInteger().bitLength() < 64)
+				return bd.longValue();
+			return bd;
+		} else if (val instanceof java.util.Date) {
+			return ((java.util.Date) val).getTime();
+		}
+		return val;
+	}
+
+	private int partitionOf(Object key) {
+		if (key == null)
+			return 0;
+		int h = key.hashCode() * 0x9E3779B9;
+		return ((h ^ (h >>> 16)) & 0x7fffffff) % this.partitions;
+	}
+
+	/**
+	 * Consumes the build side and returns the joined rows as a stream over the probe side
+	 * @return
+	 * @throws EQLException
+	 */
+	public EQLRowSource execute() throws EQLException {
+		HashTable table = new HashTable();
+		Object[] row = this.build.next();
+		while (row != null) {
+			table.add(row);
+			this.buildRows++;
+			if (table.getBytes() > this.memBudget) {
+				return this.executePartitioned(table);
+			}
+			row = this.build.next();
+		}
+		log.debug("Join build side loaded in memory, rows:{} bytes:{}", this.buildRows, table.getBytes());
+		return new ProbeSource(this.probe, table, null);
+	}
+
+	protected EQLRowSource executePartitioned(HashTable partial) throws EQLException {
+		this.spilled = true;
+		EQLRowFile[] buildParts = new EQLRowFile[this.partitions];
+		EQLRowFile[] probeParts = new EQLRowFile[this.partitions];
+		try {
+			for(int idx=0; idx < this.partitions; idx++) {
+				buildParts[idx] = new EQLRowFile(this.build.getColumnTypes().length);
+				probeParts[idx] = new EQLRowFile(this.probe.getColumnTypes().length);
+			}
+
+			for(int idx=0; idx < partial.frame.getRowCount(); idx++) {
+				Object[] row = partial.frame.getRow(idx);
+				buildParts[this.partitionOf(keyOf(row, this.buildKeys))].write(row);
+			}
+			partial.frame.clear();
+
+			Object[] row = this.build.next();
+			while (row != null) {
+				this.buildRows++;
+				Object key = keyOf(row, this.buildKeys);
+				if (key != null)	// Null keys never match, nothing to keep
+					buildParts[this.partitionOf(key)].write(row);
+				row = this.build.next();
+			}
+
+			row = this.probe.next();
+			while (row != null) {
+				Object key = keyOf(row, this.probeKeys);
+				if (key != null || this.leftOuter)
+					probeParts[this.partitionOf(key)].write(row);
+				row = this.probe.next();
+			}
+		} catch (EQLException e) {
+			for(int idx=0; idx < this.partitions; idx++) {
+				if (buildParts[idx] != null)
+					buildParts[idx].close();
+				if (probeParts[idx] != null)
+					probeParts[idx].close();
+			}
+			throw e;
+		}
+		log.debug("Join spilled to {} partitions, build rows:{}", this.partitions, this.buildRows);
+		return new PartitionedSource(buildParts, probeParts);
+	}
+
+	/**
+	 * Build side rows in columnar storage with a chained hash index (head per key, next per row)
+	 */
+	protected class HashTable {
+		EQLDataFrame frame;
+		Map<Object,Integer> heads;
+		int[] next;
+
+		HashTable() {
+			this.frame = new EQLDataFrame(build.getColumnNames(), build.getColumnLabels(), build.getColumnTypes());
+			this.heads = new HashMap<Object,Integer>();
+			this.next = new int[1024];
+		}
+
+		void add(Object[] row) throws EQLException {
+			Object key = keyOf(row, buildKeys);
+			if (key == null)	// Null keys never match
+				return;
+			int idx = this.frame.getRowCount();
+			this.frame.add(row);
+			if (idx >= this.next.length)
+				this.next = Arrays.copyOf(this.next, this.next.length * 2);
+			Integer prev = this.heads.put(key, idx);
+			this.next[idx] = (prev == null) ? -1 : prev;
+		}
+
+		int first(Object key) {
+			if (key == null)
+				return -1;
+			Integer head = this.heads.get(key);
+			return (head == null) ? -1 : head;
+		}
+
+		long getBytes() {
+			return this.frame.getBytes() + ENTRY_BYTES * this.frame.getRowCount();
+		}
+	}
+
+	/**
+	 * Streams probe rows through one hash table
+	 */
+	protected class ProbeSource implements EQLRowSource {
+		EQLRowSource src;
+		HashTable table;
+		EQLRowFile file;
+		Object[] current;
+		int chain;
+		boolean emitted;
+
+		ProbeSource(EQLRowSource src, HashTable table, EQLRowFile file) {
+			this.src = src;
+			this.table = table;
+			this.file = file;
+			this.current = null;
+			this.chain = -1;
+		}
+
+		@Override
+		public List<String> getColumnNames() {
+			return outNames;
+		}
+
+		@Override
+		public List<String> getColumnLabels() {
+			return outLabels;
+		}
+
+		@Override
+		public int[] getColumnTypes() {
+			return outTypes;
+		}
+
+		@Override
+		public Object[] next() throws EQLException {
+			while (true) {
+				if (this.current != null) {
+					if (this.chain >= 0) {
+						int match = this.chain;
+						this.chain = this.table.next[match];
+						return this.combine(match);
+					}
+					if (!this.emitted && leftOuter) {
+						this.emitted = true;
+						return this.combine(-1);
+					}
+				}
+				this.current = (this.file != null) ? this.file.read() : this.src.next();
+				if (this.current == null)
+					return null;
+				this.chain = this.table.first(keyOf(this.current, probeKeys));
+				this.emitted = this.chain >= 0;
+			}
+		}
+
+		private Object[] combine(int buildRow) {
+			Object[] out = new Object[outTypes.length];
+			System.arraycopy(this.current, 0, out, 0, this.current.length);
+			if (buildRow >= 0) {
+				for(int idx=0; idx < this.table.frame.getColumnCount(); idx++) {
+					out[this.current.length + idx] = this.table.frame.get(buildRow, idx);
+				}
+			}
+			return out;
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.current = null;
+			if (this.file != null)
+				this.file.close();
+		}
+	}
+
+	/**
+	 * Joins the spilled partitions one pair at a time, only one build partition is in memory at once
+	 */
+	protected class PartitionedSource implements EQLRowSource {
+		EQLRowFile[] buildParts;
+		EQLRowFile[] probeParts;
+		int part;
+		ProbeSource current;
+
+		PartitionedSource(EQLRowFile[] buildParts, EQLRowFile[] probeParts) {
+			this.buildParts = buildParts;
+			this.probeParts = probeParts;
+			this.part = -1;
+			this.current = null;
+		}
+
+		@Override
+		public List<String> getColumnNames() {
+			return outNames;
+		}
+
+		@Override
+		public List<String> getColumnLabels() {
+			return outLabels;
+		}
+
+		@Override
+		public int[] getColumnTypes() {
+			return outTypes;
+		}
+
+		@Override
+		public Object[] next() throws EQLException {
+			while (true) {
+				if (this.current != null) {
+					Object[] row = this.current.next();
+					if (row != null)
+						return row;
+					this.closePart();
+				}
+				this.part++;
+				if (this.part >= partitions)
+					return null;
+
+				HashTable table = new HashTable();
+				this.buildParts[this.part].startRead();
+				Object[] row = this.buildParts[this.part].read();
+				while (row != null) {
+					table.add(row);
+					row = this.buildParts[this.part].read();
+				}
+				this.buildParts[this.part].close();
+				if (table.getBytes() > memBudget)
+					log.warn("Join partition #{} is over the memory budget ({} bytes), key values are skewed", this.part, table.getBytes());
+				this.probeParts[this.part].startRead();
+				this.current = new ProbeSource(null, table, this.probeParts[this.part]);
+			}
+		}
+
+		private void closePart() {
+			try {
+				this.current.close();
+			} catch (IOException e) {
+				log.warn("Error closing join partition - continuing");
+			}
+			this.current = null;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (this.current != null)
+				this.closePart();
+			for(int idx=0; idx < partitions; idx++) {
+				this.buildParts[idx].close();
+				this.probeParts[idx].close();
+			}
+			this.part = partitions;
+		}
+	}
+}
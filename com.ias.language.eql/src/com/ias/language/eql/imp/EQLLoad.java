@@ -0,0 +1,512 @@
+package com.ias.language.eql.imp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ias.language.objects.EQLConnection;
+import com.ias.language.objects.EQLDataFrame;
+
+/**
+ * Parallel load of a CSV file (RFC 4180, first record holds the column names) into a table.
+ *   The file is split into record aligned chunks by one pass that tracks quotes, so line breaks inside quoted
+ *   values never split a record. Worker threads take chunks in turn, memory map them, parse the records and insert
+ *   through batched prepared statements on pooled connections of the destination target.
+ *   Values are converted to the destination column types, records that do not convert or have the wrong number of
+ *   fields are written unchanged to the rejected file and the load continues. Database errors stop the load.
+ * Worker threads never write to the engine log (not thread safe), counts are reported by the caller.
+ */
+public class EQLLoad {
+	private final static Logger log = LoggerFactory.getLogger(EQLLoad.class.getCanonicalName());
+	private final static long MIN_CHUNK = 4L * 1024 * 1024;
+	private final static long MAX_CHUNK = 256L * 1024 * 1024;
+	private final static long SCAN_WINDOW = 64L * 1024 * 1024;
+
+	protected Path file;
+	protected EQLConnection dest;
+	protected String table;
+	protected int workers;
+	protected int batchSize;
+	protected int commitRows;
+	protected Path rejectFile;
+	protected List<String> columns;
+	protected int[] colTypes;
+	protected long[] chunkStarts;		// byte offset of each chunk, the last entry is the end of the data
+	protected long[] chunkRecords;		// record number of the first record of each chunk
+	protected AtomicLong rowsWritten;
+	protected AtomicLong rowsRejected;
+	protected AtomicLong commits;
+	protected AtomicReference<String> firstReject;
+	protected AtomicReference<Exception> failure;
+	protected OutputStream rejects;
+
+	public EQLLoad(Path file, EQLConnection dest, String table, int workers, int batchSize, int commitRows, Path rejectFile) {
+		this.file = file;
+		this.dest = dest;
+		this.table = table;
+		this.workers = Math.max(1, workers);
+		this.batchSize = Math.max(1, batchSize);
+		this.commitRows = commitRows;
+		this.rejectFile = rejectFile;
+		this.rowsWritten = new AtomicLong(0);
+		this.rowsRejected = new AtomicLong(0);
+		this.commits = new AtomicLong(0);
+		this.firstReject = new AtomicReference<String>();
+		this.failure = new AtomicReference<Exception>();
+	}
+
+	public long getRowsWritten() {
+		return this.rowsWritten.get();
+	}
+
+	public long getRowsRejected() {
+		return this.rowsRejected.get();
+	}
+
+	/**
+	 * Reason the first rejected record was rejected, null when none were
+	 * @return
+	 */
+	public String getFirstReject() {
+		return this.firstReject.get();
+	}
+
+	public long getCommits() {
+		return this.commits.get();
+	}
+
+	public int getChunks() {
+		return (this.chunkStarts == null) ? 0 : this.chunkStarts.length - 1;
+	}
+
+	public String getInsertStatement() {
+		List<String> marks = new ArrayList<String>();
+		for(int idx=0; idx < this.columns.size(); idx++) {
+			marks.add("?");
+		}
+		return "insert into " + this.table + " (" + StringUtils.join(this.columns, ",") + ") values (" + StringUtils.join(marks, ",") + ")";
+	}
+
+	/**
+	 * Runs the load to completion
+	 * @return rows inserted
+	 * @throws EQLException first error raised by any worker
+	 */
+	public long run() throws EQLException {
+		if (!Files.isReadable(this.file))
+			throw new EQLException("Load file " + this.file + " not found or not readable");
+		try (FileChannel channel = FileChannel.open(this.file, StandardOpenOption.READ)) {
+			long dataStart = this.readHeader(channel);
+			this.readColumnTypes();
+			this.split(channel, dataStart);
+			final String insert = this.getInsertStatement();
+			log.debug("Load of {} in {} chunks with {} workers, statement:{}", this.file, this.getChunks(), this.workers, insert);
+
+			final AtomicInteger nextChunk = new AtomicInteger(0);
+			final FileChannel fc = channel;
+			ExecutorService pool = Executors.newFixedThreadPool(Math.min(this.workers, Math.max(1, this.getChunks())));
+			List<Future<Long>> tasks = new ArrayList<Future<Long>>();
+			try {
+				for(int idx=0; idx < Math.min(this.workers, Math.max(1, this.getChunks())); idx++) {
+					tasks.add(pool.submit(new Callable<Long>() {
+						@Override
+						public Long call() throws Exception {
+							return write(fc, nextChunk, insert);
+						}
+					}));
+				}
+				for(Future<Long> task : tasks) {
+					try {
+						task.get();
+					} catch (ExecutionException e) {
+						Exception cause = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+						this.failure.compareAndSet(null, cause);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				this.failure.compareAndSet(null, e);
+			} finally {
+				pool.shutdownNow();
+			}
+		} catch (IOException e) {
+			this.failure.compareAndSet(null, e);
+		} finally {
+			if (this.rejects != null) {
+				try {
+					this.rejects.close();
+				} catch (IOException e) {
+					log.warn("Error closing rejected file {} - continuing", this.rejectFile);
+				}
+			}
+		}
+
+		Exception e = this.failure.get();
+		if (e != null) {
+			if (e instanceof EQLException)
+				throw (EQLException) e;
+			throw new EQLException("Load into " + this.table + " failed after " + this.rowsWritten.get() + " rows: " + e.getMessage());
+		}
+		return this.rowsWritten.get();
+	}
+
+	/**
+	 * Reads the column names from the first record
+	 * @return offset of the first data record
+	 */
+	protected long readHeader(FileChannel channel) throws IOException, EQLException {
+		MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), 1024 * 1024));
+		RecordParser parser = new RecordParser(buf, 0, buf.limit());
+		List<String> header = parser.next();
+		if (header == null || header.size() == 0)
+			throw new EQLException("Load file " + this.file + " is empty, the first record must hold the column names");
+		this.columns = new ArrayList<String>();
+		for(String name : header) {
+			if (name == null || name.trim().length() == 0)
+				throw new EQLException("Load file " + this.file + " has an empty column name in the first record");
+			this.columns.add(name.trim());
+		}
+		return parser.recordEnd;
+	}
+
+	/**
+	 * Destination column types in the order of the file columns
+	 */
+	protected void readColumnTypes() throws EQLException {
+		Connection conn = null;
+		try {
+			conn = this.dest.acquire();
+			try (Statement st = conn.createStatement();
+					ResultSet rs = st.executeQuery("select " + StringUtils.join(this.columns, ",") + " from " + this.table + " where 1=0")) {
+				ResultSetMetaData md = rs.getMetaData();
+				this.colTypes = new int[md.getColumnCount()];
+				for(int idx=0; idx < this.colTypes.length; idx++) {
+					this.colTypes[idx] = md.getColumnType(idx + 1);
+				}
+			}
+		} catch (SQLException e) {
+			throw new EQLException("Load columns " + this.columns + " not found in " + this.table + ": " + e.getMessage());
+		} finally {
+			this.dest.release(conn);
+		}
+	}
+
+	/**
+	 * Finds the chunk boundaries, each chunk ends after a record break outside quotes
+	 */
+	protected void split(FileChannel channel, long dataStart) throws IOException {
+		long size = channel.size();
+		long chunk = Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, (size - dataStart) / (this.workers * 4L) + 1));
+		List<Long> starts = new ArrayList<Long>();
+		List<Long> records = new ArrayList<Long>();
+		starts.add(dataStart);
+		records.add(0L);
+
+		boolean inQuote = false;
+		long recordCount = 0;
+		long nextSplit = dataStart + chunk;
+		for(long windowStart = dataStart; windowStart < size; windowStart += SCAN_WINDOW) {
+			long len = Math.min(SCAN_WINDOW, size - windowStart);
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, len);
+			for(int pos=0; pos < len; pos++) {
+				byte b = buf.get(pos);
+				if (b == '"') {
+					inQuote = !inQuote;
+				} else if (b == '\n' && !inQuote) {
+					recordCount++;
+					long end = windowStart + pos + 1;
+					if (end >= nextSplit && end < size) {
+						starts.add(end);
+						records.add(recordCount);
+						nextSplit = end + chunk;
+					}
+				}
+			}
+		}
+		starts.add(size);
+		this.chunkStarts = new long[starts.size()];
+		this.chunkRecords = new long[records.size()];
+		for(int idx=0; idx < starts.size(); idx++) {
+			this.chunkStarts[idx] = starts.get(idx);
+		}
+		for(int idx=0; idx < records.size(); idx++) {
+			this.chunkRecords[idx] = records.get(idx);
+		}
+	}
+
+	protected long write(FileChannel channel, AtomicInteger nextChunk, String insert) throws Exception {
+		Connection conn = null;
+		PreparedStatement ps = null;
+		long written = 0;
+		long sinceCommit = 0;
+		int inBatch = 0;
+		try {
+			conn = this.dest.acquire();
+			conn.setAutoCommit(false);
+			ps = conn.prepareStatement(insert);
+			int chunk = nextChunk.getAndIncrement();
+			while (chunk < this.getChunks()) {
+				if (this.failure.get() != null)
+					throw new EQLException("Load worker stopped, another worker failed");
+				long start = this.chunkStarts[chunk];
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start, this.chunkStarts[chunk + 1] - start);
+				RecordParser parser = new RecordParser(buf, 0, buf.limit());
+				long record = this.chunkRecords[chunk] + 2;	// the header is record 1
+				List<String> fields = parser.next();
+				while (fields != null) {
+					if (fields.size() == 1 && fields.get(0) == null) {	// blank lines are skipped
+						record++;
+						fields = parser.next();
+						continue;
+					}
+					String reason = this.bind(ps, fields);
+					if (reason == null) {
+						ps.addBatch();
+						inBatch++;
+						if (inBatch >= this.batchSize) {
+							ps.executeBatch();
+							written += inBatch;
+							sinceCommit += inBatch;
+							this.rowsWritten.addAndGet(inBatch);
+							inBatch = 0;
+						}
+						if (this.commitRows > 0 && sinceCommit >= this.commitRows) {
+							conn.commit();
+							this.commits.incrementAndGet();
+							sinceCommit = 0;
+						}
+					} else {
+						this.reject(buf, parser.recordStart, parser.recordEnd, "record #" + record + " " + reason);
+					}
+					record++;
+					fields = parser.next();
+				}
+				chunk = nextChunk.getAndIncrement();
+			}
+			if (inBatch > 0) {
+				ps.executeBatch();
+				written += inBatch;
+				this.rowsWritten.addAndGet(inBatch);
+			}
+			conn.commit();
+			this.commits.incrementAndGet();
+		} catch (Exception e) {
+			this.failure.compareAndSet(null, e);
+			if (conn != null) {
+				try {
+					conn.rollback();
+				} catch (SQLException e1) {
+					log.warn("Rollback failed on load worker:{}", e1.getMessage());
+				}
+			}
+			throw e;
+		} finally {
+			if (ps != null) {
+				try {
+					ps.close();
+				} catch (SQLException e) {
+					log.warn("Error closing load statement - continuing");
+				}
+			}
+			this.dest.release(conn);
+		}
+		return written;
+	}
+
+	/**
+	 * Binds one record, the statement is left untouched when the record is rejected
+	 * @return null when bound, otherwise the reject reason
+	 */
+	protected String bind(PreparedStatement ps, List<String> fields) throws SQLException {
+		if (fields.size() != this.colTypes.length)
+			return "has " + fields.size() + " fields, expected " + this.colTypes.length;
+		Object[] vals = new Object[fields.size()];
+		for(int idx=0; idx < vals.length; idx++) {
+			String field = fields.get(idx);
+			if (field == null)
+				continue;
+			try {
+				vals[idx] = convert(field, this.colTypes[idx]);
+			} catch (IllegalArgumentException e) {
+				return "column " + this.columns.get(idx) + " value '" + StringUtils.abbreviate(field, 40) + "' is not a valid " + this.typeName(idx);
+			}
+		}
+		for(int idx=0; idx < vals.length; idx++) {
+			if (vals[idx] == null)
+				ps.setNull(idx + 1, this.colTypes[idx]);
+			else
+				ps.setObject(idx + 1, vals[idx]);
+		}
+		return null;
+	}
+
+	private String typeName(int col) {
+		int type = this.colTypes[col];
+		if (EQLDataFrame.isIntegral(type))
+			return "integer";
+		if (EQLDataFrame.isFloating(type) || type == Types.DECIMAL || type == Types.NUMERIC)
+			return "number";
+		return "value of type " + type;
+	}
+
+	/**
+	 * Text of a field as the java type of a JDBC column type
+	 * @throws IllegalArgumentException value does not convert
+	 */
+	protected static Object convert(String field, int sqlType) {
+		switch (sqlType) {
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+				return Integer.valueOf(field.trim());
+			case Types.BIGINT:
+				return Long.valueOf(field.trim());
+			case Types.FLOAT:
+			case Types.REAL:
+			case Types.DOUBLE:
+				return Double.valueOf(field.trim());
+			case Types.DECIMAL:
+			case Types.NUMERIC:
+				return new BigDecimal(field.trim());
+			case Types.DATE:
+				return Date.valueOf(field.trim());
+			case Types.TIME:
+				return Time.valueOf(field.trim());
+			case Types.TIMESTAMP:
+				return Timestamp.valueOf(field.trim());
+			case Types.BOOLEAN:
+			case Types.BIT:
+				String b = field.trim().toLowerCase();
+				if (b.equals("true") || b.equals("1") || b.equals("y"))
+					return Boolean.TRUE;
+				if (b.equals("false") || b.equals("0") || b.equals("n"))
+					return Boolean.FALSE;
+				throw new IllegalArgumentException(field);
+			default:
+				return field;
+		}
+	}
+
+	protected synchronized void reject(MappedByteBuffer buf, int start, int end, String reason) throws IOException {
+		if (this.rowsRejected.getAndIncrement() == 0) {
+			this.firstReject.set(reason);
+			this.rejects = Files.newOutputStream(this.rejectFile);
+			this.rejects.write((StringUtils.join(this.columns, ",") + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+		log.debug("Load rejected {}", reason);
+		byte[] b = new byte[end - start];
+		for(int idx=0; idx < b.length; idx++) {
+			b[idx] = buf.get(start + idx);
+		}
+		this.rejects.write(b);
+		if (b.length == 0 || b[b.length - 1] != '\n')
+			this.rejects.write('\n');
+	}
+
+	/**
+	 * RFC 4180 record reader over a mapped region. Unquoted empty fields are null, quoted empty fields are empty
+	 * strings. Records end with \n or \r\n.
+	 */
+	protected static class RecordParser {
+		MappedByteBuffer buf;
+		int pos;
+		int limit;
+		int recordStart;
+		int recordEnd;
+		byte[] field = new byte[256];
+
+		RecordParser(MappedByteBuffer buf, int start, int limit) {
+			this.buf = buf;
+			this.pos = start;
+			this.limit = limit;
+		}
+
+		/**
+		 * Fields of the next record, null at the end of the region
+		 */
+		List<String> next() {
+			if (this.pos >= this.limit)
+				return null;
+			this.recordStart = this.pos;
+			List<String> fields = new ArrayList<String>();
+			int len = 0;
+			boolean quoted = false;
+			boolean inQuote = false;
+			while (this.pos < this.limit) {
+				byte b = this.buf.get(this.pos++);
+				if (inQuote) {
+					if (b == '"') {
+						if (this.pos < this.limit && this.buf.get(this.pos) == '"') {
+							this.pos++;
+							len = this.add(len, b);
+						} else {
+							inQuote = false;
+						}
+					} else {
+						len = this.add(len, b);
+					}
+				} else if (b == '"') {
+					inQuote = true;
+					quoted = true;
+				} else if (b == ',') {
+					fields.add(this.value(len, quoted));
+					len = 0;
+					quoted = false;
+				} else if (b == '\n') {
+					break;
+				} else if (b == '\r' && (this.pos >= this.limit || this.buf.get(this.pos) == '\n')) {
+					// CRLF record break
+				} else {
+					len = this.add(len, b);
+				}
+			}
+			fields.add(this.value(len, quoted));
+			this.recordEnd = this.pos;
+			return fields;
+		}
+
+		private int add(int len, byte b) {
+			if (len == this.field.length)
+				this.field = Arrays.copyOf(this.field, len * 2);
+			this.field[len] = b;
+			return len + 1;
+		}
+
+		private String value(int len, boolean quoted) {
+			if (len == 0 && !quoted)
+				return null;
+			return new String(this.field, 0, len, StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package com.ias.language.eql.imp;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Engine log pipeline. Messages are queued unformatted in a bounded buffer and a single writer thread formats them
+ * and writes them to the console and the log file while the script runs.
+ *   Config: eql.log.buffer (messages queued, default 10000), eql.log.file (appended when set).
+ *   A full buffer blocks warnings and errors until there is room, debug and info messages are dropped and the count
+ *   is logged once the writer catches up. The most recent lines stay available through getLines.
+ *   Several engines can write to one sink (matrix runs), each line carries the tag of its engine.
+ */
+public class EQLLogSink implements Closeable {
+	private final static Logger log = LoggerFactory.getLogger(EQLLogSink.class.getCanonicalName());
+	private final static String[] LEVELS = {"", "DEBUG", "INFO ", "WARN ", "ERROR"};
+	private final static int TAIL = 1000;
+	private final static long POLL_MS = 200;
+
+	public final static int DEBUG = 1;
+	public final static int INFO = 2;
+	public final static int WARN = 3;
+	public final static int ERROR = 4;
+
+	protected static class Entry {
+		final long time;
+		final int level;
+		final String tag;
+		final String src;
+		final String msg;
+
+		Entry(long time, int level, String tag, String src, String msg) {
+			this.time = time;
+			this.level = level;
+			this.tag = tag;
+			this.src = src;
+			this.msg = msg;
+		}
+	}
+
+	protected final BlockingQueue<Entry> queue;
+	protected final DateTimeFormatter stamp;
+	protected final ArrayDeque<String> tail;
+	protected final AtomicLong queued;
+	protected final AtomicLong dropped;
+	protected volatile PrintStream console;
+	protected String fileName;
+	protected BufferedWriter file;
+	protected Thread writer;
+	protected long written;		// guarded by this
+	protected volatile boolean closed;
+
+	public EQLLogSink(Properties config) {
+		int capacity = 10000;
+		if (config != null) {
+			try {
+				capacity = Math.max(100, Integer.parseInt(config.getProperty("eql.log.buffer", "10000")));
+			} catch (NumberFormatException e) {
+				log.warn("Illegal eql.log.buffer value {}, using {}", config.getProperty("eql.log.buffer"), capacity);
+			}
+			this.fileName = config.getProperty("eql.log.file");
+		}
+		this.queue = new ArrayBlockingQueue<Entry>(capacity);
+		this.stamp = DateTimeFormatter.ofPattern("MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+		this.tail = new ArrayDeque<String>(TAIL);
+		this.queued = new AtomicLong();
+		this.dropped = new AtomicLong();
+		this.written = 0;
+	}
+
+	/**
+	 * Lines are written to the stream as well, null stops console output
+	 * @param console
+	 */
+	public void setConsole(PrintStream console) {
+		this.console = console;
+	}
+
+	/**
+	 * Queues a message, the writer thread starts with the first one
+	 * @param level DEBUG, INFO, WARN or ERROR
+	 * @param tag engine of the message, empty for a single engine
+	 * @param src
+	 * @param msg
+	 */
+	public void write(int level, String tag, String src, String msg) {
+		if (this.closed) {
+			log.info("{}{} - {} (log closed)", tag, src, msg);
+			return;
+		}
+		this.start();
+		Entry entry = new Entry(System.currentTimeMillis(), level, tag, src, msg);
+		if (level >= WARN) {
+			try {
+				this.queue.put(entry);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		} else if (!this.queue.offer(entry)) {
+			this.dropped.incrementAndGet();
+			return;
+		}
+		this.queued.incrementAndGet();
+	}
+
+	/**
+	 * Most recent lines written, oldest first
+	 * @return
+	 */
+	public List<String> getLines() {
+		synchronized (this.tail) {
+			return new ArrayList<String>(this.tail);
+		}
+	}
+
+	/**
+	 * Waits until every message queued so far is written
+	 */
+	public void flush() {
+		long target = this.queued.get();
+		synchronized (this) {
+			while (this.written < target && this.writer != null && this.writer.isAlive()) {
+				try {
+					this.wait(POLL_MS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		if (this.closed)
+			return;
+		this.flush();
+		this.closed = true;
+		synchronized (this) {
+			if (this.writer != null)
+				this.writer.interrupt();
+		}
+		try {
+			if (this.writer != null)
+				this.writer.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			if (this.file != null)
+				this.file.close();
+		} catch (IOException e) {
+			log.warn("Error closing log file {} - continuing", this.fileName);
+		}
+	}
+
+	protected synchronized void start() {
+		if (this.writer != null)
+			return;
+		if (this.fileName != null && this.fileName.length() > 0) {
+			try {
+				this.file = Files.newBufferedWriter(Paths.get(this.fileName), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			} catch (IOException e) {
+				log.error("Unable to open log file {}, engine log goes to the console only: {}", this.fileName, e.getMessage());
+			}
+		}
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "eql-log");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Writer thread, runs until the sink is closed and the queue is empty
+	 */
+	protected void drain() {
+		List<Entry> batch = new ArrayList<Entry>();
+		StringBuilder sb = new StringBuilder(256);
+		while (!this.closed || !this.queue.isEmpty()) {
+			try {
+				Entry first = this.queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+				if (first == null)
+					continue;
+				batch.add(first);
+			} catch (InterruptedException e) {
+				if (!this.closed)
+					continue;
+			}
+			this.queue.drainTo(batch);
+			for(Entry entry : batch) {
+				sb.setLength(0);
+				this.stamp.formatTo(Instant.ofEpochMilli(entry.time), sb);
+				sb.append(' ').append(entry.tag).append('[').append(entry.src).append("] ").append(LEVELS[entry.level]).append(" - ").append(entry.msg);
+				this.emit(sb.toString());
+			}
+			long lost = this.dropped.getAndSet(0);
+			if (lost > 0)
+				this.emit("Log buffer full, " + lost + " debug and info messages dropped (eql.log.buffer)");
+			this.flushOutputs();
+			synchronized (this) {
+				this.written += batch.size();
+				this.notifyAll();
+			}
+			batch.clear();
+		}
+	}
+
+	protected void emit(String line) {
+		PrintStream out = this.console;
+		if (out != null)
+			out.println(line);
+		if (this.file != null) {
+			try {
+				this.file.write(line);
+				this.file.newLine();
+			} catch (IOException e) {
+				log.error("Writing log file {} failed, engine log goes to the console only: {}", this.fileName, e.getMessage());
+				this.file = null;
+			}
+		}
+		synchronized (this.tail) {
+			if (this.tail.size() >= TAIL)
+				this.tail.removeFirst();
+			this.tail.addLast(line);
+		}
+	}
+
+	protected void flushOutputs() {
+		PrintStream out = this.console;
+		if (out != null)
+			out.flush();
+		try {
+			if (this.file != null)
+				this.file.flush();
+		} catch (IOException e) {
+			log.warn("Error flushing log file {} - continuing", this.fileName);
+		}
+	}
+}
@@ -1,7 +1,23 @@
 package com.ias.language.eql.imp;
 
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -9,13 +25,16 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.ias.language.objects.EQLConnection;
 import com.ias.language.objects.EQLObject;
 
 public class EQLMain {
 	private final static Logger log = LoggerFactory.getLogger(EQLMain.class.getCanonicalName());
+	private final static Pattern MATRIX_QUERY = Pattern.compile("^([\\w-]+):\\s*(select\\s.+)$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
 
 	/**
 	 * 
@@ -83,53 +102,27 @@ public class EQLMain {
 			/////////// Drive the engine
 			if (sql != null && sql.length()> 1) {
 				EQLCommandLineDriver engine = new EQLCommandLineDriver(config);
-				engine.compile(sql);
-				log.info("Compiled SQL stmts   : {}", engine.instructions.size());
-				if (cmdParms.getOptionValues("p") != null) {
-					for(String item : cmdParms.getOptionValues("p")) {
-						String[] parts = item.split(":(?=([^\\\"]*\\\"[^\\\"]*\\\")*[^\\\"]*$)");
-						if (parts.length ==2) {
-							log.info("Parm: key: {} = {}", parts[0], parts[1]);
-							engine.setVariableDirect(parts[0], parts[1]);
-						} else {
-							throw new EQLException("Invalid value found in parm: " + item);
-						}
-					}
-				}
-				
+				engine.getLogSink().setConsole(System.out);		// engine log streams while the script runs
+				System.out.println("\n=====Start EQL engine log=======================================================\n");
 				try {
-					log.info("Starting execution--------------------");
-					engine.run(restartLine);
-					log.info("Execute completed---------------------");
-					if (engine.getLastCompletedInstructionNumber() != engine.instructions.size()) {
-						returnCode = 10;  // Didn't complete execution
+					if (!engine.compile(sql))
+						throw new EQLException("Script did not compile: " + sqlFilename);
+					log.info("Compiled SQL stmts   : {}", engine.instructions.size());
+					if (cmdParms.hasOption("matrix")) {
+						returnCode = runMatrix(engine, config, cmdParms, restartLine, verbose);
 					} else {
-						returnCode = 0;
+						setParms(engine, cmdParms.getOptionValues("p"));
+						EQLEngineMonitor monitor = EQLEngineMonitor.register(engine, config, sqlFilename, 0);
+						try {
+							returnCode = runEngine(engine, restartLine, verbose, "");
+						} finally {
+							if (monitor != null)
+								monitor.unregister();
+						}
 					}
 				} finally {
-					System.out.println("\n=====Start EQL engine log=======================================================\n");
-					for(String msg : engine.getLogs()) {
-						System.out.println(msg);
-					}
+					engine.closeLog();
 					System.out.println("\n=====End EQL engine log=========================================================\n");
-					log.info("Last instruction # completed:{}", engine.getLastCompletedInstructionNumber());
-						if (returnCode != 0 || verbose) {
-							StringBuilder cmdLnRestart = new StringBuilder();
-							cmdLnRestart.append("-r=" + engine.getLastCompletedInstructionNumber() + " -p=");
-							boolean separate = false;
-							for(String key : engine.vars.keySet()) {
-								if (separate) {
-									cmdLnRestart.append(",");
-								}
-								EQLObject val = engine.vars.get(key);
-								if (val.getType() != EQLObject.types.cursor) {
-									cmdLnRestart.append(key + ":" + val);
-									log.debug("Var: {}  Type:{}  Val:{}", key, val.getType(), val);
-									separate = true;
-								}
-							}
-							log.info("Restart parms list: {}", cmdLnRestart.toString());
-						}
 				}
 			}
 		} catch (EQLException e) {
@@ -142,6 +135,202 @@ public class EQLMain {
 		System.exit(returnCode);
 	}
 
+	/**
+	 * Assigns -p style values (name:value) to the engine variables
+	 * @param engine
+	 * @param items
+	 * @throws EQLException
+	 */
+	static void setParms(EQLCommandLineDriver engine, String[] items) throws EQLException {
+		if (items == null)
+			return;
+		for(String item : items) {
+			String[] parts = item.split(":", 2);	// values keep their colons (times, URLs)
+			if (parts.length ==2) {
+				log.info("Parm: key: {} = {}", parts[0], parts[1]);
+				engine.setVariableDirect(parts[0], parts[1]);
+			} else {
+				throw new EQLException("Invalid value found in parm: " + item);
+			}
+		}
+	}
+
+	/**
+	 * Runs a compiled engine, logs the restart parameters when it did not complete
+	 * @param engine
+	 * @param restartLine
+	 * @param verbose
+	 * @param title identifies the parameter set of a matrix run
+	 * @return exit code, 0 when every instruction completed
+	 */
+	static int runEngine(EQLCommandLineDriver engine, int restartLine, boolean verbose, String title) {
+		int returnCode = -1;
+		try {
+			log.info("Starting execution--------------------{}", title);
+			engine.run(restartLine);
+			log.info("Execute completed---------------------{}", title);
+			if (engine.getLastCompletedInstructionNumber() != engine.instructions.size()) {
+				returnCode = 10;  // Didn't complete execution
+			} else {
+				returnCode = 0;
+			}
+		} finally {
+			engine.close();
+			log.info("Last instruction # completed:{}{}", engine.getLastCompletedInstructionNumber(), title);
+				if (returnCode != 0 || verbose) {
+					StringBuilder cmdLnRestart = new StringBuilder();
+					cmdLnRestart.append("-r=" + engine.getLastCompletedInstructionNumber() + " -p=");
+					boolean separate = false;
+					for(String key : engine.vars.keySet()) {
+						if (separate) {
+							cmdLnRestart.append(",");
+						}
+						EQLObject val = engine.vars.get(key);
+						if (val.getType() != EQLObject.types.cursor && val.getType() != EQLObject.types.index && val.getType() != EQLObject.types.file) {
+							cmdLnRestart.append(key + ":" + val);
+							log.debug("Var: {}  Type:{}  Val:{}", key, val.getType(), val);
+							separate = true;
+						}
+					}
+					log.info("Restart parms list{}: {}", title, cmdLnRestart.toString());
+				}
+		}
+		return returnCode;
+	}
+
+	/**
+	 * Runs the compiled script once per parameter set on a worker pool (-t threads, default 4). Every set gets its
+	 * own engine sharing the compiled instructions and the connection pools (eql.target.pool caps the connections of a
+	 * target across all sets). The sets come from -matrix:
+	 *   -matrix sets.txt					one -p list per line (name:value,name2:value2), # starts a comment
+	 *   -matrix "target:select id cust ..."	one set per row of a driving query, columns are the variable names
+	 * Values from -p apply to every set before the set values. The sets write to one engine log, each line starts with
+	 * the set number (#n).
+	 * @return 0 when every set completed, otherwise 10
+	 * @throws EQLException
+	 */
+	static int runMatrix(final EQLCommandLineDriver template, final Properties config, final CommandLine cmdParms, final int restartLine, final boolean verbose) throws EQLException {
+		final Map<String, EQLConnection> pools = new HashMap<String, EQLConnection>();
+		int threads = 4;
+		try {
+			if (cmdParms.getOptionValue("t") != null)
+				threads = Math.max(1, Integer.parseInt(cmdParms.getOptionValue("t")));
+		} catch (NumberFormatException e) {
+			throw new EQLException("Illegal value for -t, expecting a thread count, recieved: " + cmdParms.getOptionValue("t"));
+		}
+		final int engines = threads;
+		template.sharePools(pools, engines);
+		log.info("Connection pools are sized to eql.<target>.pool plus {} connections for the engine connects", engines);
+
+		final EQLLogSink sink = new EQLLogSink(config);
+		sink.setConsole(System.out);
+		ExecutorService workers = null;
+		try {
+			final List<String[]> sets = getMatrixSets(template, cmdParms.getOptionValue("matrix"));
+			log.info("Matrix parameter sets: {} threads: {}", sets.size(), threads);
+			workers = Executors.newFixedThreadPool(threads);
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for(int idx=0; idx < sets.size(); idx++) {
+				final String title = " (set #" + (idx + 1) + " " + StringUtils.join(sets.get(idx), ",") + ")";
+				final String tag = "#" + (idx + 1);
+				final int setNbr = idx + 1;
+				final String[] set = sets.get(idx);
+				results.add(workers.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						EQLCommandLineDriver engine = new EQLCommandLineDriver(config);
+						engine.instructions = template.instructions;	// compiled once, instructions are not changed by a run
+						engine.sharePools(pools, engines);
+						engine.setLogSink(sink, tag);
+						setParms(engine, cmdParms.getOptionValues("p"));
+						setParms(engine, set);
+						EQLEngineMonitor monitor = EQLEngineMonitor.register(engine, config, cmdParms.getOptionValue("f"), setNbr);
+						try {
+							return runEngine(engine, restartLine, verbose, title);
+						} finally {
+							if (monitor != null)
+								monitor.unregister();
+						}
+					}
+				}));
+			}
+
+			int returnCode = 0;
+			int failed = 0;
+			for(int idx=0; idx < results.size(); idx++) {
+				int code;
+				try {
+					code = results.get(idx).get();
+				} catch (ExecutionException e) {
+					log.error("Matrix set #{} failed: {}", idx + 1, e.getCause().getMessage());
+					code = 10;
+				}
+				log.info("Matrix set #{} exit code:{} parms:{}", idx + 1, code, StringUtils.join(sets.get(idx), ","));
+				if (code != 0) {
+					failed++;
+					returnCode = 10;
+				}
+			}
+			log.info("Matrix completed sets:{} failed:{}", results.size(), failed);
+			return returnCode;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new EQLException("Matrix run interrupted");
+		} finally {
+			if (workers != null)
+				workers.shutdownNow();
+			sink.close();
+			synchronized (pools) {
+				for(EQLConnection pool : pools.values()) {
+					pool.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parameter sets of a matrix run as -p style name:value lists
+	 * @param template engine used for the driving query connection
+	 * @param source file name or target:select...
+	 * @return
+	 * @throws EQLException
+	 */
+	static List<String[]> getMatrixSets(EQLCommandLineDriver template, String source) throws EQLException {
+		List<String[]> sets = new ArrayList<String[]>();
+		Matcher m = MATRIX_QUERY.matcher(source);
+		if (m.matches()) {
+			EQLConnection pool = template.getPool(m.group(1));
+			Connection c = null;
+			try {
+				c = pool.acquire();
+				try (Statement stmt = c.createStatement(); ResultSet rs = stmt.executeQuery(m.group(2))) {
+					ResultSetMetaData md = rs.getMetaData();
+					while (rs.next()) {
+						String[] set = new String[md.getColumnCount()];
+						for(int col=1; col <= md.getColumnCount(); col++) {
+							Object val = rs.getObject(col);
+							String text = (val == null) ? "" : (val instanceof Number) ? val.toString() : "'" + val.toString() + "'";
+							set[col - 1] = md.getColumnLabel(col).toLowerCase() + ":" + text;
+						}
+						sets.add(set);
+					}
+				}
+			} catch (SQLException e) {
+				throw new EQLException("Matrix driving query failed: " + e.getMessage());
+			} finally {
+				pool.release(c);
+			}
+			return sets;
+		}
+
+		for(String line : EQLUtilities.readSQLFile(source).split("\\r?\\n")) {
+			if (line.trim().length() == 0 || line.trim().startsWith("#"))
+				continue;
+			sets.add(line.trim().split(",(?=([^\"']*[\"'][^\"']*[\"'])*[^\"']*$)"));
+		}
+		return sets;
+	}
+
 	static CommandLine processArgs(String[] args) {
 		//Read command line options
 		// Call with parms
@@ -153,6 +342,8 @@ public class EQLMain {
 		options.addOption("f", true, "SQL filename");
 		options.addOption("r", true, "Restart Instruction line #");
 		options.addOption("c", true, "Configuration filename");
+		options.addOption("matrix", true, "Parameter sets, a file of -p lists or target:select driving query");
+		options.addOption("t", true, "Matrix worker threads");
 		
 		options.addOption(
 				Option.builder("v")
@@ -0,0 +1,200 @@
+package com.ias.language.eql.imp;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.ias.language.objects.EQLInstruction;
+import com.ias.language.objects.EQLInstructionStats;
+
+/**
+ * Per instruction metrics of one script run, written as a report when the run ends.
+ *   Config: eql.metrics.file (report, .csv for CSV otherwise JSON), eql.metrics.top (slowest instructions logged
+ *   after the run). Metrics are only collected when one of them is set.
+ *   Wall time and heap allocation of an instruction run from its start to the start of the next one, statements
+ *   waiting to be coalesced are charged to the instruction that sends them. Prepare, execute, first row and fetch
+ *   times tell server time (execute, first row) apart from transfer and client time (fetch, the rest of the total).
+ */
+public class EQLRunMetrics {
+	protected Map<Integer, EQLInstructionStats> stats;
+	protected com.sun.management.ThreadMXBean threads;		// null when thread allocation is not available
+	protected EQLInstructionStats current;
+	protected long started;
+	protected long startAllocated;
+
+	public EQLRunMetrics() {
+		this.stats = new TreeMap<Integer, EQLInstructionStats>();
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported()) {
+			this.threads = (com.sun.management.ThreadMXBean)bean;
+			if (!this.threads.isThreadAllocatedMemoryEnabled())
+				this.threads.setThreadAllocatedMemoryEnabled(true);
+		}
+	}
+
+	/**
+	 * Metrics of the config, null when none were asked for
+	 * @param config
+	 * @return
+	 */
+	public static EQLRunMetrics forConfig(Properties config) {
+		if (config == null)
+			return null;
+		if (config.getProperty("eql.metrics.file") == null && config.getProperty("eql.metrics.top") == null)
+			return null;
+		return new EQLRunMetrics();
+	}
+
+	/**
+	 * Stats of an instruction, created on first use
+	 * @param nbr instruction number
+	 * @param inst
+	 * @return
+	 */
+	public EQLInstructionStats get(int nbr, EQLInstruction inst) {
+		EQLInstructionStats stat = this.stats.get(nbr);
+		if (stat == null) {
+			String text = (inst.getAssignName() != null) ? "@" + inst.getAssignName() + " = " + inst.getAssignVal() : String.valueOf(inst.getAssignVal());
+			stat = new EQLInstructionStats(nbr, String.valueOf(inst.getOpcode()), StringUtils.substring(text, 0, 60).replaceAll("\\s+", " "));
+			this.stats.put(nbr, stat);
+		}
+		return stat;
+	}
+
+	/**
+	 * Starts timing an instruction, the previous one ends here
+	 * @param nbr
+	 * @param inst
+	 */
+	public void begin(int nbr, EQLInstruction inst) {
+		this.end();
+		this.current = this.get(nbr, inst);
+		this.startAllocated = this.allocated();
+		this.started = System.nanoTime();
+	}
+
+	public void end() {
+		if (this.current == null)
+			return;
+		long nanos = System.nanoTime() - this.started;
+		long alloc = this.allocated();
+		this.current.ran(nanos, (alloc < 0) ? -1 : alloc - this.startAllocated);
+		this.current = null;
+	}
+
+	protected long allocated() {
+		if (this.threads == null)
+			return -1;
+		return this.threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	public List<EQLInstructionStats> getStats() {
+		return new ArrayList<EQLInstructionStats>(this.stats.values());
+	}
+
+	/**
+	 * Instructions with the most wall time
+	 * @param n
+	 * @return
+	 */
+	public List<EQLInstructionStats> slowest(int n) {
+		List<EQLInstructionStats> list = this.getStats();
+		Collections.sort(list, new Comparator<EQLInstructionStats>() {
+			@Override
+			public int compare(EQLInstructionStats a, EQLInstructionStats b) {
+				return Long.compare(b.getTotalNanos(), a.getTotalNanos());
+			}
+		});
+		return list.subList(0, Math.min(n, list.size()));
+	}
+
+	/**
+	 * One line summary of an instruction for the engine log
+	 * @param stat
+	 * @return
+	 */
+	public static String summary(EQLInstructionStats stat) {
+		StringBuilder sb = new StringBuilder();
+		sb.append('#').append(stat.getInstruction()).append(' ').append(stat.getOpcode())
+			.append(" total:").append(ms(stat.getTotalNanos())).append("ms");
+		if (stat.getRuns() > 1)
+			sb.append(" runs:").append(stat.getRuns());
+		if (stat.getPrepareNanos() + stat.getExecuteNanos() + stat.getFetchNanos() > 0)
+			sb.append(" (prepare:").append(ms(stat.getPrepareNanos()))
+				.append(" execute:").append(ms(stat.getExecuteNanos()))
+				.append(" first row:").append(ms(stat.getFirstRowNanos()))
+				.append(" fetch:").append(ms(stat.getFetchNanos())).append(')');
+		if (stat.getRows() > 0)
+			sb.append(" rows:").append(stat.getRows());
+		if (stat.getBytes() > 0)
+			sb.append(" ~").append(stat.getBytes() / 1024).append("KB");
+		if (stat.getAllocated() > 0)
+			sb.append(" alloc:").append(stat.getAllocated() / 1024).append("KB");
+		sb.append(" - ").append(stat.getText());
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the report, CSV when the file name ends in .csv otherwise a JSON array
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(String file) throws IOException {
+		boolean csv = file.toLowerCase(Locale.ROOT).endsWith(".csv");
+		try (BufferedWriter out = Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8)) {
+			if (csv)
+				out.write("instruction,opcode,runs,total_ms,prepare_ms,execute_ms,first_row_ms,fetch_ms,rows,bytes,allocated_bytes,text\n");
+			else
+				out.write("[\n");
+			boolean first = true;
+			for(EQLInstructionStats stat : this.stats.values()) {
+				StringBuilder sb = new StringBuilder();
+				if (csv) {
+					sb.append(stat.getInstruction()).append(',').append(stat.getOpcode()).append(',')
+						.append(stat.getRuns()).append(',').append(ms(stat.getTotalNanos())).append(',')
+						.append(ms(stat.getPrepareNanos())).append(',').append(ms(stat.getExecuteNanos())).append(',')
+						.append(ms(stat.getFirstRowNanos())).append(',').append(ms(stat.getFetchNanos())).append(',')
+						.append(stat.getRows()).append(',').append(stat.getBytes()).append(',').append(stat.getAllocated()).append(',')
+						.append('"').append(stat.getText().replace("\"", "\"\"")).append("\"\n");
+				} else {
+					sb.append((first) ? "  {" : ",\n  {");
+					sb.append("\"instruction\":").append(stat.getInstruction())
+						.append(",\"opcode\":\"").append(stat.getOpcode()).append('"')
+						.append(",\"runs\":").append(stat.getRuns())
+						.append(",\"total_ms\":").append(ms(stat.getTotalNanos()))
+						.append(",\"prepare_ms\":").append(ms(stat.getPrepareNanos()))
+						.append(",\"execute_ms\":").append(ms(stat.getExecuteNanos()))
+						.append(",\"first_row_ms\":").append(ms(stat.getFirstRowNanos()))
+						.append(",\"fetch_ms\":").append(ms(stat.getFetchNanos()))
+						.append(",\"rows\":").append(stat.getRows())
+						.append(",\"bytes\":").append(stat.getBytes())
+						.append(",\"allocated_bytes\":").append(stat.getAllocated())
+						.append(",\"text\":");
+					EQLExport.appendJsonString(sb, stat.getText());
+					sb.append('}');
+				}
+				out.write(sb.toString());
+				first = false;
+			}
+			if (!csv)
+				out.write("\n]\n");
+		}
+	}
+
+	protected static String ms(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1000000.0);
+	}
+}
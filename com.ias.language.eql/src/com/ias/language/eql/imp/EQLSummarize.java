@@ -0,0 +1,424 @@
+package com.ias.language.eql.imp;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ias.language.objects.EQLDataFrame;
+import com.ias.language.objects.EQLHyperLogLog;
+import com.ias.language.objects.EQLQuantileSketch;
+import com.ias.language.objects.EQLRowSource;
+
+/**
+ * Streaming hash aggregation of a row source.
+ *   Rows are read once and folded into one accumulator set per group, memory grows with the number of groups only.
+ *   Supported: count(*), count(col), sum(col), min(col), max(col), avg(col), approx_distinct(col) (HyperLogLog),
+ *   median(col) and pNN(col) percentiles (quantile sketch).
+ * The result is a frame with the group columns followed by one column per aggregate.
+ */
+public class EQLSummarize {
+	private final static Logger log = LoggerFactory.getLogger(EQLSummarize.class.getCanonicalName());
+	private final static Pattern AGG_SYNTAX = Pattern.compile("^(\\w+)\\s*\\(\\s*(\\*|\\w+)\\s*\\)$");
+	private final static Pattern PERCENTILE = Pattern.compile("^p(\\d{1,2})$");
+
+	public enum functions {count, sum, min, max, avg, approx_distinct, percentile}
+
+	protected EQLRowSource source;
+	protected int[] groupCols;
+	protected List<Aggregate> aggs;
+	protected long rows;
+	protected long stateBytes;
+
+	public EQLSummarize(EQLRowSource source, int[] groupCols, List<Aggregate> aggs) {
+		this.source = source;
+		this.groupCols = groupCols;
+		this.aggs = aggs;
+		this.rows = 0;
+		this.stateBytes = 0;
+	}
+
+	public long getRows() {
+		return this.rows;
+	}
+
+	/**
+	 * Approximate heap used by the group states
+	 * @return
+	 */
+	public long getStateBytes() {
+		return this.stateBytes;
+	}
+
+	/**
+	 * Parses one aggregate expression such as sum(x), count(*) or p95(z)
+	 * @param expr
+	 * @param source
+	 * @return
+	 * @throws EQLException
+	 */
+	public static Aggregate parse(String expr, EQLRowSource source) throws EQLException {
+		Matcher m = AGG_SYNTAX.matcher(expr.trim());
+		if (!m.matches())
+			throw new EQLException("Unknown aggregate '" + expr.trim() + "', expecting function(column)");
+
+		String fn = m.group(1).toLowerCase();
+		String col = m.group(2);
+		int colIdx = -1;
+		if (!col.equals("*")) {
+			colIdx = EQLDataFrame.findColumn(source.getColumnNames(), source.getColumnLabels(), col);
+			if (colIdx < 0)
+				throw new EQLException("Aggregate column '" + col + "' not found");
+		}
+
+		Matcher pm = PERCENTILE.matcher(fn);
+		if (pm.matches()) {
+			return new Aggregate(functions.percentile, colIdx, Integer.parseInt(pm.group(1)) / 100.0, fn + "_" + col);
+		} else if (fn.equals("median")) {
+			return new Aggregate(functions.percentile, colIdx, 0.5, fn + "_" + col);
+		}
+
+		functions func;
+		try {
+			func = functions.valueOf(fn);
+		} catch (IllegalArgumentException e) {
+			throw new EQLException("Unknown aggregate function '" + fn + "'");
+		}
+		if (colIdx < 0 && func != functions.count)
+			throw new EQLException("Aggregate " + fn + "(*) is not supported, name a column");
+		return new Aggregate(func, colIdx, 0, (colIdx < 0) ? fn : fn + "_" + col);
+	}
+
+	/**
+	 * Reads the whole source and returns one row per group
+	 * @return
+	 * @throws EQLException
+	 */
+	public EQLDataFrame execute() throws EQLException {
+		Map<List<Object>, Group> groups = new LinkedHashMap<List<Object>, Group>();
+		int[] srcTypes = this.source.getColumnTypes();
+		Object[] row = this.source.next();
+		while (row != null) {
+			Object[] keyVals = new Object[this.groupCols.length];
+			for(int idx=0; idx < keyVals.length; idx++) {
+				keyVals[idx] = EQLHashJoin.normalize(row[this.groupCols[idx]]);
+			}
+			List<Object> key = Arrays.asList(keyVals);
+			Group grp = groups.get(key);
+			if (grp == null) {
+				grp = new Group(row);
+				groups.put(key, grp);
+				this.stateBytes += grp.getBytes();
+			}
+			for(int idx=0; idx < this.aggs.size(); idx++) {
+				Aggregate agg = this.aggs.get(idx);
+				try {
+					grp.accs[idx].add((agg.column < 0) ? row : row[agg.column]);
+				} catch (NumberFormatException | ClassCastException e) {	// text in a numeric aggregate, values min/max can not compare
+					throw new EQLException("Aggregate " + agg.name + " can not use value '" + row[agg.column] + "' of column " +
+							this.source.getColumnLabels().get(agg.column) + " in row #" + (this.rows + 1));
+				}
+			}
+			this.rows++;
+			row = this.source.next();
+		}
+		if (groups.size() == 0 && this.groupCols.length == 0) {	// Global aggregate of an empty cursor still returns one row
+			groups.put(new ArrayList<Object>(), new Group(null));
+		}
+
+		List<String> names = new ArrayList<String>();
+		List<String> labels = new ArrayList<String>();
+		int[] types = new int[this.groupCols.length + this.aggs.size()];
+		for(int idx=0; idx < this.groupCols.length; idx++) {
+			names.add(this.source.getColumnNames().get(this.groupCols[idx]));
+			labels.add(this.source.getColumnLabels().get(this.groupCols[idx]));
+			types[idx] = srcTypes[this.groupCols[idx]];
+		}
+		for(int idx=0; idx < this.aggs.size(); idx++) {
+			Aggregate agg = this.aggs.get(idx);
+			names.add(agg.name);
+			labels.add(agg.name);
+			types[this.groupCols.length + idx] = agg.resultType((agg.column < 0) ? Types.OTHER : srcTypes[agg.column]);
+		}
+
+		EQLDataFrame result = new EQLDataFrame(names, labels, types);
+		for(Group grp : groups.values()) {
+			Object[] out = new Object[types.length];
+			System.arraycopy(grp.keyVals, 0, out, 0, grp.keyVals.length);
+			for(int idx=0; idx < this.aggs.size(); idx++) {
+				out[this.groupCols.length + idx] = grp.accs[idx].result();
+			}
+			result.add(out);
+		}
+		log.debug("Summarized {} rows into {} groups, state bytes:{}", this.rows, groups.size(), this.stateBytes);
+		return result;
+	}
+
+	/**
+	 * One aggregate of the compute list
+	 */
+	public static class Aggregate {
+		functions func;
+		int column;		// -1 for count(*)
+		double fraction;	// percentile rank
+		String name;
+
+		Aggregate(functions func, int column, double fraction, String name) {
+			this.func = func;
+			this.column = column;
+			this.fraction = fraction;
+			this.name = name;
+		}
+
+		int resultType(int srcType) {
+			switch (this.func) {
+				case count:
+				case approx_distinct:
+					return Types.BIGINT;
+				case sum:
+					if (srcType == Types.DECIMAL || srcType == Types.NUMERIC)
+						return srcType;
+					return EQLDataFrame.isIntegral(srcType) ? Types.BIGINT : Types.DOUBLE;
+				case min:
+				case max:
+					return srcType;
+				case avg:
+					return (srcType == Types.DECIMAL || srcType == Types.NUMERIC) ? srcType : Types.DOUBLE;
+				default:
+					return Types.DOUBLE;
+			}
+		}
+
+		Accumulator newAccumulator() {
+			switch (this.func) {
+				case count:
+					return new CountAcc(this.column < 0);
+				case sum:
+					return new SumAcc();
+				case min:
+					return new MinMaxAcc(true);
+				case max:
+					return new MinMaxAcc(false);
+				case avg:
+					return new AvgAcc();
+				case approx_distinct:
+					return new DistinctAcc();
+				default:
+					return new PercentileAcc(this.fraction);
+			}
+		}
+	}
+
+	protected class Group {
+		Object[] keyVals;
+		Accumulator[] accs;
+
+		Group(Object[] row) {
+			this.keyVals = new Object[groupCols.length];
+			for(int idx=0; idx < groupCols.length; idx++) {
+				this.keyVals[idx] = row[groupCols[idx]];
+			}
+			this.accs = new Accumulator[aggs.size()];
+			for(int idx=0; idx < this.accs.length; idx++) {
+				this.accs[idx] = aggs.get(idx).newAccumulator();
+			}
+		}
+
+		long getBytes() {
+			long bytes = 64;
+			for(Object val : this.keyVals) {
+				bytes += EQLDataFrame.estimateBytes(val);
+			}
+			for(Accumulator acc : this.accs) {
+				bytes += acc.getBytes();
+			}
+			return bytes;
+		}
+	}
+
+	protected interface Accumulator {
+		void add(Object val);
+		Object result();
+		long getBytes();
+	}
+
+	protected static double toDouble(Object val) {
+		if (val instanceof Number)
+			return ((Number) val).doubleValue();
+		return Double.parseDouble(val.toString().trim());
+	}
+
+	protected static class CountAcc implements Accumulator {
+		boolean allRows;
+		long count = 0;
+
+		CountAcc(boolean allRows) {
+			this.allRows = allRows;
+		}
+
+		public void add(Object val) {
+			if (this.allRows || val != null)
+				this.count++;
+		}
+
+		public Object result() {
+			return this.count;
+		}
+
+		public long getBytes() {
+			return 24;
+		}
+	}
+
+	/**
+	 * Total kept as a long for integral values, exact BigDecimal once a decimal value is added (money columns) and
+	 * double once any other value is
+	 */
+	protected static class SumAcc implements Accumulator {
+		long lSum = 0;
+		BigDecimal bdSum = null;
+		double dSum = 0;
+		int mode = 0;		// 0 long, 1 BigDecimal, 2 double
+		boolean seen = false;
+
+		public void add(Object val) {
+			if (val == null)
+				return;
+			this.seen = true;
+			if (val instanceof Integer || val instanceof Long || val instanceof Short || val instanceof Byte) {
+				long num = ((Number) val).longValue();
+				if (this.mode == 0)
+					this.lSum += num;
+				else if (this.mode == 1)
+					this.bdSum = this.bdSum.add(BigDecimal.valueOf(num));
+				else
+					this.dSum += num;
+			} else if (val instanceof BigDecimal && this.mode < 2) {
+				this.bdSum = ((this.mode == 0) ? BigDecimal.valueOf(this.lSum) : this.bdSum).add((BigDecimal) val);
+				this.mode = 1;
+			} else {
+				if (this.mode < 2) {	// first floating or text value moves the total to floating point
+					this.dSum = (this.mode == 0) ? this.lSum : this.bdSum.doubleValue();
+					this.mode = 2;
+				}
+				this.dSum += toDouble(val);
+			}
+		}
+
+		public Object result() {
+			if (!this.seen)
+				return null;
+			return (this.mode == 0) ? (Object) this.lSum : (this.mode == 1) ? (Object) this.bdSum : (Object) this.dSum;
+		}
+
+		public long getBytes() {
+			return (this.mode == 1) ? 104 : 40;
+		}
+	}
+
+	protected static class MinMaxAcc implements Accumulator {
+		boolean min;
+		Comparable<Object> best = null;
+
+		MinMaxAcc(boolean min) {
+			this.min = min;
+		}
+
+		@SuppressWarnings("unchecked")
+		public void add(Object val) {
+			if (val == null || !(val instanceof Comparable))
+				return;
+			if (this.best == null) {
+				this.best = (Comparable<Object>) val;
+			} else {
+				int cmp = this.best.compareTo(val);
+				if ((this.min && cmp > 0) || (!this.min && cmp < 0))
+					this.best = (Comparable<Object>) val;
+			}
+		}
+
+		public Object result() {
+			return this.best;
+		}
+
+		public long getBytes() {
+			return 24 + EQLDataFrame.estimateBytes(this.best);
+		}
+	}
+
+	/**
+	 * Average of decimals is a decimal with the scale of the values, at least 6 places
+	 */
+	protected static class AvgAcc extends SumAcc {
+		long count = 0;
+
+		@Override
+		public void add(Object val) {
+			if (val == null)
+				return;
+			super.add(val);
+			this.count++;
+		}
+
+		@Override
+		public Object result() {
+			if (this.count == 0)
+				return null;
+			if (this.mode == 1)
+				return this.bdSum.divide(BigDecimal.valueOf(this.count), Math.max(this.bdSum.scale(), 6), RoundingMode.HALF_UP);
+			return ((this.mode == 0) ? (double) this.lSum : this.dSum) / this.count;
+		}
+
+		@Override
+		public long getBytes() {
+			return super.getBytes() + 8;
+		}
+	}
+
+	protected static class DistinctAcc implements Accumulator {
+		EQLHyperLogLog hll = new EQLHyperLogLog();
+
+		public void add(Object val) {
+			this.hll.add(val);
+		}
+
+		public Object result() {
+			return this.hll.estimate();
+		}
+
+		public long getBytes() {
+			return 32 + this.hll.getBytes();
+		}
+	}
+
+	protected static class PercentileAcc implements Accumulator {
+		double fraction;
+		EQLQuantileSketch sketch = new EQLQuantileSketch();
+
+		PercentileAcc(double fraction) {
+			this.fraction = fraction;
+		}
+
+		public void add(Object val) {
+			if (val != null)
+				this.sketch.add(toDouble(val));
+		}
+
+		public Object result() {
+			return (this.sketch.getCount() == 0) ? null : (Object) this.sketch.quantile(this.fraction);
+		}
+
+		public long getBytes() {
+			return 64 + this.sketch.getBytes();
+		}
+	}
+}
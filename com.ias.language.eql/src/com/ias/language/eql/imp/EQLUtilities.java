@@ -8,9 +8,6 @@ import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 import java.util.Properties;
 import java.util.stream.Stream;
@@ -20,19 +17,43 @@ import org.slf4j.LoggerFactory;
 
 public class EQLUtilities {
 	private final static Logger log = LoggerFactory.getLogger(EQLUtilities.class.getCanonicalName());
-	protected List<String> logs;
+	protected EQLLogSink logSink;
+	protected boolean ownSink;		// closed with the engine, shared sinks belong to the caller
+	protected String logTag = "";
 	protected Properties config;
-	private SimpleDateFormat sdf = new SimpleDateFormat("MM-dd HH:mm:ss.SSS");
 	protected int logLevel = 1;		// 1 debug, 2/info, 3/warn, 4/error
 
 	public EQLUtilities(Properties config) {
 		this.config = config;
-		this.logs = new ArrayList<String>();
+		this.logSink = new EQLLogSink(config);
+		this.ownSink = true;
 	}
 	
-	private String printCurrentDateTime() {
-	    String strDate = sdf.format(new Date());
-	    return strDate;
+	/**
+	 * Writes the engine log to a sink shared with other engines, lines start with the tag
+	 * @param sink
+	 * @param tag
+	 */
+	public void setLogSink(EQLLogSink sink, String tag) {
+		if (this.ownSink)
+			this.logSink.close();
+		this.logSink = sink;
+		this.ownSink = false;
+		this.logTag = (tag == null || tag.length() == 0) ? "" : tag + " ";
+	}
+	
+	public EQLLogSink getLogSink() {
+		return this.logSink;
+	}
+	
+	/**
+	 * Writes out the queued messages, the engine's own sink is closed
+	 */
+	protected void closeLog() {
+		if (this.ownSink)
+			this.logSink.close();
+		else
+			this.logSink.flush();
 	}
 	
 	public void setLogLevel(int lvl) {
@@ -43,32 +64,45 @@ public class EQLUtilities {
 		return this.logLevel;
 	}
 	
+	/**
+	 * Callers building expensive debug messages check first
+	 * @return
+	 */
+	public boolean isDebugEnabled() {
+		return this.logLevel < 2 || log.isDebugEnabled();
+	}
+	
 	public void debugMsg(String src, String msg) {
 		log.debug("{} - {}", src, msg);
 		if (this.logLevel < 2)
-			logs.add(String.format("%s [%s] DEBUG - %s", printCurrentDateTime(), src, msg));
+			this.logSink.write(EQLLogSink.DEBUG, this.logTag, src, msg);
 	}
 
 	public void infoMsg(String src, String msg) {
 		log.info("{} - {}", src, msg);
 		if (this.logLevel < 3)
-			logs.add(String.format("%s [%s] INFO  - %s", printCurrentDateTime(), src, msg));
+			this.logSink.write(EQLLogSink.INFO, this.logTag, src, msg);
 	}
 
 	public void warnMsg(String src, String msg) {
 		log.warn("{} - {}", src, msg);
 		if (this.logLevel < 4)
-			logs.add(String.format("%s [%s] WARN  - %s", printCurrentDateTime(), src, msg));
+			this.logSink.write(EQLLogSink.WARN, this.logTag, src, msg);
 	}
 
 	public void errorMsg(String src, String msg) {
 		log.error("{} - {}", src, msg);
 		if (this.logLevel < 5)
-		logs.add(String.format("%s [%s] ERROR - %s", printCurrentDateTime(), src, msg));
+			this.logSink.write(EQLLogSink.ERROR, this.logTag, src, msg);
 	}
 
+	/**
+	 * Most recent engine log lines, the full log streams to the console and eql.log.file
+	 * @return
+	 */
 	public List<String> getLogs() {
-		return logs;
+		this.logSink.flush();
+		return this.logSink.getLines();
 	}
 	
 	public static String readSQLFile(String file) throws EQLException {
@@ -8,25 +8,25 @@ package com.ias.language.objects;
  */
 public class EQLBoolean extends EQLObject {
 	private static final long serialVersionUID = -5126438452677055192L;
-	protected boolean val;
 	
 	public EQLBoolean() {
-		val = true;
+		this(true);
 	}
 	
 	public EQLBoolean(boolean state) {
-		val = state;
+		super(types.bool, Boolean.toString(state), true);
+		this.bool = state;
 	}
 	
 	public boolean eq(boolean ... test) {
 		for(boolean v : test) {
-			if (val != v) return false;
+			if (bool != v) return false;
 		}
 		return true;
 	}
 	
 	public boolean lt(boolean ... test) {
-		if (val == true) return false;
+		if (bool == true) return false;
 		for(boolean v : test) {
 			if (!v) return false;
 		}
@@ -34,7 +34,7 @@ public class EQLBoolean extends EQLObject {
 	}
 	
 	public boolean gt(boolean ... test) {
-		if (val == false) return false;
+		if (bool == false) return false;
 		for(boolean v : test) {
 			if (v) return false;
 		}
@@ -43,13 +43,13 @@ public class EQLBoolean extends EQLObject {
 	
 	public boolean ne(boolean ... test) {
 		for(boolean v : test) {
-			if (val == v) return false;
+			if (bool == v) return false;
 		}
 		return true;
 	}
 	
 	public boolean or(boolean ... test) {
-		if (val) return true;
+		if (bool) return true;
 		for(boolean v : test) {
 			if (v) return true;
 		}
@@ -61,7 +61,7 @@ public class EQLBoolean extends EQLObject {
 	}
 	
 	public boolean and(boolean ... test) {
-		if (!val) return false;
+		if (!bool) return false;
 		for(boolean v : test) {
 			if (!v) return false;
 		}
@@ -69,6 +69,6 @@ public class EQLBoolean extends EQLObject {
 	}
 	
 	public boolean not() {
-		return !val;
+		return !bool;
 	}
 }
@@ -1,5 +1,171 @@
 package com.ias.language.objects;
 
-public class EQLConnection {
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ias.language.eql.imp.EQLException;
+
+/**
+ * Pool of JDBC connections to one eql.&lt;target&gt; config entry. Used by instructions that need more than
+ * the single engine connection (bulk copy/load writers). Connections are opened on demand up to the pool size
+ * and handed back in autocommit mode.
+ */
+public class EQLConnection implements Closeable {
+	private final static Logger log = LoggerFactory.getLogger(EQLConnection.class.getCanonicalName());
+	private final static long ACQUIRE_WAIT_S = 600;
+
+	protected String target;
+	protected String jdbcUrl;
+	protected String user;
+	protected String pass;
+	protected int maxSize;
+	protected LinkedBlockingDeque<Connection> idle;
+	protected AtomicInteger opened;
+	protected volatile boolean closed;
+
+	public EQLConnection(String target, String className, String jdbcUrl, String user, String pass, int maxSize) throws EQLException {
+		if (className == null)
+			throw new EQLException("Missing class entry in System Config database for '" + target + "'. Contact your site admin.");
+		if (jdbcUrl == null)
+			throw new EQLException("Missing jdbc URL entry in System Config database for '" + target + "'. Contact your site admin.");
+		try {
+			Class.forName(className);
+		} catch (ClassNotFoundException e) {
+			throw new EQLException("Could not locate the requested JDBC driver for '" + target + "'. Contact your site admin");
+		}
+		this.target = target;
+		this.jdbcUrl = jdbcUrl;
+		this.user = user;
+		this.pass = pass;
+		this.maxSize = Math.max(1, maxSize);
+		this.idle = new LinkedBlockingDeque<Connection>();
+		this.opened = new AtomicInteger(0);
+		this.closed = false;
+	}
+
+	public String getTarget() {
+		return this.target;
+	}
+
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	public int getOpened() {
+		return this.opened.get();
+	}
+
+	public int getIdle() {
+		return this.idle.size();
+	}
+
+	/**
+	 * Connections handed out and not yet released, the outstanding queries of the target
+	 * @return
+	 */
+	public int getActive() {
+		return this.opened.get() - this.idle.size();
+	}
+
+	/**
+	 * Hands out an idle connection, opens a new one while under the pool size or waits for a release
+	 * @return
+	 * @throws SQLException
+	 */
+	public Connection acquire() throws SQLException {
+		if (this.closed)
+			throw new SQLException("Connection pool for '" + this.target + "' is closed");
+
+		Connection c = this.idle.pollFirst();
+		while (c != null) {
+			if (!c.isClosed())
+				return c;
+			this.opened.decrementAndGet();
+			c = this.idle.pollFirst();
+		}
+
+		if (this.opened.incrementAndGet() <= this.maxSize) {
+			try {
+				return this.open();
+			} catch (SQLException e) {
+				this.opened.decrementAndGet();
+				throw e;
+			}
+		}
+		this.opened.decrementAndGet();
+
+		try {
+			c = this.idle.pollFirst(ACQUIRE_WAIT_S, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a connection to '" + this.target + "'");
+		}
+		if (c == null)
+			throw new SQLException("Timed out waiting for a free connection to '" + this.target + "', pool size:" + this.maxSize);
+		return c;
+	}
+
+	/**
+	 * Returns a connection to the pool, open transactions are rolled back
+	 * @param c
+	 */
+	public void release(Connection c) {
+		if (c == null)
+			return;
+		try {
+			if (c.isClosed()) {
+				this.opened.decrementAndGet();
+				return;
+			}
+			if (!c.getAutoCommit()) {
+				c.rollback();
+				c.setAutoCommit(true);
+			}
+			if (this.closed) {
+				c.close();
+				this.opened.decrementAndGet();
+			} else {
+				this.idle.offerFirst(c);
+			}
+		} catch (SQLException e) {
+			log.warn("Dropping pooled connection to '{}' after release error:{}", this.target, e.getMessage());
+			try {
+				c.close();
+			} catch (SQLException e1) {
+				// already broken
+			}
+			this.opened.decrementAndGet();
+		}
+	}
+
+	protected Connection open() throws SQLException {
+		log.debug("Opening pooled connection #{} to {}", this.opened.get(), this.target);
+		if (this.user != null && this.user.length() > 0)
+			return DriverManager.getConnection(this.jdbcUrl, this.user, this.pass);
+		else
+			return DriverManager.getConnection(this.jdbcUrl);
+	}
+
+	@Override
+	public void close() {
+		this.closed = true;
+		Connection c = this.idle.pollFirst();
+		while (c != null) {
+			try {
+				c.close();
+			} catch (SQLException e) {
+				log.warn("Error closing pooled connection to '{}' - continuing", this.target);
+			}
+			this.opened.decrementAndGet();
+			c = this.idle.pollFirst();
+		}
+	}
 }
@@ -0,0 +1,146 @@
+package com.ias.language.objects;
+
+import java.io.IOException;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.ias.language.eql.imp.EQLException;
+
+/**
+ * Streams the rows of a cursor variable. Rows already pulled into the cursor cache (print, column assignments)
+ * are replayed first, the remaining rows are read straight from the ResultSet (or the row source of a client
+ * side cursor) without being cached.
+ * Closing the reader does not close the cursor, the variable still owns it.
+ */
+public class EQLCursorReader implements EQLRowSource {
+	protected EQLObject eCursor;
+	protected List<String> names;
+	protected List<String> labels;
+	protected int[] colTypes;
+	protected int cachePos;
+	protected boolean done;
+
+	public EQLCursorReader(EQLObject eCursor) throws EQLException {
+		if (eCursor == null || eCursor.getType() != EQLObject.types.cursor) {
+			throw new EQLException("Row reader requires a cursor type variable");
+		}
+		this.eCursor = eCursor;
+		this.names = new ArrayList<String>();
+		this.labels = new ArrayList<String>();
+		this.cachePos = 0;
+		this.done = false;
+
+		if (eCursor.getRowSource() != null) {	// Client side cursor, metadata comes from the source
+			this.names.addAll(eCursor.getRowSource().getColumnNames());
+			this.labels.addAll(eCursor.getRowSource().getColumnLabels());
+			this.colTypes = eCursor.getRowSource().getColumnTypes();
+			return;
+		}
+
+		try {
+			if (eCursor.getRsmd() == null)
+				eCursor.setRsmd(eCursor.getCursor().getMetaData());
+			ResultSetMetaData md = eCursor.getRsmd();
+			this.colTypes = new int[md.getColumnCount()];
+			for(int idx=1; idx<=md.getColumnCount(); idx++) {
+				this.names.add(IASOnDemandDataSource.getSafeColumnName(md.getColumnName(idx)));
+				this.labels.add(md.getColumnLabel(idx));
+				this.colTypes[idx - 1] = md.getColumnType(idx);
+			}
+		} catch (SQLException e) {
+			throw new EQLException(e);
+		}
+	}
+
+	/**
+	 * Hint for the driver on the number of rows to transfer per network fetch
+	 * @param rows
+	 */
+	public void setFetchSize(int rows) {
+		try {
+			if (this.eCursor.getCursor() != null && !this.eCursor.getCursor().isClosed())
+				this.eCursor.getCursor().setFetchSize(rows);
+		} catch (SQLException e) {
+			// Fetch size is only a hint, some drivers refuse it on forward only cursors
+		}
+	}
+
+	@Override
+	public List<String> getColumnNames() {
+		return this.names;
+	}
+
+	@Override
+	public List<String> getColumnLabels() {
+		return this.labels;
+	}
+
+	@Override
+	public int[] getColumnTypes() {
+		return this.colTypes;
+	}
+
+	@Override
+	public Object[] next() throws EQLException {
+		List<Map<String,Object>> cache = this.eCursor.getCursor_cache();
+		if (cache != null && this.cachePos < cache.size()) {
+			Map<String,Object> row = cache.get(this.cachePos++);
+			Object[] vals = new Object[this.names.size()];
+			for(int idx=0; idx < vals.length; idx++) {
+				vals[idx] = row.get(this.names.get(idx));
+			}
+			return vals;
+		}
+
+		if (this.done)
+			return null;
+
+		if (!this.eCursor.isTracked())
+			return this.read();
+		long start = System.nanoTime();
+		Object[] vals = this.read();
+		if (vals != null)
+			this.eCursor.recordFetch(System.nanoTime() - start, 1, (this.eCursor.getStats() != null) ? EQLInstructionStats.sizeOf(vals) : 0);
+		return vals;
+	}
+
+	protected Object[] read() throws EQLException {
+		if (this.eCursor.getRowSource() != null) {
+			Object[] vals = this.eCursor.getRowSource().next();
+			if (vals == null)
+				this.done = true;
+			return vals;
+		}
+
+		ResultSet rs = this.eCursor.getCursor();
+		try {
+			if (rs == null || rs.isClosed() || !rs.next()) {
+				this.done = true;
+				return null;
+			}
+			Object[] vals = new Object[this.colTypes.length];
+			for(int idx=0; idx < vals.length; idx++) {
+				vals[idx] = rs.getObject(idx + 1);
+				if (vals[idx] instanceof Clob)	// LOB locators are only valid on the cursor, copies and files get the value
+					vals[idx] = ((Clob) vals[idx]).getSubString(1, (int) ((Clob) vals[idx]).length());
+				else if (vals[idx] instanceof Blob)
+					vals[idx] = ((Blob) vals[idx]).getBytes(1, (int) ((Blob) vals[idx]).length());
+			}
+			return vals;
+		} catch (SQLException e) {
+			this.done = true;
+			throw new EQLException(e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.done = true;	// Cursor belongs to the variable, nothing to release here
+	}
+}
@@ -1,5 +1,403 @@
 package com.ias.language.objects;
 
-public class EQLDataFrame {
+import java.io.IOException;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+import com.ias.language.eql.imp.EQLException;
+
+/**
+ * In memory columnar table. Integral and floating point columns are held in primitive arrays with a null mask,
+ * all other types as object arrays. Used for client side cursor work (join build side, lookups).
+ */
+public class EQLDataFrame implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private final static int START_ROWS = 1024;
+
+	protected List<String> names;
+	protected List<String> labels;
+	protected int[] colTypes;
+	protected Column[] cols;
+	protected int rows;
+	protected long bytes;
+
+	public EQLDataFrame(List<String> names, List<String> labels, int[] colTypes) {
+		this.names = new ArrayList<String>(names);
+		this.labels = new ArrayList<String>(labels);
+		this.colTypes = colTypes.clone();
+		this.cols = new Column[colTypes.length];
+		for(int idx=0; idx < colTypes.length; idx++) {
+			this.cols[idx] = newColumn(colTypes[idx]);
+		}
+		this.rows = 0;
+		this.bytes = 0;
+	}
+
+	/**
+	 * Loads every remaining row of a source into a frame
+	 * @param src
+	 * @return
+	 * @throws EQLException
+	 */
+	public static EQLDataFrame load(EQLRowSource src) throws EQLException {
+		EQLDataFrame frame = new EQLDataFrame(src.getColumnNames(), src.getColumnLabels(), src.getColumnTypes());
+		Object[] row = src.next();
+		while (row != null) {
+			frame.add(row);
+			row = src.next();
+		}
+		return frame;
+	}
+
+	public static boolean isIntegral(int sqlType) {
+		return sqlType == Types.TINYINT || sqlType == Types.SMALLINT || sqlType == Types.INTEGER || sqlType == Types.BIGINT;
+	}
+
+	public static boolean isFloating(int sqlType) {
+		return sqlType == Types.FLOAT || sqlType == Types.REAL || sqlType == Types.DOUBLE;
+	}
+
+	private static Column newColumn(int sqlType) {
+		if (isIntegral(sqlType))
+			return new LongColumn(sqlType != Types.BIGINT);
+		else if (isFloating(sqlType))
+			return new DoubleColumn(sqlType == Types.REAL);
+		return new ObjectColumn();
+	}
+
+	/**
+	 * Rough heap cost of a value, used to keep client side operations inside the engine memory budget
+	 * @param val
+	 * @return
+	 */
+	public static long estimateBytes(Object val) {
+		if (val == null)
+			return 4;
+		if (val instanceof String)
+			return 40 + 2 * ((String) val).length();
+		if (val instanceof BigDecimal)
+			return 64;
+		if (val instanceof byte[])
+			return 16 + ((byte[]) val).length;
+		return 16;
+	}
+
+	/**
+	 * Appends a row, numeric columns parse text values
+	 * @param row
+	 * @throws EQLException value of a numeric column that is not a number
+	 */
+	public void add(Object[] row) throws EQLException {
+		for(int idx=0; idx < this.cols.length; idx++) {
+			try {
+				if (!this.cols[idx].add(this.rows, row[idx])) {
+					this.cols[idx] = this.toObjects(this.cols[idx]);
+					this.cols[idx].add(this.rows, row[idx]);
+				}
+			} catch (NumberFormatException e) {
+				throw new EQLException("Column " + this.labels.get(idx) + " value '" + row[idx] + "' of row #" + (this.rows + 1) + " is not a number");
+			}
+			this.bytes += this.cols[idx].bytesPerValue(row[idx]);
+		}
+		this.rows++;
+	}
+
+	/**
+	 * Column moved to object storage, keeps values an integral column can't hold exactly (INT UNSIGNED above the
+	 * integer range, BIGINT UNSIGNED, fractions)
+	 */
+	private Column toObjects(Column col) {
+		Column objects = new ObjectColumn();
+		for(int row=0; row < this.rows; row++) {
+			objects.add(row, col.get(row));
+		}
+		return objects;
+	}
+
+	public Object get(int row, int col) {
+		return this.cols[col].get(row);
+	}
+
+	/**
+	 * Integral values held as longs, getLong can be used
+	 * @param col
+	 * @return
+	 */
+	public boolean isLongColumn(int col) {
+		return this.cols[col] instanceof LongColumn;
+	}
+
+	public boolean isNull(int row, int col) {
+		return this.cols[col].isNull(row);
+	}
+
+	/**
+	 * Primitive access for integral columns, caller checks isNull first
+	 */
+	public long getLong(int row, int col) {
+		return this.cols[col].getLong(row);
+	}
+
+	public Object[] getRow(int row) {
+		Object[] vals = new Object[this.cols.length];
+		for(int idx=0; idx < vals.length; idx++) {
+			vals[idx] = this.cols[idx].get(row);
+		}
+		return vals;
+	}
+
+	public int getRowCount() {
+		return this.rows;
+	}
+
+	public int getColumnCount() {
+		return this.cols.length;
+	}
+
+	public List<String> getColumnNames() {
+		return this.names;
+	}
+
+	public List<String> getColumnLabels() {
+		return this.labels;
+	}
+
+	public int[] getColumnTypes() {
+		return this.colTypes;
+	}
+
+	/**
+	 * Index of a column by safe name or label (case-insensitive), -1 when missing
+	 * @param name
+	 * @return
+	 */
+	public int findColumn(String name) {
+		return findColumn(this.names, this.labels, name);
+	}
+
+	public static int findColumn(List<String> names, List<String> labels, String name) {
+		for(int idx=0; idx < names.size(); idx++) {
+			if (names.get(idx).equalsIgnoreCase(name) || labels.get(idx).equalsIgnoreCase(name))
+				return idx;
+		}
+		return -1;
+	}
+
+	/**
+	 * Approximate heap used by the stored values
+	 * @return
+	 */
+	public long getBytes() {
+		return this.bytes;
+	}
+
+	/**
+	 * Releases the column storage, the frame is empty afterwards
+	 */
+	public void clear() {
+		for(int idx=0; idx < this.cols.length; idx++) {
+			this.cols[idx] = newColumn(this.colTypes[idx]);
+		}
+		this.rows = 0;
+		this.bytes = 0;
+	}
+
+	/**
+	 * Forward only view of the frame rows, usable as the source of a cursor variable
+	 * @return
+	 */
+	public EQLRowSource rows() {
+		return new EQLRowSource() {
+			int pos = 0;
+
+			@Override
+			public List<String> getColumnNames() {
+				return names;
+			}
+
+			@Override
+			public List<String> getColumnLabels() {
+				return labels;
+			}
+
+			@Override
+			public int[] getColumnTypes() {
+				return colTypes;
+			}
+
+			@Override
+			public Object[] next() {
+				if (this.pos >= rows)
+					return null;
+				return getRow(this.pos++);
+			}
+
+			@Override
+			public void close() throws IOException {
+				this.pos = rows;
+			}
+		};
+	}
+
+	protected static abstract class Column implements Serializable {
+		private static final long serialVersionUID = 1L;
+		/**
+		 * @return false when the value can't be held exactly, nothing is stored
+		 */
+		abstract boolean add(int row, Object val);
+		abstract Object get(int row);
+		abstract boolean isNull(int row);
+		abstract long bytesPerValue(Object val);
+
+		long getLong(int row) {
+			throw new IllegalStateException("Column is not integral");
+		}
+	}
+
+	protected static class LongColumn extends Column {
+		private static final long serialVersionUID = 1L;
+		long[] vals = new long[START_ROWS];
+		boolean[] nulls = new boolean[START_ROWS];
+		boolean narrow;		// INTEGER, SMALLINT and TINYINT read back as Integer like getObject returns them
+
+		LongColumn(boolean narrow) {
+			this.narrow = narrow;
+		}
+
+		@Override
+		boolean add(int row, Object val) {
+			long num = 0;
+			if (val instanceof Long || val instanceof Integer || val instanceof Short || val instanceof Byte) {
+				num = ((Number) val).longValue();
+			} else if (val instanceof BigInteger) {
+				if (((BigInteger) val).bitLength() > 63)
+					return false;
+				num = ((BigInteger) val).longValue();
+			} else if (val instanceof Number) {
+				try {
+					num = new BigDecimal(val.toString()).longValueExact();
+				} catch (NumberFormatException | ArithmeticException e) {
+					return false;
+				}
+			} else if (val != null) {
+				String text = val.toString().trim();
+				try {
+					num = Long.parseLong(text);
+				} catch (NumberFormatException e) {
+					new BigInteger(text);	// not a number at all fails here
+					return false;
+				}
+			}
+			if (this.narrow && (num < Integer.MIN_VALUE || num > Integer.MAX_VALUE))
+				return false;
+			if (row >= this.vals.length) {
+				this.vals = Arrays.copyOf(this.vals, this.vals.length * 2);
+				this.nulls = Arrays.copyOf(this.nulls, this.nulls.length * 2);
+			}
+			if (val == null)
+				this.nulls[row] = true;
+			else
+				this.vals[row] = num;
+			return true;
+		}
+
+		@Override
+		Object get(int row) {
+			if (this.nulls[row])
+				return null;
+			return (this.narrow) ? (Object) Integer.valueOf((int) this.vals[row]) : (Object) Long.valueOf(this.vals[row]);
+		}
+
+		@Override
+		boolean isNull(int row) {
+			return this.nulls[row];
+		}
+
+		@Override
+		long getLong(int row) {
+			return this.vals[row];
+		}
+
+		@Override
+		long bytesPerValue(Object val) {
+			return 9;
+		}
+	}
+
+	protected static class DoubleColumn extends Column {
+		private static final long serialVersionUID = 1L;
+		double[] vals = new double[START_ROWS];
+		boolean[] nulls = new boolean[START_ROWS];
+		boolean real;		// REAL reads back as Float
+
+		DoubleColumn(boolean real) {
+			this.real = real;
+		}
+
+		@Override
+		boolean add(int row, Object val) {
+			if (row >= this.vals.length) {
+				this.vals = Arrays.copyOf(this.vals, this.vals.length * 2);
+				this.nulls = Arrays.copyOf(this.nulls, this.nulls.length * 2);
+			}
+			if (val == null)
+				this.nulls[row] = true;
+			else if (val instanceof Number)
+				this.vals[row] = ((Number) val).doubleValue();
+			else
+				this.vals[row] = Double.parseDouble(val.toString().trim());
+			return true;
+		}
+
+		@Override
+		Object get(int row) {
+			if (this.nulls[row])
+				return null;
+			return (this.real) ? (Object) Float.valueOf((float) this.vals[row]) : (Object) Double.valueOf(this.vals[row]);
+		}
+
+		@Override
+		boolean isNull(int row) {
+			return this.nulls[row];
+		}
+
+		@Override
+		long bytesPerValue(Object val) {
+			return 9;
+		}
+	}
+
+	protected static class ObjectColumn extends Column {
+		private static final long serialVersionUID = 1L;
+		Object[] vals = new Object[START_ROWS];
+
+		@Override
+		boolean add(int row, Object val) {
+			if (row >= this.vals.length) {
+				this.vals = Arrays.copyOf(this.vals, this.vals.length * 2);
+			}
+			this.vals[row] = val;
+			return true;
+		}
+
+		@Override
+		Object get(int row) {
+			return this.vals[row];
+		}
+
+		@Override
+		boolean isNull(int row) {
+			return this.vals[row] == null;
+		}
+
+		@Override
+		long bytesPerValue(Object val) {
+			return 8 + estimateBytes(val);
+		}
+	}
 }
@@ -0,0 +1,582 @@
+package com.ias.language.objects;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.ias.language.eql.imp.EQLException;
+
+/**
+ * Expression of an assignment (@n = @n + 1) or a condition (if/while), compiled once into a tree and evaluated
+ * in-process over the typed variable values.
+ *   Operators by precedence: or, and, not, comparisons (= == != <> < <= > >=), + - ||, * / %, unary -.
+ *   Numbers stay long while they fit (integer division truncates as in SQL), decimals use BigDecimal and double
+ *   columns use double. + of a string and || concatenate. A null (empty) operand makes arithmetic null and
+ *   comparisons false except = between two nulls.
+ *   Variables are the ? marks of the instruction in parameter order, ?.col pulls a cursor column. Parts without
+ *   variables are folded to constants at compile time.
+ */
+public class EQLExpression {
+	private final static MathContext DIVISION = MathContext.DECIMAL64;
+
+	public enum ops {ADD, SUB, MUL, DIV, MOD, CONCAT, EQ, NE, LT, LE, GT, GE, AND, OR, NOT, NEG}
+
+	/**
+	 * Supplies variable values while evaluating
+	 */
+	public interface Resolver {
+		/**
+		 * @param name variable name
+		 * @param column cursor column of ?.col, null for the variable itself
+		 * @return
+		 * @throws EQLException when the variable is not defined
+		 */
+		EQLObject resolve(String name, String column) throws EQLException;
+	}
+
+	protected static abstract class Node {
+		abstract EQLObject eval(Resolver resolver) throws EQLException;
+
+		boolean isConstant() {
+			return false;
+		}
+	}
+
+	protected static class Constant extends Node {
+		final EQLObject val;
+
+		Constant(EQLObject val) {
+			this.val = val;
+		}
+
+		@Override
+		EQLObject eval(Resolver resolver) {
+			return this.val;
+		}
+
+		@Override
+		boolean isConstant() {
+			return true;
+		}
+	}
+
+	protected static class Variable extends Node {
+		final String name;
+		final String column;
+
+		Variable(String name, String column) {
+			this.name = name;
+			this.column = column;
+		}
+
+		@Override
+		EQLObject eval(Resolver resolver) throws EQLException {
+			return resolver.resolve(this.name, this.column);
+		}
+	}
+
+	protected static class Unary extends Node {
+		final ops op;
+		final Node arg;
+
+		Unary(ops op, Node arg) {
+			this.op = op;
+			this.arg = arg;
+		}
+
+		@Override
+		EQLObject eval(Resolver resolver) throws EQLException {
+			EQLObject val = this.arg.eval(resolver);
+			if (this.op == ops.NOT)
+				return new EQLBoolean(!truth(val));
+			return arithmetic(ops.SUB, new EQLNumber(0L), val);
+		}
+
+		@Override
+		boolean isConstant() {
+			return this.arg.isConstant();
+		}
+	}
+
+	protected static class Binary extends Node {
+		final ops op;
+		final Node left;
+		final Node right;
+
+		Binary(ops op, Node left, Node right) {
+			this.op = op;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		EQLObject eval(Resolver resolver) throws EQLException {
+			switch (this.op) {
+				case AND:
+					return new EQLBoolean(truth(this.left.eval(resolver)) && truth(this.right.eval(resolver)));
+				case OR:
+					return new EQLBoolean(truth(this.left.eval(resolver)) || truth(this.right.eval(resolver)));
+				case EQ:
+				case NE:
+				case LT:
+				case LE:
+				case GT:
+				case GE:
+					return new EQLBoolean(compare(this.op, this.left.eval(resolver), this.right.eval(resolver)));
+				case CONCAT:
+					return new EQLString(text(this.left.eval(resolver)) + text(this.right.eval(resolver)));
+				default:
+					return arithmetic(this.op, this.left.eval(resolver), this.right.eval(resolver));
+			}
+		}
+
+		@Override
+		boolean isConstant() {
+			return this.left.isConstant() && this.right.isConstant();
+		}
+	}
+
+	protected String source;
+	protected Node root;
+
+	protected EQLExpression(String source, Node root) {
+		this.source = source;
+		this.root = root;
+	}
+
+	public EQLObject evaluate(Resolver resolver) throws EQLException {
+		return this.root.eval(resolver);
+	}
+
+	/**
+	 * Evaluates a condition, see truth for the values that count as true
+	 * @param resolver
+	 * @return
+	 * @throws EQLException
+	 */
+	public boolean test(Resolver resolver) throws EQLException {
+		return truth(this.root.eval(resolver));
+	}
+
+	public boolean isConstant() {
+		return this.root.isConstant();
+	}
+
+	public String toString() {
+		return this.source;
+	}
+
+	/**
+	 * Compiles the expression text of an instruction
+	 * @param text expression with variables masked to ?
+	 * @param parms variable names of the ? marks in order
+	 * @return
+	 * @throws EQLException on a syntax error
+	 */
+	public static EQLExpression compile(String text, List<String> parms) throws EQLException {
+		Parser parser = new Parser(text, parms);
+		Node root = parser.parseOr();
+		if (parser.peek() != null)
+			throw new EQLException("Unexpected '" + parser.peek() + "' in expression: " + text);
+		return new EQLExpression(text, root);
+	}
+
+	/**
+	 * true is a true boolean, a number other than 0 or a string that is not empty, null (empty) is false
+	 * @param val
+	 * @return
+	 * @throws EQLException
+	 */
+	public static boolean truth(EQLObject val) throws EQLException {
+		if (val == null)
+			return false;
+		switch (val.getType()) {
+			case empty:
+				return false;
+			case bool:
+				return val.toBoolean();
+			case integer:
+			case decimal:
+				return number(val).doubleValue() != 0;
+			case cursor:
+			case index:
+			case file:
+				throw new EQLException("A " + val.printType() + " value can not be used as a condition");
+			default:
+				return text(val).length() > 0;
+		}
+	}
+
+	protected static boolean isNull(EQLObject val) {
+		return val == null || val.getType() == EQLObject.types.empty;
+	}
+
+	protected static boolean isNumber(EQLObject val) {
+		return val.getType() == EQLObject.types.integer || val.getType() == EQLObject.types.decimal;
+	}
+
+	protected static String text(EQLObject val) {
+		return (isNull(val)) ? "" : val.toString();
+	}
+
+	/**
+	 * Typed number of a value as a Long, Double or BigDecimal
+	 * @param val
+	 * @return
+	 * @throws EQLException when the value is not a number
+	 */
+	protected static Number number(EQLObject val) throws EQLException {
+		Number num = (isNumber(val)) ? val.getNumber() : null;
+		if (num == null)
+			throw new EQLException("Value '" + val + "' of type " + val.printType() + " is not a number");
+		if (num instanceof Long || num instanceof Double || num instanceof BigDecimal)
+			return num;
+		if (num instanceof Integer || num instanceof Short || num instanceof Byte)
+			return num.longValue();
+		if (num instanceof Float)
+			return num.doubleValue();
+		if (num instanceof BigInteger)
+			return new BigDecimal((BigInteger) num);
+		return new BigDecimal(num.toString());
+	}
+
+	protected static BigDecimal big(Number num) {
+		if (num instanceof BigDecimal)
+			return (BigDecimal) num;
+		if (num instanceof Long)
+			return BigDecimal.valueOf(num.longValue());
+		return BigDecimal.valueOf(num.doubleValue());
+	}
+
+	protected static EQLObject arithmetic(ops op, EQLObject a, EQLObject b) throws EQLException {
+		if (isNull(a) || isNull(b))
+			return new EQLObject();
+		if (op == ops.ADD && (!isNumber(a) || !isNumber(b)))
+			return new EQLString(text(a) + text(b));
+		Number x = number(a);
+		Number y = number(b);
+		if (x instanceof Long && y instanceof Long) {
+			long l = x.longValue();
+			long r = y.longValue();
+			try {
+				switch (op) {
+					case ADD:
+						return new EQLNumber(Math.addExact(l, r));
+					case SUB:
+						return new EQLNumber(Math.subtractExact(l, r));
+					case MUL:
+						return new EQLNumber(Math.multiplyExact(l, r));
+					case DIV:
+						if (r == 0)
+							throw new EQLException("Division by zero");
+						if (l != Long.MIN_VALUE || r != -1)
+							return new EQLNumber(l / r);
+						break;
+					case MOD:
+						if (r == 0)
+							throw new EQLException("Division by zero");
+						return new EQLNumber(l % r);
+					default:
+						break;
+				}
+			} catch (ArithmeticException e) {
+				// overflow of a long, the BigDecimal result below is exact
+			}
+		} else if (x instanceof Double || y instanceof Double) {
+			double l = x.doubleValue();
+			double r = y.doubleValue();
+			if ((op == ops.DIV || op == ops.MOD) && r == 0)
+				throw new EQLException("Division by zero");
+			switch (op) {
+				case ADD:
+					return new EQLNumber(l + r);
+				case SUB:
+					return new EQLNumber(l - r);
+				case MUL:
+					return new EQLNumber(l * r);
+				case DIV:
+					return new EQLNumber(l / r);
+				case MOD:
+					return new EQLNumber(l % r);
+				default:
+					break;
+			}
+		}
+		BigDecimal l = big(x);
+		BigDecimal r = big(y);
+		if ((op == ops.DIV || op == ops.MOD) && r.signum() == 0)
+			throw new EQLException("Division by zero");
+		switch (op) {
+			case ADD:
+				return new EQLNumber(l.add(r));
+			case SUB:
+				return new EQLNumber(l.subtract(r));
+			case MUL:
+				return new EQLNumber(l.multiply(r));
+			case DIV:
+				if (x instanceof Long && y instanceof Long)
+					return new EQLNumber(l.divideToIntegralValue(r));
+				return new EQLNumber(l.divide(r, DIVISION));
+			case MOD:
+				return new EQLNumber(l.remainder(r));
+			default:
+				throw new EQLException("Operator " + op + " is not arithmetic");
+		}
+	}
+
+	/**
+	 * Numbers compare by value, strings with the EQLString and booleans with the EQLBoolean rules, dates by time
+	 * @param op
+	 * @param a
+	 * @param b
+	 * @return
+	 * @throws EQLException when the types can not be compared
+	 */
+	protected static boolean compare(ops op, EQLObject a, EQLObject b) throws EQLException {
+		if (isNull(a) || isNull(b)) {
+			boolean both = isNull(a) && isNull(b);
+			return (op == ops.EQ) ? both : (op == ops.NE) ? !both : false;
+		}
+		int order;
+		if (isNumber(a) && isNumber(b)) {
+			Number x = number(a);
+			Number y = number(b);
+			if (x instanceof Long && y instanceof Long)
+				order = Long.compare(x.longValue(), y.longValue());
+			else if (x instanceof Double || y instanceof Double)
+				order = Double.compare(x.doubleValue(), y.doubleValue());
+			else
+				order = big(x).compareTo(big(y));
+		} else if (a.getType() == EQLObject.types.bool && b.getType() == EQLObject.types.bool) {
+			EQLBoolean left = (a instanceof EQLBoolean) ? (EQLBoolean) a : new EQLBoolean(a.toBoolean());
+			boolean right = b.toBoolean();
+			order = (left.eq(right)) ? 0 : (left.lt(right)) ? -1 : 1;
+		} else if (a.getType() == EQLObject.types.date && b.getType() == EQLObject.types.date) {
+			order = a.toDate().compareTo(b.toDate());
+		} else if (isNumber(a) || isNumber(b) || a.getType() == EQLObject.types.bool || b.getType() == EQLObject.types.bool) {
+			throw new EQLException("Can not compare " + a.printType() + " '" + a + "' with " + b.printType() + " '" + b + "'");
+		} else {
+			EQLString left = (a instanceof EQLString) ? (EQLString) a : new EQLString(text(a));
+			String right = text(b);
+			order = (left.eq(right)) ? 0 : (left.lt(right)) ? -1 : 1;
+		}
+		switch (op) {
+			case EQ:
+				return order == 0;
+			case NE:
+				return order != 0;
+			case LT:
+				return order < 0;
+			case LE:
+				return order <= 0;
+			case GT:
+				return order > 0;
+			default:
+				return order >= 0;
+		}
+	}
+
+	/**
+	 * Recursive descent over the tokens of the expression, one method per precedence level
+	 */
+	protected static class Parser {
+		final String source;
+		final List<String> tokens;
+		final Iterator<String> parms;
+		int pos;
+
+		Parser(String source, List<String> parms) throws EQLException {
+			this.source = source;
+			this.tokens = tokenize(source);
+			this.parms = parms.iterator();
+			this.pos = 0;
+		}
+
+		String peek() {
+			return (this.pos < this.tokens.size()) ? this.tokens.get(this.pos) : null;
+		}
+
+		boolean accept(String token) {
+			if (token.equalsIgnoreCase(this.peek())) {
+				this.pos++;
+				return true;
+			}
+			return false;
+		}
+
+		Node parseOr() throws EQLException {
+			Node node = this.parseAnd();
+			while (this.accept("or")) {
+				node = fold(new Binary(ops.OR, node, this.parseAnd()));
+			}
+			return node;
+		}
+
+		Node parseAnd() throws EQLException {
+			Node node = this.parseNot();
+			while (this.accept("and")) {
+				node = fold(new Binary(ops.AND, node, this.parseNot()));
+			}
+			return node;
+		}
+
+		Node parseNot() throws EQLException {
+			if (this.accept("not") || this.accept("!"))
+				return fold(new Unary(ops.NOT, this.parseNot()));
+			return this.parseCompare();
+		}
+
+		Node parseCompare() throws EQLException {
+			Node node = this.parseAdd();
+			ops op = null;
+			if (this.accept("=") || this.accept("=="))
+				op = ops.EQ;
+			else if (this.accept("!=") || this.accept("<>"))
+				op = ops.NE;
+			else if (this.accept("<="))
+				op = ops.LE;
+			else if (this.accept(">="))
+				op = ops.GE;
+			else if (this.accept("<"))
+				op = ops.LT;
+			else if (this.accept(">"))
+				op = ops.GT;
+			if (op != null)
+				node = fold(new Binary(op, node, this.parseAdd()));
+			return node;
+		}
+
+		Node parseAdd() throws EQLException {
+			Node node = this.parseMul();
+			while (true) {
+				if (this.accept("+"))
+					node = fold(new Binary(ops.ADD, node, this.parseMul()));
+				else if (this.accept("-"))
+					node = fold(new Binary(ops.SUB, node, this.parseMul()));
+				else if (this.accept("||"))
+					node = fold(new Binary(ops.CONCAT, node, this.parseMul()));
+				else
+					return node;
+			}
+		}
+
+		Node parseMul() throws EQLException {
+			Node node = this.parseUnary();
+			while (true) {
+				if (this.accept("*"))
+					node = fold(new Binary(ops.MUL, node, this.parseUnary()));
+				else if (this.accept("/"))
+					node = fold(new Binary(ops.DIV, node, this.parseUnary()));
+				else if (this.accept("%"))
+					node = fold(new Binary(ops.MOD, node, this.parseUnary()));
+				else
+					return node;
+			}
+		}
+
+		Node parseUnary() throws EQLException {
+			if (this.accept("-"))
+				return fold(new Unary(ops.NEG, this.parseUnary()));
+			if (this.accept("+"))
+				return this.parseUnary();
+			return this.parsePrimary();
+		}
+
+		Node parsePrimary() throws EQLException {
+			String token = this.peek();
+			if (token == null)
+				throw new EQLException("Expression ends early: " + this.source);
+			this.pos++;
+			if (token.equals("(")) {
+				Node node = this.parseOr();
+				if (!this.accept(")"))
+					throw new EQLException("Missing ')' in expression: " + this.source);
+				return node;
+			}
+			if (token.equals("?")) {
+				if (!this.parms.hasNext())
+					throw new EQLException("Variable without a name in expression: " + this.source);
+				String name = this.parms.next();
+				String column = null;
+				if (this.accept(".")) {
+					column = this.peek();
+					if (column == null || !Character.isJavaIdentifierStart(column.charAt(0)))
+						throw new EQLException("Column name expected after '.' in expression: " + this.source);
+					this.pos++;
+				}
+				return new Variable(name, column);
+			}
+			if (token.startsWith("'") || token.startsWith("\""))
+				return new Constant(new EQLString(token.substring(1, token.length() - 1).replace(token.substring(0, 1) + token.substring(0, 1), token.substring(0, 1))));
+			if (Character.isDigit(token.charAt(0)) || token.charAt(0) == '.') {
+				EQLObject num = new EQLObject(token);
+				if (num.getNumber() == null)
+					throw new EQLException("Illegal number '" + token + "' in expression: " + this.source);
+				return new Constant(num);
+			}
+			if (token.equalsIgnoreCase("true") || token.equalsIgnoreCase("false"))
+				return new Constant(new EQLBoolean(token.equalsIgnoreCase("true")));
+			if (token.equalsIgnoreCase("null"))
+				return new Constant(new EQLObject());
+			throw new EQLException("Unexpected '" + token + "' in expression: " + this.source);
+		}
+
+		/**
+		 * Replaces an operator over constants by its value, errors (division by zero) are left to evaluation
+		 * @param node
+		 * @return
+		 */
+		static Node fold(Node node) {
+			if (!node.isConstant())
+				return node;
+			try {
+				return new Constant(node.eval(null));
+			} catch (EQLException e) {
+				return node;
+			}
+		}
+
+		static List<String> tokenize(String text) throws EQLException {
+			List<String> tokens = new ArrayList<String>();
+			int idx = 0;
+			while (idx < text.length()) {
+				char c = text.charAt(idx);
+				int start = idx;
+				if (Character.isWhitespace(c)) {
+					idx++;
+					continue;
+				} else if (c == '\'' || c == '"') {	// doubled quotes inside the string are one quote
+					idx++;
+					while (idx < text.length() && (text.charAt(idx) != c || (idx + 1 < text.length() && text.charAt(idx + 1) == c))) {
+						idx += (text.charAt(idx) == c) ? 2 : 1;
+					}
+					if (idx >= text.length())
+						throw new EQLException("Unterminated string in expression: " + text);
+					idx++;
+				} else if (Character.isDigit(c) || (c == '.' && idx + 1 < text.length() && Character.isDigit(text.charAt(idx + 1)))) {
+					while (idx < text.length() && (Character.isLetterOrDigit(text.charAt(idx)) || text.charAt(idx) == '.'
+							|| ((text.charAt(idx) == '+' || text.charAt(idx) == '-') && Character.toLowerCase(text.charAt(idx - 1)) == 'e'))) {
+						idx++;
+					}
+				} else if (Character.isJavaIdentifierStart(c)) {
+					while (idx < text.length() && Character.isJavaIdentifierPart(text.charAt(idx))) {
+						idx++;
+					}
+				} else if (idx + 1 < text.length() && "== != <> <= >= ||".contains(text.substring(idx, idx + 2)) && text.charAt(idx + 1) != ' ') {
+					idx += 2;
+				} else if ("?.()+-*/%=<>!".indexOf(c) >= 0) {
+					idx++;
+				} else if (c == '[') {
+					throw new EQLException("Index references are not supported in expressions, assign the value to a variable first: " + text);
+				} else {
+					throw new EQLException("Unexpected character '" + c + "' in expression: " + text);
+				}
+				tokens.add(text.substring(start, idx));
+			}
+			return tokens;
+		}
+	}
+}
@@ -2,13 +2,20 @@ package com.ias.language.objects;
 
 import java.io.CharArrayReader;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.ias.language.eql.imp.EQLEvents;
 import com.ias.language.eql.imp.EQLException;
 import com.ias.language.eql.imp.EQLUtilities;
 
@@ -19,6 +26,17 @@ import com.ias.language.eql.imp.EQLUtilities;
  */
 public class EQLInstruction {
 	private final static Logger log = LoggerFactory.getLogger(EQLInstruction.class.getCanonicalName());
+	private final static Pattern MODIFIER = Pattern.compile("^(cached|fanout|partitioned)\\s*\\(([^)]*)\\)\\s+(.+)$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private final static Pattern CONDITION = Pattern.compile("^(if|elseif|else\\s+if|while)\\s+(.+)$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private final static Pattern BLOCK = Pattern.compile("^(?:(else)|end\\s+(if|while))$", Pattern.CASE_INSENSITIVE);
+	private final static Pattern VAR_REF = Pattern.compile("^\\?(\\[\\?\\])?(\\.[\\w$]+)?$");	// @var, @cur.col, @lkp[@key].col are copies or column pulls
+	private final static List<String> EXPRESSION_WORDS = Arrays.asList("not", "true", "false", "null");
+
+	/**
+	 * What the engine runs for an instruction, pass-through statements are exec (dml when they can share a round
+	 * trip), elseBlock covers elseif and else
+	 */
+	public enum opcodes {exec, dml, use, var, expression, connect, copy, join, summarize, sort, export, load, file, transaction, call, index, print, ifBlock, elseBlock, whileBlock, endBlock}
 
 	protected int rawChars;		// Length of characters in raw input including comment length
 	protected int rawLines;		// Number of lines this segment used in raw input
@@ -32,6 +50,15 @@ public class EQLInstruction {
 	protected String function;		// function - first command if not assignment
 //	protected boolean isPassThrough;	// To pass-through to the sql engine
 	protected List<String> parms;		// List of parms as found in statements
+	protected String modifier;		// Statement prefix such as cached(600) or fanout(t1, t2), lower case name
+	protected String modifierArgs;	// Raw text inside the modifier parenthesis
+	protected EQLExpression expression;	// Assignment expression or if/elseif/while condition
+	protected boolean control;		// if, elseif, else, while or end, run by the engine
+	protected opcodes opcode;		// Resolved by the engine when the script compiles
+	protected String blockType;		// Block closed by an end (if or while)
+	protected int branchNext = -1;	// if/elseif: instruction index of the next branch (elseif, else or end)
+	protected int blockEnd = -1;	// if/elseif/else/while: instruction index of the end of the block
+	protected int blockStart = -1;	// elseif/else/end: instruction index of the if or while opening the block
 	
 	public EQLInstruction() {
 		rawChars = 0;
@@ -54,6 +81,55 @@ public class EQLInstruction {
 		return parms;
 	}
 	
+	public String getModifier() {
+		return modifier;
+	}
+	
+	public String getModifierArgs() {
+		return modifierArgs;
+	}
+
+	public opcodes getOpcode() {
+		return opcode;
+	}
+
+	public void setOpcode(opcodes opcode) {
+		this.opcode = opcode;
+	}
+
+	public boolean isControl() {
+		return control;
+	}
+
+	public EQLExpression getExpression() {
+		return expression;
+	}
+
+	public int getBranchNext() {
+		return branchNext;
+	}
+
+	public int getBlockEnd() {
+		return blockEnd;
+	}
+
+	public int getBlockStart() {
+		return blockStart;
+	}
+	
+	/**
+	 * Lower case leading identifier of a statement (letters, digits and _)
+	 * @param text
+	 * @return
+	 */
+	private static String leadingWord(String text) {
+		int end = 0;
+		while (end < text.length() && (Character.isLetterOrDigit(text.charAt(end)) || text.charAt(end) == '_')) {
+			end++;
+		}
+		return text.substring(0, end).toLowerCase();
+	}
+	
 	private int smallestPositive(int a, int b) {
 		if (a < 0)
 			return b;
@@ -103,7 +179,14 @@ public class EQLInstruction {
 				nxt = smallestPositive(nxt, instructLine.indexOf('-', varLoc)); // if used in a query operational clause w/o space
 				nxt = smallestPositive(nxt, instructLine.indexOf('/', varLoc)); // if used in a query operational clause w/o space
 				nxt = smallestPositive(nxt, instructLine.indexOf('+', varLoc)); // if used in a query operational clause w/o space
+				nxt = smallestPositive(nxt, instructLine.indexOf('<', varLoc)); // comparisons w/o space
+				nxt = smallestPositive(nxt, instructLine.indexOf('>', varLoc));
+				nxt = smallestPositive(nxt, instructLine.indexOf('!', varLoc));
+				nxt = smallestPositive(nxt, instructLine.indexOf('%', varLoc));
+				nxt = smallestPositive(nxt, instructLine.indexOf('|', varLoc));
 				nxt = smallestPositive(nxt, instructLine.indexOf('.', varLoc)); // if used in a query operational clause w/o space
+				nxt = smallestPositive(nxt, instructLine.indexOf('[', varLoc)); // index lookup @lkp[@key].col
+				nxt = smallestPositive(nxt, instructLine.indexOf(']', varLoc));
 				nxt = smallestPositive(nxt, instructLine.indexOf('\'', varLoc)); // if used in a query operational clause w/o space
 				nxt = smallestPositive(nxt, instructLine.indexOf(';', varLoc));
 				nxt = smallestPositive(nxt, instructLine.indexOf('\n', varLoc));
@@ -127,7 +210,7 @@ public class EQLInstruction {
 				// For each parm replace with ? for later jdbc param substitution - case sensitive at first and then all names changed to lowercase to make case-insensitive for easy use
 					// If var was bounded with syntax @var@ then consume the next @ to allow normal advancing logic. Legal for 2 side by side vars is @myvar2@@myvar2@More_text
 				log.trace("Before instructline replace @:{}", instructLine);
-				instructLine = instructLine.replaceFirst("@" + var + ((atDlm)? "@": ""), "?");
+				instructLine = instructLine.substring(0, varLoc) + "?" + instructLine.substring(Math.min(nxt + ((atDlm)? 1: 0), instructLine.length()));	// at varLoc, an assignment to the same variable (@n = @n + 1) keeps its name
 				log.trace("After instructline replace @:{}", instructLine);
 				varLoc = instructLine.indexOf('@', 1);
 				limit--;
@@ -153,20 +236,127 @@ public class EQLInstruction {
 			pos = instructLine.indexOf('=');	// Refresh the value incase of assignment changes like var substitution above
 			this.assignVal = new EQLObject(instructLine.substring(pos + 1, instructLine.length()).trim());
 			
-			if (this.assignVal.type == EQLObject.types.statement) {
-				strtok = instructLine.split(" ");
-				// As a statement object - override the var and make a statement - having a varname will signal the engine to treat it as a cursor assignment 
-				if (strtok.length > 0) {
-					this.function = strtok[0];
+			Matcher m = MODIFIER.matcher(this.assignVal.toString());
+			if (this.assignVal.type == EQLObject.types.statement && m.matches()) {
+				// Modifier prefix changes how the statement runs, the statement itself is sent without it
+				this.modifier = m.group(1).toLowerCase();
+				this.modifierArgs = m.group(2).trim();
+				this.assignVal = new EQLObject(m.group(3).trim());
+			}
+			String valText = instructLine.substring(pos + 1, instructLine.length()).trim();
+			if (this.modifier == null && this.isExpression(valText)) {
+				this.expression = EQLExpression.compile(valText, this.parms);
+				if (this.expression.isConstant()) {	// folded, assigned like a literal
+					try {
+						this.assignVal = this.expression.evaluate(null);
+						this.expression = null;
+					} catch (EQLException e) {	// 1 / 0 fails when the line runs, not when the script compiles
+						log.debug("Constant expression '{}' not folded: {}", valText, e.getMessage());
+					}
 				}
+			} else if (this.assignVal.type == EQLObject.types.statement) {
+				// As a statement object - override the var and make a statement - having a varname will signal the engine to treat it as a cursor assignment 
+				// The function is the first word of the statement so engine instructions (join...) can be assigned like a select
+				this.function = leadingWord(this.assignVal.toString());
 			}
 		} else {
 			this.assignVal = new EQLObject(instructLine);
+			Matcher m = CONDITION.matcher(instructLine.trim());
+			Matcher b = BLOCK.matcher(instructLine.trim());
+			EQLExpression condition = (m.matches()) ? this.condition(m.group(2).trim()) : null;
+			if (condition != null) {
+				this.control = true;
+				this.function = m.group(1).toLowerCase().replaceAll("\\s+", "");
+				this.expression = condition;
+			} else if (b.matches()) {
+				this.control = true;
+				this.function = (b.group(1) != null) ? "else" : "end";
+				this.blockType = (b.group(2) != null) ? b.group(2).toLowerCase() : null;
+			}
 		}
 
 		return true;
 	}
 	
+	/**
+	 * Condition of an if/while, null when the text is not an EQL condition so database statements led by the same
+	 * keyword (T-SQL IF OBJECT_ID('x') IS NOT NULL DROP TABLE x) pass through
+	 * @param text
+	 * @return
+	 */
+	private EQLExpression condition(String text) {
+		try {
+			return EQLExpression.compile(text, this.parms);
+		} catch (EQLException e) {
+			log.debug("Not an EQL condition, passed to the database ({}): {}", e.getMessage(), text);
+			return null;
+		}
+	}
+	
+	/**
+	 * Assigned values computed by the engine: operators around variables (? + 1, ?.col * 2), literals combined with
+	 * operators (1 + 2, 'a' || ?) or values led by not/true/false/null. Unquoted text without spaces (2020-01-31) stays
+	 * a literal, as does a value that is one quoted string ('it''s').
+	 * @param valText
+	 * @return
+	 * @throws EQLException string with an unterminated quote
+	 */
+	private boolean isExpression(String valText) throws EQLException {
+		switch (this.assignVal.type) {
+			case variable:
+				return !VAR_REF.matcher(valText).matches();
+			case unk:
+				return valText.indexOf('?') >= 0 || valText.startsWith("(") || valText.matches("(?s).*\\s.*");
+			case statement:
+				return EXPRESSION_WORDS.contains(leadingWord(valText));
+			case string:
+				return EQLExpression.Parser.tokenize(valText).size() != 1;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Links the if/elseif/else/end and while/end blocks of a script, each branch knows the next branch and the end
+	 * @param list
+	 * @throws EQLException when blocks are not closed or an end has no block
+	 */
+	public static void linkBlocks(List<EQLInstruction> list) throws EQLException {
+		Deque<Integer> open = new ArrayDeque<Integer>();	// innermost block first, if chains by their current branch
+		for(int idx=0; idx < list.size(); idx++) {
+			EQLInstruction inst = list.get(idx);
+			if (!inst.control) {
+				continue;
+			} else if (inst.function.equals("if") || inst.function.equals("while")) {
+				open.push(idx);
+			} else {
+				if (open.isEmpty())
+					throw new EQLException("'" + inst.rawInstLine + "' at instruction #" + (idx + 1) + " has no matching if or while");
+				EQLInstruction branch = list.get(open.peek());
+				boolean isWhile = branch.function.equals("while");
+				if (!inst.function.equals("end") && (isWhile || branch.function.equals("else")))
+					throw new EQLException("'" + inst.rawInstLine + "' at instruction #" + (idx + 1) + " does not follow an if or elseif");
+				if (inst.function.equals("end") && inst.blockType.equals("if") == isWhile)
+					throw new EQLException("'" + inst.rawInstLine + "' at instruction #" + (idx + 1) + " does not match the open " + ((isWhile) ? "while" : "if"));
+				int top = open.pop();
+				int head = (branch.blockStart >= 0) ? branch.blockStart : top;
+				inst.blockStart = head;
+				branch.branchNext = idx;
+				if (inst.function.equals("end")) {
+					for(int at = head; at != idx; at = list.get(at).branchNext) {
+						list.get(at).blockEnd = idx;
+					}
+				} else {
+					open.push(idx);
+				}
+			}
+		}
+		if (!open.isEmpty()) {
+			EQLInstruction inst = list.get(open.peek());
+			throw new EQLException("'" + StringUtils.abbreviate(inst.rawInstLine, 40) + "' at instruction #" + (open.peek() + 1) + " has no end");
+		}
+	}
+	
 	/*
 	 * Compiles the statement using string substitutions for any rawText values directly injected into the SQL statement
 	 */
@@ -350,6 +540,9 @@ public class EQLInstruction {
 	}
 
 	public static List<EQLInstruction> InstructionFactory(String segment) throws EQLException, IOException {
+		EQLEvents.Compile event = (EQLEvents.ENABLED) ? new EQLEvents.Compile() : null;
+		if (event != null)
+			event.begin();
 		List<EQLInstruction> retInst = new ArrayList<EQLInstruction>();
 		char ca[] = segment.toCharArray();
 		CharArrayReader car = new CharArrayReader(ca);
@@ -359,6 +552,14 @@ public class EQLInstruction {
 			retInst.add(nextLine);
 			nextLine = extractRawLine(car, lineNbr);
 		}
+		linkBlocks(retInst);
+		if (event != null)
+			event.end();
+		if (event != null && event.shouldCommit()) {
+			event.instructions = retInst.size();
+			event.characters = segment.length();
+			event.commit();
+		}
 
 		return retInst;
 	}
@@ -374,7 +575,7 @@ public class EQLInstruction {
 			return null;
 	}
 	
-	private static boolean processInstruction(EQLInstruction inst, int lineNbr) {
+	private static boolean processInstruction(EQLInstruction inst, int lineNbr) throws EQLException {
 		if(inst != null && inst.rawInstLine.length() > 0) {
 			inst.startLine = lineNbr + inst.rawLeadLines;
 			lineNbr += inst.rawLines;
@@ -387,7 +588,7 @@ public class EQLInstruction {
 				}
 				return true;
 			} catch (EQLException e) {
-				e.printStackTrace();
+				throw new EQLException(e.getMessage() + " (instruction: " + StringUtils.abbreviate(inst.rawInstLine.replace('\n', ' '), 60) + ")");
 			}
 		}
 		return false;
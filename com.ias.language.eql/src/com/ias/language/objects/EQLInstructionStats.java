@@ -0,0 +1,133 @@
+package com.ias.language.objects;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+/**
+ * Timings and volumes of one script instruction, summed over every time it ran (loops run it again).
+ *   Fetch work is charged to the statement that opened the cursor, also when a later instruction (print, export,
+ *   copy...) reads the rows. The counters are updated by the thread running the script.
+ */
+public class EQLInstructionStats {
+	protected final int instruction;
+	protected final String opcode;
+	protected final String text;
+	protected long runs;
+	protected long totalNanos;
+	protected long prepareNanos;
+	protected long executeNanos;
+	protected long firstRowNanos;		// slowest execute plus read of the first row
+	protected long fetchNanos;
+	protected long rows;			// rows read from the cursors and rows affected by statements
+	protected long bytes;			// approximate size of the rows read
+	protected long allocated;		// heap allocated by the script thread, -1 when the JVM does not report it
+
+	public EQLInstructionStats(int instruction, String opcode, String text) {
+		this.instruction = instruction;
+		this.opcode = opcode;
+		this.text = text;
+	}
+
+	public void ran(long nanos, long allocated) {
+		this.runs++;
+		this.totalNanos += nanos;
+		if (allocated < 0 || this.allocated < 0)
+			this.allocated = -1;
+		else
+			this.allocated += allocated;
+	}
+
+	public void prepared(long nanos) {
+		this.prepareNanos += nanos;
+	}
+
+	public void executed(long nanos, long rowsAffected) {
+		this.executeNanos += nanos;
+		if (rowsAffected > 0)
+			this.rows += rowsAffected;
+	}
+
+	public void firstRow(long nanos) {
+		this.firstRowNanos = Math.max(this.firstRowNanos, nanos);
+	}
+
+	public void fetched(long nanos, long rows, long bytes) {
+		this.fetchNanos += nanos;
+		this.rows += rows;
+		this.bytes += bytes;
+	}
+
+	/**
+	 * Approximate size of a row, characters count two bytes
+	 * @param vals
+	 * @return
+	 */
+	public static long sizeOf(Object[] vals) {
+		long size = 0;
+		for(Object val : vals) {
+			if (val == null)
+				size += 1;
+			else if (val instanceof String)
+				size += 2 * ((String)val).length();
+			else if (val instanceof byte[])
+				size += ((byte[])val).length;
+			else if (val instanceof BigDecimal)
+				size += ((BigDecimal)val).unscaledValue().bitLength() / 8 + 1;
+			else if (val instanceof Number || val instanceof Date)
+				size += 8;
+			else if (val instanceof Boolean)
+				size += 1;
+			else
+				size += 16;
+		}
+		return size;
+	}
+
+	public int getInstruction() {
+		return this.instruction;
+	}
+
+	public String getOpcode() {
+		return this.opcode;
+	}
+
+	public String getText() {
+		return this.text;
+	}
+
+	public long getRuns() {
+		return this.runs;
+	}
+
+	public long getTotalNanos() {
+		return this.totalNanos;
+	}
+
+	public long getPrepareNanos() {
+		return this.prepareNanos;
+	}
+
+	public long getExecuteNanos() {
+		return this.executeNanos;
+	}
+
+	public long getFirstRowNanos() {
+		return this.firstRowNanos;
+	}
+
+	public long getFetchNanos() {
+		return this.fetchNanos;
+	}
+
+	public long getRows() {
+		return this.rows;
+	}
+
+	public long getBytes() {
+		return this.bytes;
+	}
+
+	public long getAllocated() {
+		return this.allocated;
+	}
+}
@@ -0,0 +1,177 @@
+package com.ias.language.objects;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.ias.language.eql.imp.EQLException;
+
+/**
+ * Hash index over one key column of a frame, used for repeated in-process lookups (@lkp[@id].col).
+ *   Integral keys use an open addressing table of primitive longs, other keys a HashMap of the normalized value.
+ *   The first row of a duplicated key wins.
+ */
+public class EQLLookupIndex implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	protected EQLDataFrame frame;
+	protected int keyCol;
+	protected boolean integral;
+	protected long[] keys;		// open addressing table for integral keys
+	protected int[] slots;		// row + 1, 0 is an empty slot
+	protected int mask;
+	protected Map<Object,Integer> objIndex;
+	protected int duplicates;
+
+	public EQLLookupIndex(EQLDataFrame frame, int keyCol) {
+		this.frame = frame;
+		this.keyCol = keyCol;
+		this.integral = frame.isLongColumn(keyCol);
+		this.duplicates = 0;
+
+		if (this.integral) {
+			int cap = Integer.highestOneBit(Math.max(16, frame.getRowCount() * 2 - 1)) << 1;
+			this.keys = new long[cap];
+			this.slots = new int[cap];
+			this.mask = cap - 1;
+			for(int row=0; row < frame.getRowCount(); row++) {
+				if (!frame.isNull(row, keyCol))
+					this.putLong(frame.getLong(row, keyCol), row);
+			}
+		} else {
+			this.objIndex = new HashMap<Object,Integer>(Math.max(16, frame.getRowCount() * 2));
+			for(int row=0; row < frame.getRowCount(); row++) {
+				Object key = normalize(frame.get(row, keyCol));
+				if (key == null)
+					continue;
+				if (this.objIndex.putIfAbsent(key, row) != null)
+					this.duplicates++;
+			}
+		}
+	}
+
+	/**
+	 * Loads the remaining rows of a source and indexes them on the named column
+	 * @param src
+	 * @param keyName column name or label
+	 * @return
+	 * @throws EQLException
+	 */
+	public static EQLLookupIndex build(EQLRowSource src, String keyName) throws EQLException {
+		int keyCol = EQLDataFrame.findColumn(src.getColumnNames(), src.getColumnLabels(), keyName);
+		if (keyCol < 0)
+			throw new EQLException("Index key column '" + keyName + "' not found");
+		return new EQLLookupIndex(EQLDataFrame.load(src), keyCol);
+	}
+
+	private static int mix(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private void putLong(long key, int row) {
+		int pos = mix(key) & this.mask;
+		while (this.slots[pos] != 0) {
+			if (this.keys[pos] == key) {
+				this.duplicates++;
+				return;
+			}
+			pos = (pos + 1) & this.mask;
+		}
+		this.keys[pos] = key;
+		this.slots[pos] = row + 1;
+	}
+
+	/**
+	 * Row of an integral key, -1 when missing
+	 * @param key
+	 * @return
+	 */
+	public int findLong(long key) {
+		if (!this.integral)
+			return this.findObject(key);
+		int pos = mix(key) & this.mask;
+		while (this.slots[pos] != 0) {
+			if (this.keys[pos] == key)
+				return this.slots[pos] - 1;
+			pos = (pos + 1) & this.mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Row of a key of any type, text keys are converted for integral indexes. -1 when missing
+	 * @param key
+	 * @return
+	 */
+	public int find(Object key) {
+		if (key == null)
+			return -1;
+		if (this.integral) {
+			if (key instanceof Long || key instanceof Integer || key instanceof Short || key instanceof Byte)
+				return this.findLong(((Number) key).longValue());
+			try {
+				return this.findLong(new BigDecimal(key.toString().trim()).longValueExact());
+			} catch (NumberFormatException | ArithmeticException e) {
+				return -1;	// not an integral value, can't match
+			}
+		}
+		return this.findObject(key);
+	}
+
+	private int findObject(Object key) {
+		Integer row = this.objIndex.get(normalize(key));
+		return (row == null) ? -1 : row;
+	}
+
+	private static Object normalize(Object val) {
+		if (val instanceof Integer || val instanceof Long || val instanceof Short || val instanceof Byte)
+			return ((Number) val).longValue();
+		if (val instanceof BigInteger)
+			val = new BigDecimal((BigInteger) val);
+		if (val instanceof BigDecimal) {	// whole decimals match integral keys
+			BigDecimal bd = ((BigDecimal) val).stripTrailingZeros();
+			if (bd.scale() <= 0 && bd.toBigInteger().bitLength() < 64)
+				return bd.longValue();
+			return bd;
+		}
+		return val;
+	}
+
+	/**
+	 * Value of a column for the row matching the key
+	 * @param key
+	 * @param column name or label
+	 * @return null when the key is missing
+	 * @throws EQLException column not in the index
+	 */
+	public Object lookup(Object key, String column) throws EQLException {
+		int col = this.frame.findColumn(column);
+		if (col < 0)
+			throw new EQLException("Column '" + column + "' not found in index");
+		int row = this.find(key);
+		return (row < 0) ? null : this.frame.get(row, col);
+	}
+
+	public boolean contains(Object key) {
+		return this.find(key) >= 0;
+	}
+
+	public int getRowCount() {
+		return this.frame.getRowCount();
+	}
+
+	public int getDuplicates() {
+		return this.duplicates;
+	}
+
+	public String getKeyName() {
+		return this.frame.getColumnLabels().get(this.keyCol);
+	}
+
+	public EQLDataFrame getFrame() {
+		return this.frame;
+	}
+}
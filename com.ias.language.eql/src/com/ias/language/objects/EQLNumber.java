@@ -1,6 +1,45 @@
 package com.ias.language.objects;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Numeric value held as a Long, Double or BigDecimal, column values are wrapped without going through text
+ * @author tim_c
+ *
+ */
 public class EQLNumber extends EQLObject {
 	private static final long serialVersionUID = 3967708425213069846L;
 
+	public EQLNumber(long val) {
+		super(types.integer, Long.toString(val), true);
+		this.num = val;
+	}
+
+	public EQLNumber(double val) {
+		super(types.decimal, Double.toString(val), true);
+		this.num = val;
+	}
+
+	public EQLNumber(BigDecimal val) {
+		super(types.decimal, val.toPlainString(), true);
+		this.num = val;
+	}
+
+	/**
+	 * Integral types are kept as a long, big integers beyond a long and other numbers as a BigDecimal
+	 * @param val
+	 * @return
+	 */
+	public static EQLNumber of(Number val) {
+		if (val instanceof Long || val instanceof Integer || val instanceof Short || val instanceof Byte)
+			return new EQLNumber(val.longValue());
+		if (val instanceof Double || val instanceof Float)
+			return new EQLNumber(val.doubleValue());
+		if (val instanceof BigDecimal)
+			return new EQLNumber((BigDecimal) val);
+		if (val instanceof BigInteger && ((BigInteger) val).bitLength() < 64)
+			return new EQLNumber(val.longValue());
+		return new EQLNumber(new BigDecimal(val.toString()));
+	}
 }
@@ -1,15 +1,20 @@
 package com.ias.language.objects;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.math.BigDecimal;
+import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
@@ -17,6 +22,9 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Base object of all EQL objects
+ *   Scalar values are parsed once when the value is set, numbers are kept as a Long, Double or BigDecimal, strings and
+ *   raw text without their delimiters. Binding and printing read the typed value, the raw text is only kept for the
+ *   type detection and the log.
  * @author tim_c
  *
  */
@@ -24,16 +32,32 @@ public class EQLObject implements Serializable, Closeable {
 	private static final long serialVersionUID = 1L;
 	private final static Logger log = LoggerFactory.getLogger(EQLObject.class.getCanonicalName());
 
-	public enum types {empty, string, integer, decimal, cursor, statement, rawText, variable, unk}
+	public enum types {empty, string, integer, decimal, cursor, statement, rawText, variable, index, file, bool, date, unk}
 	
 	protected types type;
 	private String sRawVal;
+	protected Number num;			// integer (Long) and decimal (BigDecimal, Double from a column) values
+	protected String text;			// string and raw text values without their delimiters
+	protected boolean bool;
+	protected Date date;
 	protected volatile ResultSet cursor;	// Does not serialize - transient
 	protected volatile Statement cursor_stmt;
 	protected volatile ResultSetMetaData rsmd;
+	protected volatile EQLRowSource cursor_source;	// Client side cursors (join...) stream from a row source instead of a ResultSet
 	protected List<Map<String,Object>> cursor_cache;
 	protected List<String> cursor_cols;
 	protected List<String> cursor_labels;
+	protected EQLLookupIndex lookup;
+	protected File file;			// File backed value, streamed when bound to a statement
+	protected boolean binary;
+	protected long charLength;
+	protected transient EQLConnection cursor_pool;	// Pool the cursor connection is released to on close
+	protected transient Connection cursor_conn;
+	protected transient int refs;	// Variables holding this cursor, closed by the engine when the last one lets go
+	protected transient EQLObject cursor_parent;	// Cursor the row source streams from (join probe side), held until this one closes
+	protected transient EQLInstructionStats stats;	// Statement that opened the cursor, charged with the fetch work
+	protected transient long statsExecute;	// Execute time of the statement until the first row is read, -1 after
+	protected transient AtomicLong rowCounter;	// Rows read by the engine, the throughput of the monitor
 	
 	public EQLObject() {
 		this.type = types.empty;
@@ -47,6 +71,7 @@ public class EQLObject implements Serializable, Closeable {
 		this.rsmd = null;
 		this.sRawVal = val;
 		this.type = this.getTypeFromSVal();
+		this.parseValue();
 	}
 	
 	public EQLObject(String val, types type) {
@@ -54,6 +79,32 @@ public class EQLObject implements Serializable, Closeable {
 		this.rsmd = null;
 		this.sRawVal = val;
 		this.type = type;
+		this.parseValue();
+	}
+
+	/**
+	 * Date value from a column, printed in the JDBC escape format
+	 * @param val
+	 */
+	public EQLObject(Date val) {
+		this.cursor = null;
+		this.rsmd = null;
+		this.sRawVal = val.toString();
+		this.date = val;
+		this.type = types.date;
+	}
+
+	/**
+	 * Typed value set by a specialization, the raw text is not parsed
+	 * @param type
+	 * @param val text form of the value
+	 * @param parsed unused marker of the typed constructor
+	 */
+	protected EQLObject(types type, String val, boolean parsed) {
+		this.cursor = null;
+		this.rsmd = null;
+		this.sRawVal = val;
+		this.type = type;
 	}
 	
 	public EQLObject(Statement st, ResultSet rs) {
@@ -66,48 +117,249 @@ public class EQLObject implements Serializable, Closeable {
 		this.rsmd = null;
 		this.type = types.cursor;
 	}
-	
+
+	public EQLObject(EQLRowSource src) {
+		this.cursor = null;
+		this.cursor_stmt = null;
+		this.cursor_source = src;
+		this.cursor_cache = new ArrayList<Map<String,Object>>();
+		this.cursor_cols = new ArrayList<String>();
+		this.cursor_labels = new ArrayList<String>();
+		this.sRawVal = null;
+		this.rsmd = null;
+		this.type = types.cursor;
+	}
+
+	public EQLObject(EQLLookupIndex lookup) {
+		this.cursor = null;
+		this.rsmd = null;
+		this.lookup = lookup;
+		this.sRawVal = null;
+		this.type = types.index;
+	}
+
+	/**
+	 * File backed value, toString is the path
+	 * @param file
+	 * @param binary bound with setBinaryStream, otherwise setCharacterStream of UTF-8 text
+	 * @param charLength characters in the file for text binding
+	 */
+	public EQLObject(File file, boolean binary, long charLength) {
+		this.cursor = null;
+		this.rsmd = null;
+		this.file = file;
+		this.binary = binary;
+		this.charLength = charLength;
+		this.sRawVal = file.getPath();
+		this.type = types.file;
+	}
+
+	public File getFile() {
+		return this.file;
+	}
+
+	public boolean isBinary() {
+		return this.binary;
+	}
+
+	public long getCharLength() {
+		return this.charLength;
+	}
+
+	public EQLLookupIndex getLookupIndex() {
+		return this.lookup;
+	}
+
 	public ResultSet getCursor() {
 		return this.cursor;
 	}
+
+	public EQLRowSource getRowSource() {
+		return this.cursor_source;
+	}
 	
 	public Statement getStatement() {
 		return this.cursor_stmt;
 	}
 
+	/**
+	 * Cursor read from a pooled connection, the connection goes back to the pool when the cursor is closed
+	 * @param pool
+	 * @param conn
+	 */
+	public void setPooledConnection(EQLConnection pool, Connection conn) {
+		this.cursor_pool = pool;
+		this.cursor_conn = conn;
+	}
+
+	/**
+	 * @return true when the cursor holds a connection of its own, released when it closes
+	 */
+	public boolean hasPooledConnection() {
+		return this.cursor_pool != null;
+	}
+
 	public types getType() {
 		return this.type;
 	}
+
+	/**
+	 * Counts a variable (or a cursor streaming from it) holding this value
+	 * @return references after adding this one
+	 */
+	public int retain() {
+		return ++this.refs;
+	}
+
+	/**
+	 * Drops a variable holding this value
+	 * @return references left
+	 */
+	public int release() {
+		if (this.refs > 0)
+			this.refs--;
+		return this.refs;
+	}
+
+	public int getRefs() {
+		return this.refs;
+	}
+
+	/**
+	 * Cursor the row source of this one reads from while it is read, the caller has retained it
+	 * @param parent
+	 */
+	public void setSourceCursor(EQLObject parent) {
+		this.cursor_parent = parent;
+	}
+
+	public EQLObject getSourceCursor() {
+		return this.cursor_parent;
+	}
+
+	/**
+	 * Cursor holding a statement, result set or pooled connection on the database side
+	 * @return
+	 */
+	public boolean isServerCursor() {
+		return this.cursor != null || this.cursor_stmt != null || this.cursor_pool != null;
+	}
+
+	/**
+	 * Rows read from the cursor are counted in the stats of the statement that opened it
+	 * @param stats
+	 * @param executeNanos execute time of the statement, -1 when the first row latency does not apply
+	 */
+	public void setStats(EQLInstructionStats stats, long executeNanos) {
+		this.stats = stats;
+		this.statsExecute = executeNanos;
+	}
+
+	public EQLInstructionStats getStats() {
+		return this.stats;
+	}
+
+	public void setRowCounter(AtomicLong rowCounter) {
+		this.rowCounter = rowCounter;
+	}
+
+	/**
+	 * Readers only time and count rows of tracked cursors
+	 * @return
+	 */
+	public boolean isTracked() {
+		return this.stats != null || this.rowCounter != null;
+	}
+
+	/**
+	 * Counts rows read by any reader of the cursor
+	 * @param nanos time spent reading
+	 * @param rows
+	 * @param bytes approximate size
+	 */
+	public void recordFetch(long nanos, long rows, long bytes) {
+		if (this.rowCounter != null)
+			this.rowCounter.addAndGet(rows);
+		if (this.stats == null)
+			return;
+		if (this.statsExecute > -1 && rows > 0) {
+			this.stats.firstRow(this.statsExecute + nanos / rows);
+			this.statsExecute = -1;
+		}
+		this.stats.fetched(nanos, rows, bytes);
+	}
 	
 	public String toString() {
-		if (sRawVal != null) {
-			if (type == types.string) {
-				if (sRawVal.startsWith("'") && sRawVal.endsWith("'")) {
-					return sRawVal.substring(1, sRawVal.length() - 1);
-				} else {
-					log.warn("String returned didn't have matching single quotes start and end of value (continuing):" + sRawVal);
-					return sRawVal;
-				}
-			} else if (type == types.rawText) {
-				if (sRawVal.startsWith("/") && sRawVal.endsWith("/")) {
-					return sRawVal.substring(1, sRawVal.length() - 1);
-				} else {
-					log.warn("rawString returned didn't have matching slash at start and end of value (continuing):" + sRawVal);
-					return sRawVal;
-				}
-			}
-			return sRawVal;
-		} 
-		return null;
+		if (this.text != null)
+			return this.text;
+		return sRawVal;
 	}
 
 	public int toInt() {
+		if (this.num != null)
+			return this.num.intValue();
 		return Integer.parseInt(sRawVal);
 	}
+
+	public long toLong() {
+		if (this.num != null)
+			return this.num.longValue();
+		return Long.parseLong(sRawVal);
+	}
 	
 	public double toDouble() {
+		if (this.num != null)
+			return this.num.doubleValue();
 		return Double.parseDouble(sRawVal);
 	}
+
+	public BigDecimal toBigDecimal() {
+		if (this.num instanceof BigDecimal)
+			return (BigDecimal) this.num;
+		if (this.num instanceof Long || this.num instanceof Integer)
+			return BigDecimal.valueOf(this.num.longValue());
+		if (this.num != null)
+			return BigDecimal.valueOf(this.num.doubleValue());
+		return new BigDecimal(sRawVal);
+	}
+
+	public boolean toBoolean() {
+		if (this.type == types.bool)
+			return this.bool;
+		if (this.num != null)
+			return this.num.doubleValue() != 0;
+		return Boolean.parseBoolean(this.toString());
+	}
+
+	public Date toDate() {
+		return this.date;
+	}
+
+	/**
+	 * Typed numeric value, null when the value is not a number
+	 * @return
+	 */
+	public Number getNumber() {
+		return this.num;
+	}
+
+	/**
+	 * Value as the Java object bound to a statement parameter
+	 * @return
+	 */
+	public Object toObject() {
+		switch (this.type) {
+			case integer:
+			case decimal:
+				return (this.num != null) ? this.num : sRawVal;
+			case bool:
+				return this.bool;
+			case date:
+				return this.date;
+			default:
+				return this.toString();
+		}
+	}
 	
 	public String printType() {
 		switch (this.type) {
@@ -127,6 +379,14 @@ public class EQLObject implements Serializable, Closeable {
 				return "Empty";
 			case cursor:
 				return "Cursor";
+			case index:
+				return "Index";
+			case file:
+				return "File";
+			case bool:
+				return "Bool";
+			case date:
+				return "Date";
 			default:
 				return "Unknown";
 		}
@@ -144,6 +404,8 @@ public class EQLObject implements Serializable, Closeable {
 				return types.string;
 			} else if (sRawVal.startsWith("/")) {
 				return types.rawText;
+			} else if (sRawVal.equalsIgnoreCase("true") || sRawVal.equalsIgnoreCase("false")) {
+				return types.bool;
 			} else if (sRawVal.startsWith("?")) {	// @var on the right side is masked to ? to account for consistent substitution rules
 				return types.variable;
 			} else {
@@ -160,6 +422,64 @@ public class EQLObject implements Serializable, Closeable {
 	public void setsRawVal(String sRawVal) {
 		this.sRawVal = sRawVal;
 		this.type = this.getTypeFromSVal();
+		this.parseValue();
+	}
+
+	/**
+	 * Parses the raw text once into the typed value of its type, a number that does not parse stays text and fails
+	 * when it is used as a number
+	 */
+	private void parseValue() {
+		this.num = null;
+		this.text = null;
+		this.date = null;
+		if (sRawVal == null)
+			return;
+		switch (this.type) {
+			case integer:
+				try {
+					this.num = Long.valueOf(sRawVal);
+				} catch (NumberFormatException e) {	// hex, exponent or beyond a long
+					this.num = parseNumber(sRawVal);
+				}
+				break;
+			case decimal:
+				try {
+					this.num = new BigDecimal(sRawVal);
+				} catch (NumberFormatException e) {
+					this.num = parseNumber(sRawVal);
+				}
+				break;
+			case string:
+				if (sRawVal.length() > 1 && sRawVal.startsWith("'") && sRawVal.endsWith("'")) {
+					this.text = sRawVal.substring(1, sRawVal.length() - 1);
+				} else {
+					log.warn("String returned didn't have matching single quotes start and end of value (continuing):" + sRawVal);
+					this.text = sRawVal;
+				}
+				break;
+			case rawText:
+				if (sRawVal.length() > 1 && sRawVal.startsWith("/") && sRawVal.endsWith("/")) {
+					this.text = sRawVal.substring(1, sRawVal.length() - 1);
+				} else {
+					log.warn("rawString returned didn't have matching slash at start and end of value (continuing):" + sRawVal);
+					this.text = sRawVal;
+				}
+				break;
+			case bool:
+				this.bool = Boolean.parseBoolean(sRawVal);
+				break;
+			default:
+				break;
+		}
+	}
+
+	private static Number parseNumber(String val) {
+		try {
+			return NumberUtils.createNumber(val);
+		} catch (NumberFormatException e) {
+			return null;
+		}
 	}
 
 	@Override
@@ -178,7 +498,15 @@ public class EQLObject implements Serializable, Closeable {
 			log.warn("Error closing cursor - continueing");
 			e.printStackTrace();
 		}
-		this.cursor_cache.clear();
+		if (this.cursor_pool != null) {
+			this.cursor_pool.release(this.cursor_conn);
+			this.cursor_pool = null;
+			this.cursor_conn = null;
+		}
+		if (this.cursor_source != null)
+			this.cursor_source.close();
+		if (this.cursor_cache != null)
+			this.cursor_cache.clear();
 	}
 
 	public List<Map<String, Object>> getCursor_cache() {
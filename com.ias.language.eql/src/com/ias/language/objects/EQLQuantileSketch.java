@@ -0,0 +1,140 @@
+package com.ias.language.objects;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Streaming quantile sketch (KLL style compactors). Level h holds items of weight 2^h, when a level is over its
+ * capacity it is sorted and every other item is promoted to the next level. Memory stays around 3*k values,
+ * the result is exact until the first compaction (under k values).
+ */
+public class EQLQuantileSketch implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private final static double DECAY = 2.0 / 3.0;
+
+	protected int k;
+	protected List<double[]> levels;
+	protected List<Integer> sizes;
+	protected long count;
+	protected Random coin;
+
+	public EQLQuantileSketch() {
+		this(200);
+	}
+
+	public EQLQuantileSketch(int k) {
+		this.k = Math.max(8, k);
+		this.levels = new ArrayList<double[]>();
+		this.sizes = new ArrayList<Integer>();
+		this.count = 0;
+		this.coin = new Random(0x5EEDL);
+		this.addLevel();
+	}
+
+	private void addLevel() {
+		this.levels.add(new double[this.k + 1]);
+		this.sizes.add(0);
+	}
+
+	private int capacity(int level) {
+		int depth = this.levels.size() - 1 - level;
+		return Math.max(2, (int) Math.ceil(this.k * Math.pow(DECAY, depth)));
+	}
+
+	public void add(double val) {
+		if (Double.isNaN(val))
+			return;
+		this.append(0, val);
+		this.count++;
+		this.compress();
+	}
+
+	public long getCount() {
+		return this.count;
+	}
+
+	private void append(int level, double val) {
+		double[] items = this.levels.get(level);
+		int size = this.sizes.get(level);
+		if (size >= items.length) {
+			items = Arrays.copyOf(items, items.length * 2);
+			this.levels.set(level, items);
+		}
+		items[size] = val;
+		this.sizes.set(level, size + 1);
+	}
+
+	private void compress() {
+		for(int level=0; level < this.levels.size(); level++) {
+			int size = this.sizes.get(level);
+			if (size <= this.capacity(level))
+				continue;
+			if (level + 1 == this.levels.size())
+				this.addLevel();
+			double[] items = this.levels.get(level);
+			Arrays.sort(items, 0, size);
+			int keep = size % 2;	// with an odd count the smallest item stays on this level
+			int offset = this.coin.nextBoolean() ? 1 : 0;
+			for(int idx=keep + offset; idx < size; idx += 2) {
+				this.append(level + 1, items[idx]);
+			}
+			this.sizes.set(level, keep);
+		}
+	}
+
+	/**
+	 * Approximate value at the requested rank
+	 * @param q 0.0 to 1.0
+	 * @return NaN when nothing was added
+	 */
+	public double quantile(double q) {
+		int total = 0;
+		for(int size : this.sizes) {
+			total += size;
+		}
+		if (total == 0)
+			return Double.NaN;
+
+		double[] vals = new double[total];
+		long[] weights = new long[total];
+		int pos = 0;
+		for(int level=0; level < this.levels.size(); level++) {
+			double[] items = this.levels.get(level);
+			for(int idx=0; idx < this.sizes.get(level); idx++) {
+				vals[pos] = items[idx];
+				weights[pos] = 1L << level;
+				pos++;
+			}
+		}
+
+		Integer[] order = new Integer[total];
+		for(int idx=0; idx < total; idx++) {
+			order[idx] = idx;
+		}
+		Arrays.sort(order, (a, b) -> Double.compare(vals[a], vals[b]));
+
+		long weightTotal = 0;
+		for(long w : weights) {
+			weightTotal += w;
+		}
+		double target = Math.max(0.0, Math.min(1.0, q)) * weightTotal;
+		long cumulative = 0;
+		for(int idx : order) {
+			cumulative += weights[idx];
+			if (cumulative >= target)
+				return vals[idx];
+		}
+		return vals[order[total - 1]];
+	}
+
+	public long getBytes() {
+		long bytes = 0;
+		for(double[] items : this.levels) {
+			bytes += 16 + 8L * items.length;
+		}
+		return bytes;
+	}
+}
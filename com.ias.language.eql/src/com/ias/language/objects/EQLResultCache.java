@@ -0,0 +1,362 @@
+package com.ias.language.objects;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hashing;
+import com.ias.language.eql.imp.EQLException;
+
+/**
+ * Disk cache of query results, one compressed columnar file per key.
+ *   Integral and floating point columns are written as a null mask plus primitive values, string columns with few
+ *   distinct values as a dictionary plus codes, everything else with the spill file value codec.
+ *   Entries expire by the TTL of the reader, the directory is kept under the size limit by removing the least
+ *   recently used files (a hit touches the file).
+ */
+public class EQLResultCache {
+	private final static Logger log = LoggerFactory.getLogger(EQLResultCache.class.getCanonicalName());
+	private final static int MAGIC = 0x45514C43;	// EQLC
+	private final static int VERSION = 1;
+	private final static int BUFFER = 64 * 1024;
+	private final static String SUFFIX = ".eqlc";
+
+	private final static byte ENC_LONG = 0;
+	private final static byte ENC_DOUBLE = 1;
+	private final static byte ENC_VALUE = 2;
+	private final static byte ENC_DICT = 3;
+
+	protected File dir;
+	protected long maxBytes;
+	protected long hits;
+	protected long misses;
+
+	public EQLResultCache(File dir, long maxBytes) throws EQLException {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new EQLException("Unable to create result cache directory " + dir);
+	}
+
+	/**
+	 * Cache key of a statement, the bound values are expected with their type so 1 and '1' differ
+	 * @param target
+	 * @param statement
+	 * @param boundValues
+	 * @return
+	 */
+	public static String key(String target, String statement, String boundValues) {
+		return Hashing.sha256().hashString(target + '\0' + statement + '\0' + boundValues, StandardCharsets.UTF_8).toString();
+	}
+
+	/**
+	 * Size limit of the directory, a result larger than this is never cached
+	 * @return
+	 */
+	public long getMaxBytes() {
+		return this.maxBytes;
+	}
+
+	public long getHits() {
+		return this.hits;
+	}
+
+	public long getMisses() {
+		return this.misses;
+	}
+
+	public int getEntries() {
+		File[] files = this.entries();
+		return (files == null) ? 0 : files.length;
+	}
+
+	/**
+	 * Disk used by the entries, compressed
+	 * @return
+	 */
+	public long getBytes() {
+		File[] files = this.entries();
+		long total = 0;
+		for(int idx=0; files != null && idx < files.length; idx++) {
+			total += files[idx].length();
+		}
+		return total;
+	}
+
+	/**
+	 * Cached result of a key when it is younger than the TTL
+	 * @param key
+	 * @param ttlSeconds
+	 * @return null on a miss
+	 */
+	public synchronized EQLDataFrame get(String key, int ttlSeconds) {
+		File file = new File(this.dir, key + SUFFIX);
+		if (!file.exists()) {
+			this.misses++;
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new FileInputStream(file)), BUFFER))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("not a result cache file");
+			long created = in.readLong();
+			if (created + ttlSeconds * 1000L >= System.currentTimeMillis()) {
+				EQLDataFrame frame = read(in);
+				file.setLastModified(System.currentTimeMillis());	// least recently used order
+				this.hits++;
+				return frame;
+			}
+		} catch (IOException e) {
+			log.warn("Result cache entry {} unreadable, removing: {}", key, e.getMessage());
+			this.remove(file);
+			this.misses++;
+			return null;
+		}
+		log.debug("Result cache entry {} expired", key);	// removed once the file is closed
+		this.remove(file);
+		this.misses++;
+		return null;
+	}
+
+	/**
+	 * Stores a result, results larger than the cache are not kept
+	 * @param key
+	 * @param frame
+	 * @throws EQLException
+	 */
+	public synchronized void put(String key, EQLDataFrame frame) throws EQLException {
+		File tmp = null;
+		try {
+			tmp = Files.createTempFile(this.dir.toPath(), key, ".tmp").toFile();	// unique per writer, engines of a matrix share the directory
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(new FileOutputStream(tmp), new Deflater(Deflater.BEST_SPEED)), BUFFER))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(System.currentTimeMillis());
+				write(out, frame);
+			}
+			if (tmp.length() > this.maxBytes) {
+				log.debug("Result of {} bytes is over the cache size, not cached", tmp.length());
+				this.remove(tmp);
+				return;
+			}
+			Files.move(tmp.toPath(), new File(this.dir, key + SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			if (tmp != null)
+				this.remove(tmp);
+			throw new EQLException("Result cache write failed: " + e.getMessage());
+		}
+		this.evict();
+	}
+
+	/**
+	 * Removes the least recently used entries until the directory fits the size limit
+	 */
+	protected void evict() {
+		File[] files = this.entries();
+		if (files == null)
+			return;
+		long total = 0;
+		for(File f : files) {
+			total += f.length();
+		}
+		if (total <= this.maxBytes)
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+		for(File f : files) {
+			if (total <= this.maxBytes)
+				break;
+			total -= f.length();
+			this.remove(f);
+			log.debug("Result cache evicted {}", f.getName());
+		}
+	}
+
+	protected File[] entries() {
+		return this.dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File d, String name) {
+				return name.endsWith(SUFFIX);
+			}
+		});
+	}
+
+	private void remove(File file) {
+		if (file.exists() && !file.delete())
+			log.warn("Unable to remove result cache file {}", file);
+	}
+
+	protected static void write(DataOutputStream out, EQLDataFrame frame) throws IOException {
+		int rows = frame.getRowCount();
+		int cols = frame.getColumnCount();
+		out.writeInt(rows);
+		out.writeInt(cols);
+		for(int col=0; col < cols; col++) {
+			out.writeUTF(frame.getColumnNames().get(col));
+			out.writeUTF(frame.getColumnLabels().get(col));
+			out.writeInt(frame.getColumnTypes()[col]);
+		}
+
+		for(int col=0; col < cols; col++) {
+			int sqlType = frame.getColumnTypes()[col];
+			if (frame.isLongColumn(col) || EQLDataFrame.isFloating(sqlType)) {
+				boolean integral = frame.isLongColumn(col);
+				out.writeByte((integral) ? ENC_LONG : ENC_DOUBLE);
+				writeNulls(out, frame, col);
+				for(int row=0; row < rows; row++) {
+					if (frame.isNull(row, col))
+						continue;
+					if (integral)
+						out.writeLong(frame.getLong(row, col));
+					else
+						out.writeDouble(((Number) frame.get(row, col)).doubleValue());
+				}
+			} else if (isDictionaryColumn(frame, col)) {
+				Map<String,Integer> dict = new HashMap<String,Integer>();
+				List<String> entries = new ArrayList<String>();
+				int[] codes = new int[rows];
+				for(int row=0; row < rows; row++) {
+					Object val = frame.get(row, col);
+					if (val == null) {
+						codes[row] = -1;
+						continue;
+					}
+					Integer code = dict.get(val);
+					if (code == null) {
+						code = entries.size();
+						dict.put((String) val, code);
+						entries.add((String) val);
+					}
+					codes[row] = code;
+				}
+				out.writeByte(ENC_DICT);
+				out.writeInt(entries.size());
+				for(String entry : entries) {
+					EQLRowFile.writeValue(out, entry);
+				}
+				for(int code : codes) {
+					out.writeInt(code);
+				}
+			} else {
+				out.writeByte(ENC_VALUE);
+				for(int row=0; row < rows; row++) {
+					EQLRowFile.writeValue(out, frame.get(row, col));
+				}
+			}
+		}
+	}
+
+	/**
+	 * String column where at least half the values repeat
+	 */
+	private static boolean isDictionaryColumn(EQLDataFrame frame, int col) {
+		Map<String,Boolean> seen = new HashMap<String,Boolean>();
+		int limit = Math.max(1, frame.getRowCount() / 2);
+		for(int row=0; row < frame.getRowCount(); row++) {
+			Object val = frame.get(row, col);
+			if (val == null)
+				continue;
+			if (!(val instanceof String))
+				return false;
+			seen.put((String) val, Boolean.TRUE);
+			if (seen.size() > limit)
+				return false;
+		}
+		return true;
+	}
+
+	private static void writeNulls(DataOutputStream out, EQLDataFrame frame, int col) throws IOException {
+		byte[] mask = new byte[(frame.getRowCount() + 7) / 8];
+		for(int row=0; row < frame.getRowCount(); row++) {
+			if (frame.isNull(row, col))
+				mask[row >> 3] |= 1 << (row & 7);
+		}
+		out.write(mask);
+	}
+
+	protected static EQLDataFrame read(DataInputStream in) throws IOException {
+		int rows = in.readInt();
+		int cols = in.readInt();
+		List<String> names = new ArrayList<String>();
+		List<String> labels = new ArrayList<String>();
+		int[] types = new int[cols];
+		for(int col=0; col < cols; col++) {
+			names.add(in.readUTF());
+			labels.add(in.readUTF());
+			types[col] = in.readInt();
+		}
+
+		Object[][] values = new Object[cols][];
+		for(int col=0; col < cols; col++) {
+			Object[] vals = new Object[rows];
+			byte enc = in.readByte();
+			switch (enc) {
+				case ENC_LONG:
+				case ENC_DOUBLE:
+					byte[] mask = new byte[(rows + 7) / 8];
+					in.readFully(mask);
+					for(int row=0; row < rows; row++) {
+						if ((mask[row >> 3] & (1 << (row & 7))) == 0)
+							vals[row] = (enc == ENC_LONG) ? (Object) in.readLong() : (Object) in.readDouble();
+					}
+					break;
+				case ENC_DICT:
+					Object[] entries = new Object[in.readInt()];
+					for(int idx=0; idx < entries.length; idx++) {
+						entries[idx] = EQLRowFile.readValue(in);
+					}
+					for(int row=0; row < rows; row++) {
+						int code = in.readInt();
+						vals[row] = (code < 0) ? null : entries[code];
+					}
+					break;
+				case ENC_VALUE:
+					for(int row=0; row < rows; row++) {
+						vals[row] = EQLRowFile.readValue(in);
+					}
+					break;
+				default:
+					throw new IOException("unknown column encoding:" + enc);
+			}
+			values[col] = vals;
+		}
+
+		EQLDataFrame frame = new EQLDataFrame(names, labels, types);
+		Object[] row = new Object[cols];
+		for(int idx=0; idx < rows; idx++) {
+			for(int col=0; col < cols; col++) {
+				row[col] = values[col][idx];
+			}
+			try {
+				frame.add(row);
+			} catch (EQLException e) {	// values were written from a frame of the same types
+				throw new IOException(e.getMessage());
+			}
+		}
+		return frame;
+	}
+}
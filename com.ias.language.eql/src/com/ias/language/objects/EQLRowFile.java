@@ -0,0 +1,236 @@
+package com.ias.language.objects;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.Time;
+import java.sql.Timestamp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ias.language.eql.imp.EQLException;
+
+/**
+ * Temporary spill file of rows. Rows are written once, then read back sequentially, the file is removed on close.
+ * Values keep their java type through a one byte tag per value.
+ */
+public class EQLRowFile implements Closeable {
+	private final static Logger log = LoggerFactory.getLogger(EQLRowFile.class.getCanonicalName());
+	private final static int BUFFER = 64 * 1024;
+
+	private final static byte T_NULL = 0;
+	private final static byte T_INT = 1;
+	private final static byte T_LONG = 2;
+	private final static byte T_DOUBLE = 3;
+	private final static byte T_FLOAT = 4;
+	private final static byte T_DECIMAL = 5;
+	private final static byte T_STRING = 6;
+	private final static byte T_DATE = 7;
+	private final static byte T_TIMESTAMP = 8;
+	private final static byte T_TIME = 9;
+	private final static byte T_BOOLEAN = 10;
+	private final static byte T_BYTES = 11;
+	private final static byte T_SHORT = 12;
+	private final static byte T_BIGINT = 13;
+
+	protected File file;
+	protected int columns;
+	protected long rows;
+	protected DataOutputStream out;
+	protected DataInputStream in;
+
+	public EQLRowFile(int columns) throws EQLException {
+		this.columns = columns;
+		this.rows = 0;
+		try {
+			this.file = File.createTempFile("eql", ".spill");
+			this.file.deleteOnExit();
+			this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.file), BUFFER));
+		} catch (IOException e) {
+			throw new EQLException("Unable to create spill file: " + e.getMessage());
+		}
+	}
+
+	public long getRows() {
+		return this.rows;
+	}
+
+	public long getFileBytes() {
+		return this.file.length();
+	}
+
+	public void write(Object[] row) throws EQLException {
+		try {
+			for(int idx=0; idx < this.columns; idx++) {
+				writeValue(this.out, row[idx]);
+			}
+			this.rows++;
+		} catch (IOException e) {
+			throw new EQLException("Spill file write failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Finishes writing, the file can be read from the start afterwards
+	 * @throws EQLException
+	 */
+	public void startRead() throws EQLException {
+		try {
+			if (this.out != null) {
+				this.out.close();
+				this.out = null;
+			}
+			if (this.in != null)
+				this.in.close();
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file), BUFFER));
+		} catch (IOException e) {
+			throw new EQLException("Spill file read failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Next row or null at the end of the file
+	 * @return
+	 * @throws EQLException
+	 */
+	public Object[] read() throws EQLException {
+		Object[] row = new Object[this.columns];
+		try {
+			for(int idx=0; idx < this.columns; idx++) {
+				row[idx] = readValue(this.in);
+			}
+		} catch (EOFException e) {
+			return null;
+		} catch (IOException e) {
+			throw new EQLException("Spill file read failed: " + e.getMessage());
+		}
+		return row;
+	}
+
+	@Override
+	public void close() {
+		try {
+			if (this.out != null)
+				this.out.close();
+			if (this.in != null)
+				this.in.close();
+		} catch (IOException e) {
+			log.warn("Error closing spill file {} - continuing", this.file);
+		}
+		this.out = null;
+		this.in = null;
+		if (this.file.exists() && !this.file.delete())
+			log.warn("Unable to remove spill file {}", this.file);
+	}
+
+	public static void writeValue(DataOutputStream out, Object val) throws IOException {
+		if (val == null) {
+			out.writeByte(T_NULL);
+		} else if (val instanceof Integer) {
+			out.writeByte(T_INT);
+			out.writeInt((Integer) val);
+		} else if (val instanceof Long) {
+			out.writeByte(T_LONG);
+			out.writeLong((Long) val);
+		} else if (val instanceof Short || val instanceof Byte) {
+			out.writeByte(T_SHORT);
+			out.writeShort(((Number) val).shortValue());
+		} else if (val instanceof Double) {
+			out.writeByte(T_DOUBLE);
+			out.writeDouble((Double) val);
+		} else if (val instanceof Float) {
+			out.writeByte(T_FLOAT);
+			out.writeFloat((Float) val);
+		} else if (val instanceof BigDecimal) {
+			out.writeByte(T_DECIMAL);
+			writeString(out, ((BigDecimal) val).toString());
+		} else if (val instanceof BigInteger) {
+			out.writeByte(T_BIGINT);
+			writeString(out, val.toString());
+		} else if (val instanceof Timestamp) {
+			out.writeByte(T_TIMESTAMP);
+			out.writeLong(((Timestamp) val).getTime());
+			out.writeInt(((Timestamp) val).getNanos());
+		} else if (val instanceof Date) {
+			out.writeByte(T_DATE);
+			out.writeLong(((Date) val).getTime());
+		} else if (val instanceof Time) {
+			out.writeByte(T_TIME);
+			out.writeLong(((Time) val).getTime());
+		} else if (val instanceof Boolean) {
+			out.writeByte(T_BOOLEAN);
+			out.writeBoolean((Boolean) val);
+		} else if (val instanceof byte[]) {
+			out.writeByte(T_BYTES);
+			out.writeInt(((byte[]) val).length);
+			out.write((byte[]) val);
+		} else {
+			out.writeByte(T_STRING);
+			writeString(out, val.toString());
+		}
+	}
+
+	public static Object readValue(DataInputStream in) throws IOException {
+		byte tag = in.readByte();
+		switch (tag) {
+			case T_NULL:
+				return null;
+			case T_INT:
+				return in.readInt();
+			case T_LONG:
+				return in.readLong();
+			case T_SHORT:
+				return in.readShort();
+			case T_DOUBLE:
+				return in.readDouble();
+			case T_FLOAT:
+				return in.readFloat();
+			case T_DECIMAL:
+				return new BigDecimal(readString(in));
+			case T_BIGINT:
+				return new BigInteger(readString(in));
+			case T_TIMESTAMP:
+				Timestamp ts = new Timestamp(in.readLong());
+				ts.setNanos(in.readInt());
+				return ts;
+			case T_DATE:
+				return new Date(in.readLong());
+			case T_TIME:
+				return new Time(in.readLong());
+			case T_BOOLEAN:
+				return in.readBoolean();
+			case T_BYTES:
+				byte[] b = new byte[in.readInt()];
+				in.readFully(b);
+				return b;
+			case T_STRING:
+				return readString(in);
+			default:
+				throw new IOException("Corrupt spill file, unknown value tag:" + tag);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] b = new byte[in.readInt()];
+		in.readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+}
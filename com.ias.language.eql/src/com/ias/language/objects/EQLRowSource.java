@@ -0,0 +1,35 @@
+package com.ias.language.objects;
+
+import java.io.Closeable;
+import java.util.List;
+
+import com.ias.language.eql.imp.EQLException;
+
+/**
+ * Forward only stream of rows used by the client side cursor instructions (copy, export...).
+ * Values are returned in column order, a null row marks the end of the stream.
+ */
+public interface EQLRowSource extends Closeable {
+
+	/**
+	 * Safe column names (see IASOnDemandDataSource.getSafeColumnName)
+	 */
+	public List<String> getColumnNames();
+
+	/**
+	 * Column labels as returned by the driver (aliases)
+	 */
+	public List<String> getColumnLabels();
+
+	/**
+	 * java.sql.Types for each column
+	 */
+	public int[] getColumnTypes();
+
+	/**
+	 * Next row or null when the stream is exhausted
+	 * @return
+	 * @throws EQLException
+	 */
+	public Object[] next() throws EQLException;
+}
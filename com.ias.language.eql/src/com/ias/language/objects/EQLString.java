@@ -1,37 +1,40 @@
 package com.ias.language.objects;
 
+/**
+ * String value, the text is held without the quotes of the script form
+ */
 public class EQLString extends EQLObject {
 	private static final long serialVersionUID = 5056564773966647574L;
-	protected String val;
 	
 	public EQLString() {
-		val = "";
+		this("");
 	}
 	
 	public EQLString(String state) {
-		val = state;
+		super(types.string, "'" + state + "'", true);
+		this.text = state;
 	}
 	
 	public boolean eq(String test) {
-		return val.compareTo(val) == 0;
+		return text.compareTo(test) == 0;
 	}
 
 	public boolean eqAny(String ... test) {
 		for(String v : test) {
-			if (val.compareTo(v) == 0) return true;
+			if (text.compareTo(v) == 0) return true;
 		}
 		return false;
 	}
 
 	public boolean lt(String test) {
-		return val.compareTo(test) < 0;
+		return text.compareTo(test) < 0;
 	}
 	
 	public boolean gt(String test) {
-		return val.compareTo(test) > 0;
+		return text.compareTo(test) > 0;
 	}
 	
 	public boolean ne(String test) {
-		return val.compareTo(test) != 0;
+		return text.compareTo(test) != 0;
 	}
 }